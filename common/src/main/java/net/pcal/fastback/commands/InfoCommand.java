@@ -35,6 +35,7 @@ import static java.util.Objects.requireNonNull;
 import static net.minecraft.commands.Commands.literal;
 import static net.pcal.fastback.commands.Commands.*;
 import static net.pcal.fastback.config.FastbackConfigKey.AUTOBACK_ACTION;
+import static net.pcal.fastback.config.FastbackConfigKey.AUTOBACK_CHANGE_THRESHOLD;
 import static net.pcal.fastback.config.FastbackConfigKey.AUTOBACK_WAIT_MINUTES;
 import static net.pcal.fastback.config.FastbackConfigKey.BROADCAST_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.BROADCAST_MESSAGE;
@@ -91,8 +92,10 @@ enum InfoCommand implements Command {
 
                         show(IS_BACKUP_ENABLED, conf::getBoolean, ulog);
                         show(REMOTE_PUSH_URL, conf::getString, ulog);
+                        if (conf.isSet(REMOTE_PUSH_URL)) repo.doShowPushQueue(ulog);
                         show(RESTORE_DIRECTORY, conf::getString, ulog);
                         show(AUTOBACK_WAIT_MINUTES, conf::getInt, ulog);
+                        show(AUTOBACK_CHANGE_THRESHOLD, conf::getInt, ulog);
                         show(IS_MODS_BACKUP_ENABLED, conf::getBoolean, ulog);
                         show(BROADCAST_ENABLED, conf::getBoolean, ulog);
                         show(BROADCAST_MESSAGE, conf::getString, ulog);
@@ -24,6 +24,8 @@ import com.mojang.brigadier.context.CommandContext;
 import net.minecraft.commands.CommandSourceStack;
 import net.pcal.fastback.logging.UserLogger;
 
+import java.util.List;
+
 import static net.minecraft.commands.Commands.argument;
 import static net.minecraft.commands.Commands.literal;
 import static net.pcal.fastback.commands.Commands.SUCCESS;
@@ -38,6 +40,7 @@ enum RemoteRestoreCommand implements Command {
 
     private static final String COMMAND_NAME = "remote-restore";
     private static final String ARGUMENT = "snapshot";
+    private static final String FILES_ARGUMENT = "files";
 
     @Override
     public void register(final LiteralArgumentBuilder<CommandSourceStack> argb, PermissionsFactory<CommandSourceStack> pf) {
@@ -46,7 +49,10 @@ enum RemoteRestoreCommand implements Command {
                         requires(subcommandPermission(COMMAND_NAME, pf)).then(
                                 argument(ARGUMENT, StringArgumentType.string()).
                                         suggests(SnapshotNameSuggestions.remote()).
-                                        executes(RemoteRestoreCommand::remoteRestore)
+                                        executes(RemoteRestoreCommand::remoteRestore).then(
+                                                argument(FILES_ARGUMENT, StringArgumentType.greedyString()).
+                                                        executes(RemoteRestoreCommand::remoteRestoreFiles)
+                                        )
                         )
         );
     }
@@ -59,4 +65,14 @@ enum RemoteRestoreCommand implements Command {
         });
         return SUCCESS;
     }
+
+    private static int remoteRestoreFiles(final CommandContext<CommandSourceStack> cc) {
+        final UserLogger ulog = ulog(cc);
+        gitOp(NONE, ulog, repo -> {
+            final String snapshotName = cc.getLastChild().getArgument(ARGUMENT, String.class);
+            final String files = cc.getLastChild().getArgument(FILES_ARGUMENT, String.class);
+            repo.doRestoreRemoteFiles(snapshotName, List.of(files.trim().split("\\s+")), ulog);
+        });
+        return SUCCESS;
+    }
 }
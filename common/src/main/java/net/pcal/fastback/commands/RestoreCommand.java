@@ -24,6 +24,8 @@ import com.mojang.brigadier.context.CommandContext;
 import net.minecraft.commands.CommandSourceStack;
 import net.pcal.fastback.logging.UserLogger;
 
+import java.util.List;
+
 import static net.minecraft.commands.Commands.argument;
 import static net.minecraft.commands.Commands.literal;
 import static net.pcal.fastback.commands.Commands.SUCCESS;
@@ -37,6 +39,7 @@ enum RestoreCommand implements Command {
 
     private static final String COMMAND_NAME = "restore";
     private static final String ARGUMENT = "snapshot";
+    private static final String FILES_ARGUMENT = "files";
 
     @Override
     public void register(LiteralArgumentBuilder<CommandSourceStack> argb, PermissionsFactory<CommandSourceStack> pf) {
@@ -45,7 +48,10 @@ enum RestoreCommand implements Command {
                         requires(subcommandPermission(COMMAND_NAME, pf)).then(
                                 argument(ARGUMENT, StringArgumentType.string()).
                                         suggests(SnapshotNameSuggestions.local()).
-                                        executes(RestoreCommand::restore)
+                                        executes(RestoreCommand::restore).then(
+                                                argument(FILES_ARGUMENT, StringArgumentType.greedyString()).
+                                                        executes(RestoreCommand::restoreFiles)
+                                        )
                         )
         );
     }
@@ -59,4 +65,15 @@ enum RestoreCommand implements Command {
         }
         return SUCCESS;
     }
+
+    private static int restoreFiles(final CommandContext<CommandSourceStack> cc) {
+        try (final UserLogger ulog = UserLogger.ulog(cc)) {
+            gitOp(NONE, ulog, repo -> {
+                final String snapshotName = cc.getLastChild().getArgument(ARGUMENT, String.class);
+                final String files = cc.getLastChild().getArgument(FILES_ARGUMENT, String.class);
+                repo.doRestoreLocalFiles(snapshotName, List.of(files.trim().split("\\s+")), ulog);
+            });
+        }
+        return SUCCESS;
+    }
 }
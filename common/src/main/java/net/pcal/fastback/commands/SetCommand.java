@@ -49,6 +49,7 @@ import static net.pcal.fastback.commands.Commands.getArgumentNicely;
 import static net.pcal.fastback.commands.Commands.missingArgument;
 import static net.pcal.fastback.commands.Commands.subcommandPermission;
 import static net.pcal.fastback.config.FastbackConfigKey.AUTOBACK_ACTION;
+import static net.pcal.fastback.config.FastbackConfigKey.AUTOBACK_CHANGE_THRESHOLD;
 import static net.pcal.fastback.config.FastbackConfigKey.AUTOBACK_WAIT_MINUTES;
 import static net.pcal.fastback.config.FastbackConfigKey.BROADCAST_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.BROADCAST_MESSAGE;
@@ -95,6 +96,7 @@ enum SetCommand implements Command {
         registerStringConfigValue(RESTORE_DIRECTORY, "full-directory-path", sc);
         registerStringConfigValue(REMOTE_PUSH_URL, "url", sc);
         registerIntegerConfigValue(AUTOBACK_WAIT_MINUTES, "minutes", sc);
+        registerIntegerConfigValue(AUTOBACK_CHANGE_THRESHOLD, "megabytes", sc);
 
         {
             final List<String> schedulableActions = new ArrayList<>();
@@ -26,25 +26,44 @@ package net.pcal.fastback.config;
 public enum FastbackConfigKey implements GitConfigKey {
 
     AUTOBACK_ACTION("autoback-action", null),
+    AUTOBACK_CHANGE_THRESHOLD("autoback-change-threshold", 0),
     AUTOBACK_WAIT_MINUTES("autoback-wait", 0),
     BROADCAST_ENABLED("broadcast-enabled", true),
     BROADCAST_MESSAGE("broadcast-message", null),
+    CHUNK_STORE_DIRECTORY("chunk-store-directory", null),
+    COMMIT_THREADS("commit-threads", 0),
+    IS_ADAPTIVE_PUSH_THROTTLE_ENABLED("adaptive-push-throttle-enabled", false),
     IS_BACKUP_ENABLED("backup-enabled", true),
     IS_BRANCH_CLEANUP_ENABLED(true),
+    IS_DIRECT_COMMIT_ENABLED("direct-commit-enabled", false),
+    IS_DIRTY_TRACKING_ENABLED("dirty-tracking-enabled", false),
+    IS_FAST_IMPORT_ENABLED("fast-import-enabled", false),
     IS_FILE_REMOTE_BARE(true),
+    IS_FILE_REMOTE_COPY_ENABLED("file-remote-copy-enabled", false),
+    IS_INCREMENTAL_RESTORE_ENABLED("incremental-restore-enabled", false),
     IS_LOCK_CLEANUP_ENABLED("lock-cleanup-enabled", true),
     IS_NATIVE_GIT_ENABLED("native-git-enabled", true),
     IS_MODS_BACKUP_ENABLED("mods-backup-enabled", false),
+    IS_PIPELINED_PUSH_ENABLED("pipelined-push-enabled", false),
     IS_REFLOG_DELETION_ENABLED(true),
-    IS_REMOTE_TEMP_BRANCH_CLEANUP_ENABLED(true),
+    IS_REGION_CHUNKING_ENABLED("region-chunking-enabled", false),
+    IS_RESUMABLE_PUSH_ENABLED("resumable-push-enabled", false),
     IS_SMART_PUSH_ENABLED("smart-push-enabled", false),
-    IS_TEMP_BRANCH_CLEANUP_ENABLED(true),
-    IS_TRACKING_BRANCH_CLEANUP_ENABLED(true),
+    IS_SSH_MULTIPLEXING_ENABLED("ssh-multiplexing-enabled", false),
+    IS_STAGED_COMMIT_ENABLED("staged-commit-enabled", false),
     IS_UUID_CHECK_ENABLED(true),
     LOCAL_RETENTION_POLICY("retention-policy", null),
+    MIRROR_REMOTES("mirror-remotes", null),
+    PUSH_BANDWIDTH_LIMIT("push-bandwidth-limit", 0),
     REMOTE_NAME("remote-name", "origin"),
+    REMOTE_PRUNE_BATCH_SIZE("remote-prune-batch-size", 100),
+    REMOTE_REF_CACHE_SECONDS("remote-ref-cache-seconds", 60),
     REMOTE_RETENTION_POLICY("remote-retention-policy", null),
     RESTORE_DIRECTORY("restore-directory", null),
+    RESTORE_LFS_TRANSFERS("restore-lfs-transfers", 0),
+    RESTORE_LFS_WINDOW("restore-lfs-window", 256),
+    RESTORE_THREADS("restore-threads", 0),
+    RESUMABLE_PUSH_CHUNK_SIZE("resumable-push-chunk-size", 256),
     SHUTDOWN_ACTION("shutdown-action", "local"),
     UPDATE_GITATTRIBUTES_ENABLED("update-gitattributes-enabled", true),
     UPDATE_GITIGNORE_ENABLED("update-gitignore-enabled", true);
@@ -0,0 +1,72 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.config;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A fastback setting as it applies to one particular remote, e.g. 'fastback.nas.remote-retention-policy'.
+ * Lives in a [fastback "remote-name"] subsection of the config.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+public record RemoteConfigKey(FastbackConfigKey key, String remoteName) implements GitConfigKey {
+
+    public RemoteConfigKey {
+        requireNonNull(key);
+        requireNonNull(remoteName);
+        if (key.getSettingName() == null) throw new IllegalArgumentException(key + " can't be set");
+    }
+
+    @Override
+    public String getSectionName() {
+        return this.key.getSectionName();
+    }
+
+    @Override
+    public String getSubSectionName() {
+        return this.remoteName;
+    }
+
+    @Override
+    public String getSettingName() {
+        return this.key.getSettingName();
+    }
+
+    @Override
+    public String getDisplayName() {
+        return this.remoteName + "." + this.key.getSettingName();
+    }
+
+    @Override
+    public boolean getBooleanDefault() {
+        return this.key.getBooleanDefault();
+    }
+
+    @Override
+    public String getStringDefault() {
+        return this.key.getStringDefault();
+    }
+
+    @Override
+    public int getIntDefault() {
+        return this.key.getIntDefault();
+    }
+}
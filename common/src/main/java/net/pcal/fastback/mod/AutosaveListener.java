@@ -25,26 +25,40 @@ import net.pcal.fastback.repo.Repo;
 import net.pcal.fastback.repo.RepoFactory;
 import net.pcal.fastback.utils.Executor;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.Set;
 
 import static net.pcal.fastback.commands.SchedulableAction.NONE;
 import static net.pcal.fastback.commands.SchedulableAction.forConfigValue;
 import static net.pcal.fastback.config.FastbackConfigKey.AUTOBACK_ACTION;
+import static net.pcal.fastback.config.FastbackConfigKey.AUTOBACK_CHANGE_THRESHOLD;
 import static net.pcal.fastback.config.FastbackConfigKey.AUTOBACK_WAIT_MINUTES;
 import static net.pcal.fastback.config.FastbackConfigKey.IS_BACKUP_ENABLED;
 import static net.pcal.fastback.logging.SystemLogger.syslog;
 import static net.pcal.fastback.mod.Mod.mod;
+import static net.pcal.fastback.repo.DirtyFileJournal.journal;
 import static net.pcal.fastback.utils.Executor.executor;
 
 /**
  * Responds to vanilla autosaves and follows them with an automatic backup (autoback).
+ * <p>
+ * Normally that happens once autoback-wait minutes have passed since the last one.  If autoback-change-threshold
+ * is set, the dirty file journal decides instead: the backup is skipped if nothing has been written since the
+ * last snapshot, and done right away (without waiting) once the files written add up to the threshold.  Until
+ * the journal is trusted (i.e., before the first snapshot after the world starts), it falls back to waiting.
+ * <p>
+ * Autosaves that don't lead to a backup still retry any pushes that failed earlier, once their backoff is up.
  *
  * @author pcal
  * @since 0.2.0
  */
 class AutosaveListener implements Runnable {
 
+    private static final long MEGABYTE = 1024 * 1024;
+
     private long lastBackupTime = System.currentTimeMillis();
 
     @Override
@@ -59,13 +73,9 @@ class AutosaveListener implements Runnable {
                         final GitConfig config = repo.getConfig();
                         if (!config.getBoolean(IS_BACKUP_ENABLED)) return;
                         final SchedulableAction autobackAction = forConfigValue(config, AUTOBACK_ACTION);
-                        if (autobackAction == null || autobackAction == NONE) return;
-                        final Duration waitTime = Duration.ofMinutes(config.getInt(AUTOBACK_WAIT_MINUTES));
-                        final Duration timeRemaining = waitTime.
-                                minus(Duration.ofMillis(System.currentTimeMillis() - lastBackupTime));
-                        if (!timeRemaining.isZero() && !timeRemaining.isNegative()) {
-                            syslog().debug("Skipping auto-backup until at least " +
-                                    (timeRemaining.toSeconds() / 60) + " more minutes have elapsed.");
+                        if (autobackAction == null || autobackAction == NONE || !isBackupDue(worldSaveDir, config)) {
+                            // no backup (and so no push) this time, but anything whose push failed earlier may be due for another try
+                            repo.doRetryPush(ulog);
                             return;
                         }
                         syslog().info("Starting auto-backup");
@@ -79,4 +89,48 @@ class AutosaveListener implements Runnable {
         }
     }
 
+    private boolean isBackupDue(final Path worldSaveDir, final GitConfig config) {
+        final Duration waitTime = Duration.ofMinutes(config.getInt(AUTOBACK_WAIT_MINUTES));
+        final Duration timeRemaining = waitTime.
+                minus(Duration.ofMillis(System.currentTimeMillis() - lastBackupTime));
+        final boolean waitElapsed = timeRemaining.isZero() || timeRemaining.isNegative();
+        final int thresholdMb = config.getInt(AUTOBACK_CHANGE_THRESHOLD);
+        final Set<String> dirtyFiles = thresholdMb > 0 ? journal().getDirtyFiles(worldSaveDir) : null;
+        if (dirtyFiles == null) {
+            if (!waitElapsed) {
+                syslog().debug("Skipping auto-backup until at least " +
+                        (timeRemaining.toSeconds() / 60) + " more minutes have elapsed.");
+                return false;
+            }
+        } else if (dirtyFiles.isEmpty()) {
+            syslog().debug("Skipping auto-backup, no world files have been written since the last snapshot.");
+            return false;
+        } else {
+            final long dirtyBytes = estimateDirtyBytes(worldSaveDir, dirtyFiles);
+            if (dirtyBytes >= thresholdMb * MEGABYTE) {
+                syslog().info("About " + (dirtyBytes / MEGABYTE) + "MB of world files have changed, backing up now");
+            } else if (!waitElapsed) {
+                syslog().debug("Skipping auto-backup, " + dirtyFiles.size() + " files (" + (dirtyBytes / MEGABYTE) +
+                        "MB) have changed and " + (timeRemaining.toSeconds() / 60) + " minutes remain.");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The journal only knows which files were written, not how much of them, so count whole files.  That's
+     * roughly what the next snapshot will have to read (and, without chunking, store and push) anyway.
+     */
+    private static long estimateDirtyBytes(final Path worldSaveDir, final Set<String> dirtyFiles) {
+        long out = 0;
+        for (final String path : dirtyFiles) {
+            try {
+                out += Files.size(worldSaveDir.resolve(path));
+            } catch (IOException ignored) {
+                // deleted since it was written
+            }
+        }
+        return out;
+    }
 }
@@ -28,6 +28,7 @@ import net.pcal.fastback.logging.UserMessage;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import static net.minecraft.ChatFormatting.GRAY;
 import static net.minecraft.ChatFormatting.GREEN;
@@ -80,6 +81,11 @@ public interface MinecraftProvider {
      */
     boolean isClient();
 
+    /**
+     * @return the number of players currently connected, or 0 if no world is loaded.
+     */
+    int getPlayerCount();
+
     /**
      * If on a server, broadcasts a message to all connected users.
      */
@@ -117,6 +123,13 @@ public interface MinecraftProvider {
      */
     void setAutoSaveListener(Runnable runnable);
 
+    /**
+     * Register a callback that should be called whenever the server writes a region file.  Implementations
+     * MUST report every write; the dirty file journal relies on it to skip scanning unchanged regions.  One
+     * that can't should call DirtyFileJournal.disable() instead.
+     */
+    void setFileWriteListener(Consumer<Path> listener);
+
     /**
      * Add some interesting properties to record in backup.properties.
      */
@@ -95,6 +95,11 @@ public interface Mod {
      */
     String getWorldName();
 
+    /**
+     * @return the number of players currently connected, or 0 if no world is loaded.
+     */
+    int getPlayerCount();
+
     /**
      * @return paths to backup when mods-backup enabled.
      */
@@ -37,8 +37,10 @@ import static net.pcal.fastback.config.FastbackConfigKey.IS_BACKUP_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.SHUTDOWN_ACTION;
 import static net.pcal.fastback.logging.SystemLogger.syslog;
 import static net.pcal.fastback.logging.UserMessage.localized;
+import static net.pcal.fastback.repo.DirtyFileJournal.journal;
 import static net.pcal.fastback.utils.EnvironmentUtils.getGitLfsVersion;
 import static net.pcal.fastback.utils.EnvironmentUtils.getGitVersion;
+import static net.pcal.fastback.utils.Executor.ExecutionLock.WRITE;
 import static net.pcal.fastback.utils.Executor.executor;
 
 class ModImpl implements LifecycleListener, Mod {
@@ -55,6 +57,7 @@ class ModImpl implements LifecycleListener, Mod {
     ModImpl(final MinecraftProvider spi) {
         this.fsp = requireNonNull(spi);
         spi.setAutoSaveListener(new AutosaveListener());
+        spi.setFileWriteListener(this::onFileWritten);
     }
 
     // ======================================================================
@@ -123,6 +126,11 @@ class ModImpl implements LifecycleListener, Mod {
         return this.fsp.getWorldName();
     }
 
+    @Override
+    public int getPlayerCount() {
+        return this.fsp.getPlayerCount();
+    }
+
     @Override
     public void addBackupProperties(Map<String, String> props) {
         fsp.addBackupProperties(props);
@@ -176,6 +184,13 @@ class ModImpl implements LifecycleListener, Mod {
     @Override
     public void onWorldStart() {
         executor().start();
+        try {
+            // we can't know what happened to the files while the world was stopped
+            journal().invalidate(this.getWorldDirectory());
+        } catch (Exception e) {
+            syslog().error("Failed to invalidate dirty file journal", e);
+        }
+        resumePush();
         syslog().debug("onWorldStart complete");
     }
 
@@ -206,10 +221,41 @@ class ModImpl implements LifecycleListener, Mod {
                 } catch (Exception e) {
                     syslog().error("Shutdown action failed.", e);
                 }
+                rf.closeSessions(worldSaveDir);
             }
             syslog().debug("onWorldStop complete");
         }
     }
 
+    // ======================================================================
+    // Private
+
+    /**
+     * Pick up any push that was left unfinished when the world last stopped (e.g., a resumable push that a restart
+     * cut off) right away, rather than waiting for the first autosave.
+     */
+    private void resumePush() {
+        try (final UserLogger ulog = UserLogger.forAutosave()) {
+            executor().execute(WRITE, ulog, () -> {
+                final Path worldSaveDir = this.getWorldDirectory();
+                final RepoFactory rf = RepoFactory.rf();
+                if (!rf.isGitRepo(worldSaveDir)) return;
+                try (final Repo repo = rf.load(worldSaveDir)) {
+                    if (repo.getConfig().getBoolean(IS_BACKUP_ENABLED)) repo.doRetryPush(ulog);
+                } catch (Exception e) {
+                    syslog().error("Failed to resume push", e);
+                }
+            });
+        }
+    }
+
+    private void onFileWritten(final Path writtenFile) {
+        try {
+            journal().recordWrite(this.getWorldDirectory(), writtenFile);
+        } catch (Exception e) {
+            // never let anything escape back into minecraft's io threads
+            syslog().error("Failed to record write to " + writtenFile, e);
+        }
+    }
 
 }
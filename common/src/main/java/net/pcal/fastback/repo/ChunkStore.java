@@ -0,0 +1,213 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+/**
+ * A content-addressed store of FastCDC chunks, holding git-lfs objects.
+ * <p>
+ * Each lfs object is split with FastCdcChunker and stored as a manifest listing its chunks; chunks already in
+ * the store (from an earlier snapshot, or from another world using the same store) aren't written again.
+ * <pre>
+ * [store]/objects/ab/cd/abcd...    manifest for an lfs object, named by its oid
+ * [store]/chunks/12/1234...        chunk, named by the sha256 of its contents
+ * [store]/chunk-index              sha256 of every chunk in the store, one per line
+ * [store]/tmp/                     files being written
+ * </pre>
+ * The chunk index is read into memory on open, so deciding whether a chunk needs writing doesn't touch the
+ * disk.  Everything is written to tmp and then moved into place, and the index is only appended to after a
+ * chunk is in place, so several processes can share a store.  Nothing is ever deleted from the store.
+ * <p>
+ * This runs in the ChunkStoreAgent process, outside of minecraft, so it must only use the JDK.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class ChunkStore {
+
+    // ======================================================================
+    // Constants
+
+    private static final String MANIFEST_VERSION = "fastback-chunks 1";
+    private static final String OBJECTS_DIR = "objects";
+    private static final String CHUNKS_DIR = "chunks";
+    private static final String TMP_DIR = "tmp";
+    private static final String INDEX_FILE = "chunk-index";
+    private static final HexFormat HEX = HexFormat.of();
+
+    // ======================================================================
+    // Fields
+
+    private final Path storeDir;
+    private final Set<String> knownChunks = new HashSet<>();
+
+    // ======================================================================
+    // Constructor
+
+    ChunkStore(final Path storeDir) {
+        this.storeDir = storeDir;
+    }
+
+    // ======================================================================
+    // Package private
+
+    void open() throws IOException {
+        Files.createDirectories(this.storeDir.resolve(TMP_DIR));
+        final Path index = this.storeDir.resolve(INDEX_FILE);
+        if (Files.exists(index)) {
+            for (final String line : Files.readAllLines(index, UTF_8)) {
+                if (!line.isBlank()) this.knownChunks.add(line.trim());
+            }
+        }
+    }
+
+    boolean hasObject(final String oid) {
+        return Files.exists(getManifestPath(oid));
+    }
+
+    /**
+     * Chunk a file and store it as the given lfs object.
+     *
+     * @return the number of bytes of new chunks that had to be written.
+     */
+    long putObject(final String oid, final Path file) throws IOException {
+        if (hasObject(oid)) return 0;
+        final MessageDigest objectDigest = sha256();
+        final List<String> manifest = new ArrayList<>();
+        final List<String> newChunks = new ArrayList<>();
+        long size = 0, written = 0;
+        try (final InputStream in = Files.newInputStream(file)) {
+            final FastCdcChunker chunker = new FastCdcChunker(in);
+            byte[] chunk;
+            while ((chunk = chunker.next()) != null) {
+                objectDigest.update(chunk);
+                size += chunk.length;
+                final String hash = HEX.formatHex(sha256().digest(chunk));
+                manifest.add(hash + " " + chunk.length);
+                if (!this.knownChunks.contains(hash)) {
+                    final Path chunkPath = getChunkPath(hash);
+                    if (!Files.exists(chunkPath)) {
+                        writeAtomically(chunkPath, chunk);
+                        written += chunk.length;
+                    }
+                    this.knownChunks.add(hash);
+                    newChunks.add(hash);
+                }
+            }
+        }
+        final String actualOid = HEX.formatHex(objectDigest.digest());
+        if (!actualOid.equals(oid)) {
+            throw new IOException("Contents of " + file + " don't match oid " + oid + " (got " + actualOid + ")");
+        }
+        if (!newChunks.isEmpty()) {
+            try (final BufferedWriter w = Files.newBufferedWriter(this.storeDir.resolve(INDEX_FILE), UTF_8, CREATE, APPEND)) {
+                for (final String hash : newChunks) {
+                    w.write(hash);
+                    w.write('\n');
+                }
+            }
+        }
+        manifest.add(0, MANIFEST_VERSION + "\n" + size);
+        writeAtomically(getManifestPath(oid), (String.join("\n", manifest) + "\n").getBytes(UTF_8));
+        return written;
+    }
+
+    /**
+     * Reassemble an lfs object, checking it against its oid.
+     */
+    void getObject(final String oid, final OutputStream out) throws IOException {
+        final Path manifestPath = getManifestPath(oid);
+        if (!Files.exists(manifestPath)) throw new IOException("Object " + oid + " is not in the chunk store");
+        final List<String> lines = Files.readAllLines(manifestPath, UTF_8);
+        if (lines.size() < 2 || !lines.get(0).equals(MANIFEST_VERSION)) {
+            throw new IOException("Unsupported manifest for " + oid);
+        }
+        final MessageDigest objectDigest = sha256();
+        for (final String line : lines.subList(2, lines.size())) {
+            if (line.isBlank()) continue;
+            final String hash = line.substring(0, line.indexOf(' '));
+            final byte[] chunk = Files.readAllBytes(getChunkPath(hash));
+            objectDigest.update(chunk);
+            out.write(chunk);
+        }
+        final String actualOid = HEX.formatHex(objectDigest.digest());
+        if (!actualOid.equals(oid)) {
+            throw new IOException("Object " + oid + " is corrupt in the chunk store (got " + actualOid + ")");
+        }
+    }
+
+    Path getTempDir() {
+        return this.storeDir.resolve(TMP_DIR);
+    }
+
+    // ======================================================================
+    // Private
+
+    private Path getManifestPath(final String oid) {
+        if (!oid.matches("[0-9a-f]{64}")) throw new IllegalArgumentException("Invalid oid " + oid);
+        return this.storeDir.resolve(OBJECTS_DIR).resolve(oid.substring(0, 2)).resolve(oid.substring(2, 4)).resolve(oid);
+    }
+
+    private Path getChunkPath(final String hash) {
+        return this.storeDir.resolve(CHUNKS_DIR).resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private void writeAtomically(final Path target, final byte[] data) throws IOException {
+        Files.createDirectories(target.getParent());
+        final Path tmp = Files.createTempFile(getTempDir(), target.getFileName().toString(), null);
+        try {
+            Files.write(tmp, data);
+            try {
+                Files.move(tmp, target, ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException | FileAlreadyExistsException e) {
+                if (!Files.exists(target)) Files.move(tmp, target);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A git-lfs standalone custom transfer agent that keeps lfs objects in a ChunkStore instead of uploading
+ * them whole to the remote's lfs server.
+ * <p>
+ * PreflightUtils points lfs.standalonetransferagent at this class (run with the same java and jar as the
+ * mod) when chunk-store-directory is set.  git-lfs then starts it for each push or fetch and sends it one
+ * JSON message per line on stdin:
+ * <pre>
+ * {"event":"init","operation":"upload","remote":"origin","concurrent":true,"concurrenttransfers":3}
+ * {"event":"upload","oid":"bf3e...","size":346232,"path":"/path/to/file.mca","action":null}
+ * {"event":"download","oid":"22ab...","size":21245,"action":null}
+ * {"event":"terminate"}
+ * </pre>
+ * See https://github.com/git-lfs/git-lfs/blob/main/docs/custom-transfers.md
+ * <p>
+ * This runs in its own JVM with just the mod jar on the classpath, so it must only use the JDK.  Errors go to
+ * stderr, which git-lfs logs.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+public final class ChunkStoreAgent {
+
+    /**
+     * @param args the chunk store directory, and a temp directory on the same filesystem as the repo's lfs
+     *             objects (downloaded files are moved from there into place by git-lfs).
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: ChunkStoreAgent <chunk-store-dir> <lfs-tmp-dir>");
+            System.exit(1);
+        }
+        final ChunkStore store = new ChunkStore(Path.of(args[0]));
+        final Path downloadDir = Path.of(args[1]);
+        final PrintStream out = new PrintStream(System.out, false, UTF_8);
+        final BufferedReader in = new BufferedReader(new InputStreamReader(System.in, UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            final String event = getString(line, "event");
+            if (event == null) continue;
+            switch (event) {
+                case "init" -> {
+                    try {
+                        store.open();
+                        Files.createDirectories(downloadDir);
+                        respond(out, "{}");
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        respond(out, "{\"error\":{\"code\":1,\"message\":" + quote(String.valueOf(e.getMessage())) + "}}");
+                    }
+                }
+                case "upload" -> {
+                    final String oid = getString(line, "oid");
+                    try {
+                        final long written = store.putObject(oid, Path.of(getString(line, "path")));
+                        final String size = getString(line, "size");
+                        if (size != null) {
+                            respond(out, "{\"event\":\"progress\",\"oid\":" + quote(oid) + ",\"bytesSoFar\":" + size +
+                                    ",\"bytesSinceLast\":" + size + "}");
+                        }
+                        System.err.println("fastback: stored " + oid + ", " + written + " new bytes");
+                        respond(out, "{\"event\":\"complete\",\"oid\":" + quote(oid) + "}");
+                    } catch (Exception e) {
+                        respondError(out, oid, e);
+                    }
+                }
+                case "download" -> {
+                    final String oid = getString(line, "oid");
+                    Path tmp = null;
+                    try {
+                        tmp = Files.createTempFile(downloadDir, "fastback-", null);
+                        try (final OutputStream fileOut = Files.newOutputStream(tmp)) {
+                            store.getObject(oid, fileOut);
+                        }
+                        respond(out, "{\"event\":\"complete\",\"oid\":" + quote(oid) + ",\"path\":" + quote(tmp.toString()) + "}");
+                    } catch (Exception e) {
+                        if (tmp != null) Files.deleteIfExists(tmp);
+                        respondError(out, oid, e);
+                    }
+                }
+                case "terminate" -> {
+                    return;
+                }
+                default -> System.err.println("fastback: ignoring unknown event " + event);
+            }
+        }
+    }
+
+    // ======================================================================
+    // Package private
+
+    /**
+     * Pull a top-level string or number out of one of the flat JSON messages git-lfs sends.  Not a general
+     * JSON parser, but there's no JSON library we can count on here.
+     *
+     * @return the value, or null if the key isn't there or its value isn't a string or number.
+     */
+    static String getString(final String json, final String key) {
+        final int keyIndex = json.indexOf('"' + key + '"');
+        if (keyIndex < 0) return null;
+        int i = keyIndex + key.length() + 2;
+        while (i < json.length() && (Character.isWhitespace(json.charAt(i)) || json.charAt(i) == ':')) i++;
+        if (i >= json.length()) return null;
+        if (json.charAt(i) != '"') {
+            final int start = i;
+            while (i < json.length() && (Character.isLetterOrDigit(json.charAt(i)) || json.charAt(i) == '-' || json.charAt(i) == '.')) i++;
+            final String token = json.substring(start, i);
+            return token.isEmpty() || token.equals("null") ? null : token;
+        }
+        final StringBuilder out = new StringBuilder();
+        for (i++; i < json.length(); i++) {
+            final char c = json.charAt(i);
+            if (c == '"') return out.toString();
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+            if (++i >= json.length()) break;
+            switch (json.charAt(i)) {
+                case 'b' -> out.append('\b');
+                case 'f' -> out.append('\f');
+                case 'n' -> out.append('\n');
+                case 'r' -> out.append('\r');
+                case 't' -> out.append('\t');
+                case 'u' -> {
+                    if (i + 4 >= json.length()) return null;
+                    out.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                }
+                default -> out.append(json.charAt(i));
+            }
+        }
+        return null;
+    }
+
+    static String quote(final String s) {
+        final StringBuilder out = new StringBuilder("\"");
+        for (final char c : s.toCharArray()) {
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    // ======================================================================
+    // Private
+
+    private ChunkStoreAgent() {
+    }
+
+    private static void respond(final PrintStream out, final String json) {
+        out.print(json);
+        out.print('\n');
+        out.flush();
+    }
+
+    private static void respondError(final PrintStream out, final String oid, final Exception e) {
+        e.printStackTrace();
+        respond(out, "{\"event\":\"complete\",\"oid\":" + quote(String.valueOf(oid)) +
+                ",\"error\":{\"code\":2,\"message\":" + quote(String.valueOf(e.getMessage())) + "}}");
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.repo.RepoImpl.FASTBACK_DIR;
+import static net.pcal.fastback.repo.StatCache.RACY_WINDOW;
+
+/**
+ * Stat info for the region files that are stored chunked in the current snapshot.  Chunked region files
+ * aren't in the index (the index entry would have to name a blob that was never written), so this stands in
+ * for the index when deciding whether they've changed.
+ * <p>
+ * Like the dirty file journal, the first line records the snapshot the table describes; if that isn't the
+ * current snapshot (say, because another commit engine made it), the table is ignored and the region files
+ * just look new.
+ * <p>
+ * Region files are rewritten in place and are usually the same length afterward, so a region saved again within
+ * the same mtime tick as the one we chunked would look unchanged.  Like StatCache, each entry records when its
+ * stat was taken (by the filesystem's clock), and is only trusted if the mtime is at least StatCache.RACY_WINDOW
+ * older than that.
+ * <pre>
+ * baseline snapshots/[world-id]/2024-01-01_12-00-00
+ * [length] [mtime] [verified] [path]
+ * </pre>
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class ChunkedRegionTable {
+
+    // ======================================================================
+    // Constants
+
+    static final String TABLE_FILE = "chunked-regions";
+    private static final String BASELINE_PREFIX = "baseline ";
+
+    // ======================================================================
+    // Fields
+
+    private final Map<String, Stat> entries;
+    private final Instant verifiedTime;
+
+    // ======================================================================
+    // Factory
+
+    static ChunkedRegionTable load(final Repository repo) throws IOException {
+        final Path file = getTableFile(repo);
+        final ChunkedRegionTable out = new ChunkedRegionTable(new HashMap<>(), StatCache.getFilesystemTime(file.getParent()));
+        if (!Files.exists(file)) return out;
+        final List<String> lines = Files.readAllLines(file, UTF_8);
+        final String branch = repo.getBranch();
+        if (lines.isEmpty() || !lines.get(0).equals(BASELINE_PREFIX + branch)) {
+            syslog().debug("chunked region table is not for the current snapshot, ignoring it");
+            return out;
+        }
+        for (int i = 1; i < lines.size(); i++) {
+            final String[] fields = lines.get(i).split(" ", 4);
+            if (fields.length != 4) continue;
+            try {
+                out.entries.put(fields[3], new Stat(Long.parseLong(fields[0]), Instant.parse(fields[1]), Instant.parse(fields[2])));
+            } catch (NumberFormatException | DateTimeParseException e) {
+                syslog().warn("Ignoring bad line in chunked region table: " + lines.get(i));
+            }
+        }
+        return out;
+    }
+
+    private ChunkedRegionTable(final Map<String, Stat> entries, final Instant verifiedTime) {
+        this.entries = requireNonNull(entries);
+        this.verifiedTime = verifiedTime;
+    }
+
+    // ======================================================================
+    // Package private
+
+    Set<String> getPaths() {
+        return this.entries.keySet();
+    }
+
+    /**
+     * @return true if the file is a chunked region that we can be sure hasn't changed since it was committed.
+     */
+    boolean isUnchanged(final String path, final long length, final Instant lastModified) {
+        final Stat stat = this.entries.get(path);
+        return stat != null && stat.length() == length && stat.lastModified().equals(lastModified) &&
+                lastModified.plus(RACY_WINDOW).isBefore(stat.verified());
+    }
+
+    /**
+     * Record the stat of a region that was read after this table was loaded.
+     */
+    void put(final String path, final long length, final Instant lastModified) {
+        // if we couldn't read the filesystem's clock, the entry is saved but never trusted
+        this.entries.put(path, new Stat(length, lastModified, this.verifiedTime == null ? Instant.EPOCH : this.verifiedTime));
+    }
+
+    void remove(final String path) {
+        this.entries.remove(path);
+    }
+
+    void save(final Repository repo, final String branchName) throws IOException {
+        final List<String> lines = new ArrayList<>(this.entries.size() + 1);
+        lines.add(BASELINE_PREFIX + branchName);
+        this.entries.forEach((path, stat) -> lines.add(stat.length() + " " + stat.lastModified() + " " + stat.verified() + " " + path));
+        Files.write(getTableFile(repo), lines, UTF_8);
+    }
+
+    // ======================================================================
+    // Private
+
+    private record Stat(long length, Instant lastModified, Instant verified) {
+    }
+
+    private static Path getTableFile(final Repository repo) {
+        return repo.getWorkTree().toPath().resolve(FASTBACK_DIR).resolve(TABLE_FILE);
+    }
+}
@@ -20,30 +20,39 @@ package net.pcal.fastback.repo;
 
 import net.pcal.fastback.config.GitConfig;
 import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.repo.IndexUtils.StatChanges;
+import net.pcal.fastback.repo.StagingUtils.StagedChanges;
 import net.pcal.fastback.utils.EnvironmentUtils;
 import net.pcal.fastback.utils.ProcessException;
 import org.apache.commons.io.FileUtils;
-import org.eclipse.jgit.api.AddCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.ResetCommand;
-import org.eclipse.jgit.api.RmCommand;
-import org.eclipse.jgit.api.Status;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Repository;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Consumer;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static net.pcal.fastback.config.FastbackConfigKey.COMMIT_THREADS;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_DIRECT_COMMIT_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_DIRTY_TRACKING_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_FAST_IMPORT_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.IS_MODS_BACKUP_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.IS_NATIVE_GIT_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_REGION_CHUNKING_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_STAGED_COMMIT_ENABLED;
 import static net.pcal.fastback.logging.SystemLogger.syslog;
 import static net.pcal.fastback.logging.UserMessage.UserMessageStyle.ERROR;
 import static net.pcal.fastback.logging.UserMessage.UserMessageStyle.JGIT;
@@ -52,6 +61,7 @@ import static net.pcal.fastback.logging.UserMessage.UserMessageStyle.NORMAL;
 import static net.pcal.fastback.logging.UserMessage.styledLocalized;
 import static net.pcal.fastback.logging.UserMessage.styledRaw;
 import static net.pcal.fastback.mod.Mod.mod;
+import static net.pcal.fastback.repo.DirtyFileFilter.REGION_FILE_SUFFIX;
 import static net.pcal.fastback.repo.RepoImpl.FASTBACK_DIR;
 import static net.pcal.fastback.utils.ProcessUtils.doExec;
 
@@ -64,6 +74,13 @@ import static net.pcal.fastback.utils.ProcessUtils.doExec;
 abstract class CommitUtils {
 
     static SnapshotId doCommitSnapshot(final RepoImpl repo, final UserLogger ulog) throws IOException, ProcessException, GitAPIException {
+        return doCommitSnapshot(repo, ulog, null);
+    }
+
+    /**
+     * @param lfsObjectListener notified of each new lfs object as soon as it's written, or null.
+     */
+    static SnapshotId doCommitSnapshot(final RepoImpl repo, final UserLogger ulog, final Consumer<String> lfsObjectListener) throws IOException, ProcessException, GitAPIException {
         PreflightUtils.doPreflight(repo);
         final WorldId uuid = repo.getWorldId();
         final GitConfig conf = repo.getConfig();
@@ -76,16 +93,40 @@ abstract class CommitUtils {
         }
 
         final String newBranchName = newSid.getBranchName();
+        // always restart the journal, the autoback trigger uses it even if commits don't
+        final Set<String> journaled = DirtyFileJournalImpl.get().startSnapshot(repo, newBranchName);
+        final Set<String> dirtyFiles;
+        if (conf.getBoolean(IS_DIRTY_TRACKING_ENABLED)) {
+            dirtyFiles = journaled;
+            if (dirtyFiles == null) syslog().info("Dirty file journal can't be used for this snapshot, doing a full scan.");
+        } else {
+            dirtyFiles = null;
+        }
+        final boolean staged = conf.getBoolean(IS_STAGED_COMMIT_ENABLED);
+        boolean committed = false;
         try {
             if (conf.getBoolean(IS_NATIVE_GIT_ENABLED)) {
                 ulog.message(styledLocalized("fastback.chat.commit-start", NATIVE_GIT, newSid.getShortName()));
-                native_commit(newBranchName, repo, ulog);
+                if (conf.getBoolean(IS_FAST_IMPORT_ENABLED)) {
+                    FastImportUtils.native_fastImportCommit(newBranchName, dirtyFiles, staged, lfsObjectListener, repo, ulog);
+                    committed = true;
+                } else {
+                    committed = native_commit(newBranchName, dirtyFiles, staged, repo, ulog);
+                }
             } else {
                 ulog.message(styledLocalized("fastback.chat.commit-start", NORMAL, newSid.getShortName()));
-                jgit_commit(newBranchName, repo.getJGit(), ulog);
+                if (conf.getBoolean(IS_DIRECT_COMMIT_ENABLED)) {
+                    DirectCommitUtils.jgit_directCommit(newBranchName, dirtyFiles, staged, conf.getInt(COMMIT_THREADS),
+                            conf.getBoolean(IS_REGION_CHUNKING_ENABLED), repo, ulog);
+                } else {
+                    jgit_commit(newBranchName, dirtyFiles, staged, conf.getInt(COMMIT_THREADS), repo.getJGit(), ulog);
+                }
+                committed = true;
             }
         } catch (GitAPIException | InterruptedException e) {
             throw new IOException(e);
+        } finally {
+            if (!committed) DirtyFileJournal.journal().invalidate(repo.getWorkTree().toPath());
         }
         syslog().debug("Local backup complete.");
         return newSid;
@@ -118,7 +159,7 @@ abstract class CommitUtils {
         }
     }
 
-    private static void native_commit(final String newBranchName, final Repo repo, final UserLogger ulog) throws IOException, InterruptedException {
+    private static boolean native_commit(final String newBranchName, final Set<String> dirtyFiles, final boolean staged, final RepoImpl repo, final UserLogger ulog) throws IOException, InterruptedException {
         syslog().debug("Start native_commit");
         ulog.update(styledLocalized("fastback.hud.local-saving", NATIVE_GIT));
         final File worktree = repo.getWorkTree();
@@ -127,13 +168,29 @@ abstract class CommitUtils {
         String[] checkout = {"git", "-C", worktree.getAbsolutePath(), "checkout", "--orphan", newBranchName};
         try {
             doExec(checkout, env, outputConsumer, outputConsumer);
-            mod().setWorldSaveEnabled(false);
-            try {
-                String[] add = {"git", "-C", worktree.getAbsolutePath(), "add", "-v", "."};
-                doExec(add, env, outputConsumer, outputConsumer);
-            } finally {
-                mod().setWorldSaveEnabled(true);
-                syslog().debug("World save re-enabled.");
+            if (staged) {
+                final Repository jgitRepo = repo.getJGit().getRepository();
+                final StagedChanges changes = StagingUtils.stageChanges(jgitRepo, dirtyFiles);
+                try {
+                    final List<String> paths = new ArrayList<>(changes.changed());
+                    paths.addAll(changes.removed());
+                    native_addPaths(worktree, changes.stagingDir().toFile(), paths, env, outputConsumer);
+                } finally {
+                    StagingUtils.clearStagingDir(jgitRepo);
+                }
+            } else {
+                mod().setWorldSaveEnabled(false);
+                try {
+                    if (dirtyFiles == null) {
+                        String[] add = {"git", "-C", worktree.getAbsolutePath(), "add", "-v", "."};
+                        doExec(add, env, outputConsumer, outputConsumer);
+                    } else {
+                        native_addDirtyFiles(worktree, dirtyFiles, env, outputConsumer);
+                    }
+                } finally {
+                    mod().setWorldSaveEnabled(true);
+                    syslog().debug("World save re-enabled.");
+                }
             }
             {
                 String[] commit = {"git", "-C", worktree.getAbsolutePath(), "commit", "-m", newBranchName};
@@ -142,19 +199,69 @@ abstract class CommitUtils {
         } catch (ProcessException e) {
             syslog().error(e);
             ulog.message(styledLocalized("fastback.chat.commit-failed", ERROR));
-            return;
+            return false;
         }
         syslog().debug("End native_commit");
+        return true;
+    }
+
+    /**
+     * Stage everything except region files the usual way, then stage just the region files that the journal
+     * says were written.  Unchanged region files are already in the index from the previous snapshot, so
+     * git never has to stat or hash them.
+     */
+    private static void native_addDirtyFiles(final File worktree, final Set<String> dirtyFiles, final Map<String, String> env, final Consumer<String> outputConsumer) throws IOException, ProcessException {
+        {
+            String[] add = {"git", "-C", worktree.getAbsolutePath(), "add", "-v", "--", ".", ":(exclude,glob)**/*" + REGION_FILE_SUFFIX};
+            doExec(add, env, outputConsumer, outputConsumer);
+        }
+        final List<String> existing = new ArrayList<>();
+        for (final String path : dirtyFiles) {
+            if (new File(worktree, path).exists()) existing.add(path);
+        }
+        syslog().debug("Adding " + existing.size() + " dirty files");
+        native_addPaths(worktree, worktree, existing, env, outputConsumer);
+    }
+
+    /**
+     * 'git add' exactly the given paths, reading them from the given directory.  The paths are passed in a
+     * file so we don't run into command line limits.
+     */
+    private static void native_addPaths(final File worktree, final File addFrom, final List<String> paths, final Map<String, String> env, final Consumer<String> outputConsumer) throws IOException, ProcessException {
+        if (paths.isEmpty()) return;
+        Collections.sort(paths);
+        final Path pathspecFile = worktree.toPath().resolve(".git").resolve("fastback-pathspec");
+        Files.write(pathspecFile, paths, UTF_8);
+        try {
+            String[] add = {"git", "--literal-pathspecs", "--work-tree=" + addFrom.getAbsolutePath(), "-C", worktree.getAbsolutePath(), "add", "-v", "--pathspec-from-file=" + pathspecFile.toAbsolutePath()};
+            doExec(add, env, outputConsumer, outputConsumer);
+        } finally {
+            Files.deleteIfExists(pathspecFile);
+        }
     }
 
-    private static void jgit_commit(final String newBranchName, final Git jgit, final UserLogger ulog) throws GitAPIException, IOException {
+    private static void jgit_commit(final String newBranchName, final Set<String> dirtyFiles, final boolean staged, final int threadCount, final Git jgit, final UserLogger ulog) throws GitAPIException, IOException {
         syslog().debug("Starting jgit_commit");
         ulog.update(styledLocalized("fastback.hud.local-saving", JGIT));
         jgit.checkout().setOrphan(true).setName(newBranchName).call();
         jgit.reset().setMode(ResetCommand.ResetType.SOFT).call();
-        syslog().debug("status");
-        final Status status = jgit.status().call();
+        final Consumer<String> progress = file -> ulog.update(styledLocalized("fastback.chat.backup-start", JGIT, file));
+        if (staged) {
+            final StagedChanges changes = StagingUtils.stageChanges(jgit.getRepository(), dirtyFiles);
+            try {
+                IndexUtils.stageFiles(jgit.getRepository(), changes.stagingDir().toFile(), changes.changed(), changes.removed(), threadCount, progress);
+            } finally {
+                StagingUtils.clearStagingDir(jgit.getRepository());
+            }
+        } else {
+            jgit_add(dirtyFiles, threadCount, jgit, progress);
+        }
+        syslog().debug("commit");
+        ulog.update(styledLocalized("fastback.chat.commit-complete", JGIT));
+        jgit.commit().setMessage(newBranchName).call();
+    }
 
+    private static void jgit_add(final Set<String> dirtyFiles, final int threadCount, final Git jgit, final Consumer<String> progress) throws IOException {
         try {
 
             syslog().debug("Disabling world save for 'git add'");
@@ -165,47 +272,22 @@ abstract class CommitUtils {
             // Figure out what files to add and remove.  We don't just 'git add .' because this:
             // https://bugs.eclipse.org/bugs/show_bug.cgi?id=494323
             //
-            {
-                final List<String> toAdd = new ArrayList<>();
-                toAdd.add(FASTBACK_DIR);
-                toAdd.addAll(status.getModified());
-                toAdd.addAll(status.getUntracked());
-                Collections.sort(toAdd);
-                if (!toAdd.isEmpty()) {
-                    syslog().debug("Adding " + toAdd.size() + " new or modified files to index");
-
-                    for (final String file : toAdd) {
-                        final AddCommand gitAdd = jgit.add();
-                        syslog().debug("add  " + file);
-                        ulog.update(styledLocalized("fastback.chat.backup-start", JGIT, file));
-                        gitAdd.addFilepattern(file);
-                        gitAdd.call();
-                    }
-                }
-            }
-            {
-                final List<String> toDelete = new ArrayList<>();
-                toDelete.addAll(status.getRemoved());
-                toDelete.addAll(status.getMissing());
-                Collections.sort(toDelete);
-                if (!toDelete.isEmpty()) {
-                    syslog().debug("Removing " + toDelete.size() + " deleted files from index");
-                    for (final String file : toDelete) {
-                        final RmCommand gitRm = jgit.rm();
-                        syslog().debug("rm  " + file);
-                        ulog.update(styledLocalized("fastback.chat.backup-start", JGIT, file));
-                        gitRm.addFilepattern(file);
-                        gitRm.call();
-                    }
-                }
-            }
+            // This only compares stat info.  Files that are racily clean in the index get sorted out by
+            // stageFiles, which can usually use the stat cache rather than reading them again.
+            //
+            final StatChanges status = IndexUtils.findStatChanges(jgit.getRepository(), dirtyFiles);
+            final List<String> toAdd = new ArrayList<>();
+            toAdd.add(FASTBACK_DIR);
+            toAdd.addAll(status.changed());
+            Collections.sort(toAdd);
+            final List<String> toDelete = new ArrayList<>(status.removed());
+            Collections.sort(toDelete);
+            syslog().debug("Staging " + toAdd.size() + " new or modified and " + toDelete.size() + " deleted files");
+            IndexUtils.stageFiles(jgit.getRepository(), toAdd, toDelete, threadCount, progress);
         } finally {
             mod().setWorldSaveEnabled(true);
             syslog().debug("World save re-enabled.");
         }
-        syslog().debug("commit");
-        ulog.update(styledLocalized("fastback.chat.commit-complete", JGIT));
-        jgit.commit().setMessage(newBranchName).call();
     }
 
     private static void writeBackupProperties(Repo repo) throws IOException {
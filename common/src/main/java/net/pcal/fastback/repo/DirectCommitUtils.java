@@ -0,0 +1,283 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.repo.IndexUtils.StatChanges;
+import net.pcal.fastback.repo.IndexUtils.UpdateEntry;
+import net.pcal.fastback.repo.RegionChunkUtils.ChunkedRegion;
+import net.pcal.fastback.repo.StagingUtils.StagedChanges;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEditor.DeletePath;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.util.Paths;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.logging.UserMessage.UserMessageStyle.JGIT;
+import static net.pcal.fastback.logging.UserMessage.styledLocalized;
+import static net.pcal.fastback.mod.Mod.mod;
+import static net.pcal.fastback.repo.DirtyFileFilter.REGION_FILE_SUFFIX;
+import static net.pcal.fastback.repo.RegionChunkUtils.CHUNKED_SUFFIX;
+
+/**
+ * Commits snapshots with jgit by building the new tree directly, rather than going through checkout, reset,
+ * status, add and commit.
+ * <p>
+ * The new tree starts from the previous snapshot's tree.  Only the trees along the paths to changed files are
+ * re-written; every other subtree (usually most of region/, entities/ and poi/) is reused by id without even
+ * being read.  The commit and the branch ref are then written with a single RefUpdate.
+ * <p>
+ * The index is still used as a stat cache for finding changed files, so afterward the entries for the changed
+ * files are refreshed and HEAD is linked to the new branch.  That keeps everything consistent with the other
+ * ways of committing, so they can be switched between freely.
+ * <p>
+ * If region chunking is enabled, region files are stored as trees of chunks (see RegionChunkUtils).  Their
+ * index entries are removed, and ChunkedRegionTable keeps their stat info instead.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+abstract class DirectCommitUtils {
+
+    static void jgit_directCommit(final String newBranchName, final Set<String> dirtyFiles, final boolean staged, final int threadCount, final boolean regionChunking, final RepoImpl repo, final UserLogger ulog) throws IOException {
+        syslog().debug("Start jgit_directCommit");
+        ulog.update(styledLocalized("fastback.hud.local-saving", JGIT));
+        final Repository jgitRepo = repo.getJGit().getRepository();
+        final Consumer<String> progress = file -> ulog.update(styledLocalized("fastback.chat.backup-start", JGIT, file));
+        final ChunkedRegionTable chunkedRegions = ChunkedRegionTable.load(jgitRepo);
+        final HashedChanges hashed;
+        final List<String> removed;
+        if (staged) {
+            final StagedChanges changes = StagingUtils.stageChanges(jgitRepo, dirtyFiles, chunkedRegions);
+            try {
+                removed = changes.removed();
+                hashed = hashChanges(jgitRepo, changes.stagingDir().toFile(), changes.changed(), removed, threadCount, regionChunking, progress);
+            } finally {
+                StagingUtils.clearStagingDir(jgitRepo);
+            }
+        } else {
+            mod().setWorldSaveEnabled(false);
+            try {
+                final StatChanges changes = IndexUtils.findStatChanges(jgitRepo, dirtyFiles, chunkedRegions);
+                removed = changes.removed();
+                hashed = hashChanges(jgitRepo, jgitRepo.getWorkTree(), changes.changed(), removed, threadCount, regionChunking, progress);
+            } finally {
+                mod().setWorldSaveEnabled(true);
+                syslog().debug("World save re-enabled.");
+            }
+        }
+        final List<UpdateEntry> updates = hashed.updates();
+        final ObjectId commitId;
+        try (final ObjectInserter inserter = jgitRepo.newObjectInserter();
+             final ObjectReader reader = inserter.newReader()) {
+            final NavigableMap<String, UpdateEntry> changes = new TreeMap<>();
+            // a region file is stored either whole or chunked, so whichever way it's written, remove the other
+            for (final UpdateEntry update : updates) {
+                changes.put(update.getPath(), update);
+                if (isRegionFile(update.getPath())) {
+                    changes.put(update.getPath() + CHUNKED_SUFFIX, null);
+                    chunkedRegions.remove(update.getPath());
+                }
+            }
+            for (final ChunkedRegion region : hashed.chunkedRegions()) {
+                final String chunkedPath = region.path() + CHUNKED_SUFFIX;
+                changes.put(region.path(), null);
+                changes.put(chunkedPath, new UpdateEntry(chunkedPath, FileMode.TREE, 0, region.lastModified(), region.treeId()));
+                chunkedRegions.put(region.path(), region.length(), region.lastModified());
+            }
+            for (final String path : removed) {
+                changes.put(path, null);
+                if (isRegionFile(path)) {
+                    changes.put(path + CHUNKED_SUFFIX, null);
+                    chunkedRegions.remove(path);
+                }
+            }
+            final ObjectId baseTree = getBaseTree(jgitRepo, inserter);
+            ObjectId newTree = rewriteTree(reader, inserter, baseTree, "", changes);
+            if (newTree == null) newTree = inserter.insert(new TreeFormatter());
+            final PersonIdent ident = new PersonIdent(jgitRepo);
+            final CommitBuilder commit = new CommitBuilder();
+            commit.setTreeId(newTree);
+            commit.setAuthor(ident);
+            commit.setCommitter(ident);
+            commit.setMessage(newBranchName);
+            commitId = inserter.insert(commit);
+            inserter.flush();
+        }
+        ulog.update(styledLocalized("fastback.chat.commit-complete", JGIT));
+        {
+            final RefUpdate ru = jgitRepo.updateRef(Constants.R_HEADS + newBranchName);
+            ru.setNewObjectId(commitId);
+            ru.setExpectedOldObjectId(ObjectId.zeroId());
+            ru.setRefLogMessage("commit (initial): " + newBranchName, false);
+            final RefUpdate.Result result = ru.update();
+            if (result != RefUpdate.Result.NEW) {
+                throw new IOException("Failed to create branch " + newBranchName + ": " + result);
+            }
+        }
+        final DirCache dc = jgitRepo.lockDirCache();
+        try {
+            final DirCacheEditor editor = dc.editor();
+            updates.forEach(editor::add);
+            removed.forEach(path -> editor.add(new DeletePath(path)));
+            hashed.chunkedRegions().forEach(region -> editor.add(new DeletePath(region.path())));
+            editor.commit();
+        } finally {
+            dc.unlock();
+        }
+        final RefUpdate.Result result = jgitRepo.updateRef(Constants.HEAD).link(Constants.R_HEADS + newBranchName);
+        if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED && result != RefUpdate.Result.NO_CHANGE) {
+            throw new IOException("Failed to point HEAD at " + newBranchName + ": " + result);
+        }
+        if (regionChunking || !chunkedRegions.getPaths().isEmpty()) chunkedRegions.save(jgitRepo, newBranchName);
+        syslog().debug("End jgit_directCommit, " + updates.size() + " files changed, " +
+                hashed.chunkedRegions().size() + " regions chunked, " + removed.size() + " removed");
+    }
+
+    private record HashedChanges(List<UpdateEntry> updates, List<ChunkedRegion> chunkedRegions) {
+    }
+
+    /**
+     * Write blobs for the changed files, splitting region files into chunks if regionChunking is set.
+     *
+     * @param removed files that are gone, which the StatCache can forget.
+     */
+    private static HashedChanges hashChanges(final Repository repo,
+                                             final File workTree,
+                                             final List<String> changed,
+                                             final List<String> removed,
+                                             final int threadCount,
+                                             final boolean regionChunking,
+                                             final Consumer<String> progress) throws IOException {
+        if (!regionChunking) {
+            return new HashedChanges(IndexUtils.hashFiles(repo, workTree, changed, removed, threadCount, progress), List.of());
+        }
+        final List<String> regions = new ArrayList<>();
+        final List<String> others = new ArrayList<>();
+        for (final String path : changed) (isRegionFile(path) ? regions : others).add(path);
+        // chunked regions aren't blobs, so the cache has no use for them either
+        final List<String> forget = new ArrayList<>(removed);
+        forget.addAll(regions);
+        return new HashedChanges(IndexUtils.hashFiles(repo, workTree, others, forget, threadCount, progress),
+                RegionChunkUtils.insertChunkedRegions(repo, workTree, regions, progress));
+    }
+
+    private static boolean isRegionFile(final String path) {
+        return path.endsWith(REGION_FILE_SUFFIX);
+    }
+
+    /**
+     * @return the tree of the current snapshot.  If there isn't one (e.g., the last commit failed partway
+     * through), fall back to the tree in the index.
+     */
+    private static ObjectId getBaseTree(final Repository repo, final ObjectInserter inserter) throws IOException {
+        final ObjectId headTree = repo.resolve(Constants.HEAD + "^{tree}");
+        if (headTree != null) return headTree;
+        syslog().debug("HEAD doesn't resolve, building from the index");
+        return repo.readDirCache().writeTree(inserter);
+    }
+
+    /**
+     * Apply changes to a tree, recursing into just the subtrees that have changes under them.
+     *
+     * @param treeId  the existing tree, or null if there isn't one.
+     * @param prefix  path of the tree relative to the root, with a trailing slash (or empty for the root).
+     * @param changes new entries for the changed paths under prefix, with null values for removed paths.
+     * @return the id of the new tree, or null if it's empty.
+     */
+    static ObjectId rewriteTree(final ObjectReader reader,
+                                final ObjectInserter inserter,
+                                final ObjectId treeId,
+                                final String prefix,
+                                final NavigableMap<String, UpdateEntry> changes) throws IOException {
+        final Map<String, TreeEntry> entries = new HashMap<>();
+        if (treeId != null) {
+            final CanonicalTreeParser parser = new CanonicalTreeParser(null, reader, treeId);
+            while (!parser.eof()) {
+                final String name = parser.getEntryPathString();
+                entries.put(name, new TreeEntry(name, parser.getEntryFileMode(), parser.getEntryObjectId()));
+                parser.next();
+            }
+        }
+        final Set<String> changedDirs = new LinkedHashSet<>();
+        for (final Map.Entry<String, UpdateEntry> change : changes.entrySet()) {
+            final String name = change.getKey().substring(prefix.length());
+            final int slash = name.indexOf('/');
+            if (slash >= 0) {
+                changedDirs.add(name.substring(0, slash));
+            } else if (change.getValue() == null) {
+                entries.remove(name);
+            } else {
+                entries.put(name, new TreeEntry(name, change.getValue().getMode(), change.getValue().getObjectId()));
+            }
+        }
+        for (final String dir : changedDirs) {
+            final String dirPrefix = prefix + dir + "/";
+            final TreeEntry existing = entries.get(dir);
+            final ObjectId existingTree = existing != null && existing.mode() == FileMode.TREE ? existing.id() : null;
+            final ObjectId newTree = rewriteTree(reader, inserter, existingTree, dirPrefix,
+                    changes.subMap(dirPrefix, true, dirPrefix + Character.MAX_VALUE, false));
+            if (newTree == null) {
+                entries.remove(dir);
+            } else {
+                entries.put(dir, new TreeEntry(dir, FileMode.TREE, newTree));
+            }
+        }
+        if (entries.isEmpty()) return null;
+        final List<TreeEntry> sorted = new ArrayList<>(entries.values());
+        sorted.sort((a, b) -> Paths.compare(a.nameBytes(), 0, a.nameBytes().length, a.mode().getBits(),
+                b.nameBytes(), 0, b.nameBytes().length, b.mode().getBits()));
+        final TreeFormatter formatter = new TreeFormatter();
+        for (final TreeEntry entry : sorted) {
+            formatter.append(entry.nameBytes(), entry.mode(), entry.id());
+        }
+        return inserter.insert(formatter);
+    }
+
+    private record TreeEntry(String name, FileMode mode, ObjectId id) {
+
+        byte[] nameBytes() {
+            return name.getBytes(UTF_8);
+        }
+    }
+}
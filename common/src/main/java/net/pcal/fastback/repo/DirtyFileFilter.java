@@ -0,0 +1,66 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * TreeFilter that skips region files which the dirty file journal says haven't been written.  Everything
+ * else is included, so small files like level.dat still get picked up by the usual scan.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class DirtyFileFilter extends TreeFilter {
+
+    static final String REGION_FILE_SUFFIX = ".mca";
+
+    private final Set<String> dirtyPaths;
+
+    DirtyFileFilter(final Set<String> dirtyPaths) {
+        this.dirtyPaths = requireNonNull(dirtyPaths);
+    }
+
+    @Override
+    public boolean include(final TreeWalk walker) {
+        if (walker.isSubtree()) return true;
+        final String path = walker.getPathString();
+        return !path.endsWith(REGION_FILE_SUFFIX) || this.dirtyPaths.contains(path);
+    }
+
+    @Override
+    public boolean shouldBeRecursive() {
+        return true;
+    }
+
+    @Override
+    public TreeFilter clone() {
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "DIRTY_FILES(" + this.dirtyPaths.size() + ")";
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * Keeps track of which world files the server has actually written since the last snapshot, so that commits
+ * can skip scanning (and hashing) region files that haven't changed, and autobacks can tell whether there's
+ * anything worth backing up.
+ * <p>
+ * The journal is persisted in .fastback/dirty-files so that it survives across commits.  It's only trusted
+ * if it was started at the snapshot that is currently checked out; if there's any doubt, the commit falls
+ * back to a full scan of the world.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+public interface DirtyFileJournal {
+
+    static DirtyFileJournal journal() {
+        return Singleton.INSTANCE;
+    }
+
+    /**
+     * Record that the given file in the given world was written.  Called from the server's IO threads
+     * and must be cheap.
+     */
+    void recordWrite(Path worldSaveDir, Path writtenFile);
+
+    /**
+     * Mark the journal for the given world as untrusted.  This should be done whenever files may have been
+     * written without our knowledge, e.g., when the world starts.  The next commit will do a full scan.
+     */
+    void invalidate(Path worldSaveDir);
+
+    /**
+     * Never trust the journal again, for a platform that can't tell us about every write.  Every commit will do
+     * a full scan.
+     */
+    void disable();
+
+    /**
+     * @return the files in the given world that have been written since the last snapshot, or null if the
+     * journal can't be trusted to know (e.g., there hasn't been a snapshot since the world started).
+     */
+    Set<String> getDirtyFiles(Path worldSaveDir);
+
+    class Singleton {
+        private static final DirtyFileJournal INSTANCE = DirtyFileJournalImpl.get();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.repo.RepoImpl.FASTBACK_DIR;
+
+/**
+ * The journal file is just a list of paths relative to the world directory.  The first line records the
+ * snapshot branch the journal is relative to:
+ * <pre>
+ * baseline snapshots/[world-id]/2024-01-01_12-00-00
+ * region/r.0.0.mca
+ * DIM-1/region/r.-1.2.mca
+ * </pre>
+ * If the first line is anything else, the journal is untrusted.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class DirtyFileJournalImpl implements DirtyFileJournal {
+
+    // ======================================================================
+    // Constants
+
+    static final String JOURNAL_FILE = "dirty-files";
+    private static final String BASELINE_PREFIX = "baseline ";
+    private static final String UNTRUSTED = "untrusted";
+    private static final DirtyFileJournalImpl INSTANCE = new DirtyFileJournalImpl();
+
+    // ======================================================================
+    // Fields
+
+    private Path worldSaveDir = null;
+    private String baseline = null;
+    private final Set<String> dirtyPaths = new HashSet<>();
+    private boolean disabled = false;
+
+    // ======================================================================
+    // Factory
+
+    static DirtyFileJournalImpl get() {
+        return INSTANCE;
+    }
+
+    private DirtyFileJournalImpl() {
+    }
+
+    // ======================================================================
+    // DirtyFileJournal implementation
+
+    @Override
+    public synchronized void recordWrite(final Path worldSaveDir, final Path writtenFile) {
+        final Path world = worldSaveDir.toAbsolutePath().normalize();
+        final Path file = writtenFile.toAbsolutePath().normalize();
+        if (!file.startsWith(world)) return;
+        try {
+            ensureLoaded(world);
+            final String relPath = toGitPath(world.relativize(file));
+            if (this.dirtyPaths.add(relPath)) {
+                final Path journalFile = getJournalFile(world);
+                if (Files.isDirectory(journalFile.getParent())) {
+                    if (!Files.exists(journalFile)) {
+                        Files.writeString(journalFile, UNTRUSTED + "\n", UTF_8, CREATE);
+                    }
+                    Files.writeString(journalFile, relPath + "\n", UTF_8, CREATE, APPEND);
+                }
+            }
+        } catch (IOException e) {
+            syslog().error("Failed to record write to " + writtenFile, e);
+            this.baseline = null;
+        }
+    }
+
+    @Override
+    public synchronized void invalidate(final Path worldSaveDir) {
+        final Path world = worldSaveDir.toAbsolutePath().normalize();
+        try {
+            ensureLoaded(world);
+            this.baseline = null;
+            rewrite(world);
+        } catch (IOException e) {
+            syslog().error("Failed to invalidate dirty file journal", e);
+        }
+    }
+
+    @Override
+    public synchronized void disable() {
+        syslog().debug("dirty file journal disabled");
+        this.disabled = true;
+    }
+
+    @Override
+    public synchronized Set<String> getDirtyFiles(final Path worldSaveDir) {
+        try {
+            ensureLoaded(worldSaveDir.toAbsolutePath().normalize());
+        } catch (IOException e) {
+            syslog().error("Failed to load dirty file journal", e);
+            return null;
+        }
+        return this.baseline == null || this.disabled ? null : Set.copyOf(this.dirtyPaths);
+    }
+
+    // ======================================================================
+    // Package private
+
+    /**
+     * Called just before a new snapshot starts staging files.  Returns the files that have been written since
+     * the current snapshot was committed, or null if we don't know (in which case the caller should scan
+     * everything).  The journal is then reset so that it starts recording writes relative to the new
+     * snapshot; if the commit fails, the caller must call invalidate().
+     */
+    synchronized Set<String> startSnapshot(final RepoImpl repo, final String newBranchName) throws IOException {
+        final Path world = repo.getWorkTree().toPath().toAbsolutePath().normalize();
+        ensureLoaded(world);
+        final Set<String> out;
+        final Repository jgitRepo = repo.getJGit().getRepository();
+        if (this.baseline == null || this.disabled) {
+            syslog().debug("dirty file journal is untrusted");
+            out = null;
+        } else if (!this.baseline.equals(jgitRepo.getBranch()) || jgitRepo.resolve(Constants.HEAD) == null) {
+            syslog().debug("dirty file journal baseline " + this.baseline + " is not the current snapshot");
+            out = null;
+        } else {
+            out = new HashSet<>(this.dirtyPaths);
+            syslog().debug("dirty file journal has " + out.size() + " files");
+        }
+        this.baseline = requireNonNull(newBranchName);
+        this.dirtyPaths.clear();
+        rewrite(world);
+        return out;
+    }
+
+    // ======================================================================
+    // Private
+
+    private void ensureLoaded(final Path world) throws IOException {
+        if (world.equals(this.worldSaveDir)) return;
+        this.worldSaveDir = world;
+        this.baseline = null;
+        this.dirtyPaths.clear();
+        final Path journalFile = getJournalFile(world);
+        if (!Files.exists(journalFile)) return;
+        final List<String> lines = Files.readAllLines(journalFile, UTF_8);
+        if (lines.isEmpty()) return;
+        if (lines.get(0).startsWith(BASELINE_PREFIX)) {
+            this.baseline = lines.get(0).substring(BASELINE_PREFIX.length());
+        }
+        for (int i = 1; i < lines.size(); i++) {
+            if (!lines.get(i).isBlank()) this.dirtyPaths.add(lines.get(i));
+        }
+    }
+
+    private void rewrite(final Path world) throws IOException {
+        final Path journalFile = getJournalFile(world);
+        if (!Files.isDirectory(journalFile.getParent())) return;
+        final List<String> lines = new ArrayList<>(this.dirtyPaths.size() + 1);
+        lines.add(this.baseline == null ? UNTRUSTED : BASELINE_PREFIX + this.baseline);
+        lines.addAll(this.dirtyPaths);
+        Files.write(journalFile, lines, UTF_8);
+    }
+
+    private static Path getJournalFile(final Path world) {
+        return world.resolve(FASTBACK_DIR).resolve(JOURNAL_FILE);
+    }
+
+    private static String toGitPath(final Path relPath) {
+        return relPath.toString().replace('\\', '/');
+    }
+}
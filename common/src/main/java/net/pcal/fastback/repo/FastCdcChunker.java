@@ -0,0 +1,135 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream into content-defined chunks using FastCDC (Xia et al., "FastCDC: a Fast and Efficient
+ * Content-Defined Chunking Approach for Data Deduplication").
+ * <p>
+ * Cut points are chosen by a rolling gear hash over the content itself, so inserting or removing bytes only
+ * moves the boundaries near the edit; the chunks after it come out the same as before and deduplicate.
+ * Chunks are between MIN_SIZE and MAX_SIZE bytes, and normalized chunking keeps most of them close to
+ * AVG_SIZE.
+ * <p>
+ * The gear table and masks determine where every chunk boundary falls, so changing them would stop new
+ * chunks from matching anything already in a store.  Don't.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class FastCdcChunker {
+
+    // ======================================================================
+    // Constants
+
+    static final int MIN_SIZE = 16 * 1024;
+    static final int AVG_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+    // harder to match before AVG_SIZE, easier after, per the normalized chunking in the paper (level 2)
+    private static final long MASK_S = topBits(18);
+    private static final long MASK_L = topBits(14);
+    private static final long[] GEAR = createGearTable(0x6661737462616b31L);
+
+    // ======================================================================
+    // Fields
+
+    private final InputStream in;
+    private final byte[] buf = new byte[MAX_SIZE];
+    private int length = 0;
+    private boolean eof = false;
+
+    // ======================================================================
+    // Constructor
+
+    FastCdcChunker(final InputStream in) {
+        this.in = in;
+    }
+
+    // ======================================================================
+    // Package private
+
+    /**
+     * @return the next chunk, or null at the end of the stream.
+     */
+    byte[] next() throws IOException {
+        while (!this.eof && this.length < this.buf.length) {
+            final int read = this.in.read(this.buf, this.length, this.buf.length - this.length);
+            if (read < 0) {
+                this.eof = true;
+            } else {
+                this.length += read;
+            }
+        }
+        if (this.length == 0) return null;
+        final int cut = findCut(this.buf, this.length);
+        final byte[] out = Arrays.copyOf(this.buf, cut);
+        System.arraycopy(this.buf, cut, this.buf, 0, this.length - cut);
+        this.length -= cut;
+        return out;
+    }
+
+    /**
+     * @return the length of the chunk at the start of the buffer.
+     */
+    static int findCut(final byte[] buf, final int length) {
+        if (length <= MIN_SIZE) return length;
+        final int normal = Math.min(AVG_SIZE, length);
+        final int max = Math.min(MAX_SIZE, length);
+        long fp = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            fp = (fp << 1) + GEAR[buf[i] & 0xff];
+            if ((fp & MASK_S) == 0) return i + 1;
+        }
+        for (; i < max; i++) {
+            fp = (fp << 1) + GEAR[buf[i] & 0xff];
+            if ((fp & MASK_L) == 0) return i + 1;
+        }
+        return max;
+    }
+
+    // ======================================================================
+    // Private
+
+    /**
+     * The high bits of a gear hash depend on the most bytes, so that's where the masks look.
+     */
+    private static long topBits(final int bits) {
+        return -1L << (Long.SIZE - bits);
+    }
+
+    /**
+     * Fixed pseudo-random table, generated with splitmix64 so it can never change out from under us.
+     */
+    private static long[] createGearTable(long seed) {
+        final long[] out = new long[256];
+        for (int i = 0; i < out.length; i++) {
+            seed += 0x9e3779b97f4a7c15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            out[i] = z ^ (z >>> 31);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
+
+/**
+ * A long-running 'git fast-import' process for a single world repo.  Snapshots are streamed into it as
+ * orphan commits, which saves us from spawning git and re-reading the index several times for every backup.
+ * <p>
+ * Sessions are kept open between snapshots and must be closed when the world stops, or before anything
+ * that might delete objects (e.g., gc); fast-import remembers which objects it has already written and
+ * would otherwise happily reference ones that are gone.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class FastImportSession implements Closeable {
+
+    // ======================================================================
+    // Constants
+
+    private static final int STDERR_LINES_TO_KEEP = 20;
+    private static final Map<Path, FastImportSession> SESSIONS = new HashMap<>();
+
+    // ======================================================================
+    // Fields
+
+    private final Process process;
+    private final OutputStream out;
+    private final BufferedReader in;
+    private final Deque<String> stderrTail = new ArrayDeque<>();
+    private int checkpointCount = 0;
+
+    // ======================================================================
+    // Factory
+
+    /**
+     * @return the session for the given work tree, starting a new one if necessary.
+     */
+    static synchronized FastImportSession get(final Path worktree) throws IOException {
+        final Path key = worktree.toAbsolutePath().normalize();
+        FastImportSession session = SESSIONS.get(key);
+        if (session != null && session.process.isAlive()) return session;
+        if (session != null) session.close();
+        session = new FastImportSession(key);
+        SESSIONS.put(key, session);
+        return session;
+    }
+
+    /**
+     * Shut down the session for the given work tree, if there is one.
+     */
+    static synchronized void close(final Path worktree) {
+        final FastImportSession session = SESSIONS.remove(worktree.toAbsolutePath().normalize());
+        if (session != null) session.close();
+    }
+
+    private FastImportSession(final Path worktree) throws IOException {
+        final String[] args = {"git", "-C", worktree.toString(), "fast-import", "--quiet", "--done"};
+        syslog().debug("Starting " + String.join(" ", args));
+        this.process = new ProcessBuilder(args).start();
+        this.out = new BufferedOutputStream(this.process.getOutputStream(), 64 * 1024);
+        this.in = new BufferedReader(new InputStreamReader(this.process.getInputStream(), UTF_8));
+        final Thread stderrDrain = new Thread(this::drainStderr, "fastback-fast-import");
+        stderrDrain.setDaemon(true);
+        stderrDrain.start();
+    }
+
+    // ======================================================================
+    // Stream commands
+
+    /**
+     * Start a new parentless commit on the given branch, with the given tree as the starting point.
+     */
+    void startCommit(final String branchName, final PersonIdent ident, final String message, final ObjectId baseTree) throws IOException {
+        final byte[] messageBytes = message.getBytes(UTF_8);
+        writeLine("commit " + Constants.R_HEADS + branchName);
+        writeLine("committer " + ident.toExternalString());
+        writeLine("data " + messageBytes.length);
+        this.out.write(messageBytes);
+        writeLine("");
+        if (baseTree != null) writeLine("M 040000 " + baseTree.name() + " \"\"");
+    }
+
+    /**
+     * Write the contents of a file into the current commit.
+     *
+     * @return the id of the new blob.
+     */
+    ObjectId modify(final FileMode mode, final String path, final long length, final InputStream content) throws IOException {
+        writeLine("M " + mode.toString() + " inline " + quote(path));
+        writeLine("data " + length);
+        final MessageDigest md = Constants.newMessageDigest();
+        md.update(Constants.encodedTypeString(OBJ_BLOB));
+        md.update((byte) ' ');
+        md.update(Long.toString(length).getBytes(UTF_8));
+        md.update((byte) 0);
+        final byte[] buf = new byte[64 * 1024];
+        long remaining = length;
+        while (remaining > 0) {
+            final int read = content.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (read < 0) throw new EOFException("File got shorter while importing " + path);
+            md.update(buf, 0, read);
+            this.out.write(buf, 0, read);
+            remaining -= read;
+        }
+        writeLine("");
+        return ObjectId.fromRaw(md.digest());
+    }
+
+    void delete(final String path) throws IOException {
+        writeLine("D " + quote(path));
+    }
+
+    /**
+     * Have fast-import write out everything it has so far and update the refs, and wait for it to finish.
+     */
+    void checkpoint() throws IOException {
+        final String token = "progress fastback-" + (++this.checkpointCount);
+        writeLine("");
+        writeLine("checkpoint");
+        writeLine("");
+        writeLine(token);
+        writeLine("");
+        this.out.flush();
+        String line;
+        while ((line = this.in.readLine()) != null) {
+            if (line.equals(token)) return;
+            syslog().debug("[fast-import] " + line);
+        }
+        throw new IOException("fast-import exited unexpectedly: " + getStderrTail());
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (this.process.isAlive()) {
+                writeLine("done");
+                this.out.close();
+                if (!this.process.waitFor(30, TimeUnit.SECONDS)) {
+                    syslog().warn("fast-import didn't exit, killing it");
+                    this.process.destroy();
+                }
+            }
+        } catch (IOException e) {
+            syslog().debug("fast-import already gone: " + e.getMessage());
+            this.process.destroy();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.process.destroy();
+        }
+    }
+
+    // ======================================================================
+    // Private
+
+    private void writeLine(final String line) throws IOException {
+        this.out.write(line.getBytes(UTF_8));
+        this.out.write('\n');
+    }
+
+    private void drainStderr() {
+        try (final BufferedReader err = new BufferedReader(new InputStreamReader(this.process.getErrorStream(), UTF_8))) {
+            String line;
+            while ((line = err.readLine()) != null) {
+                syslog().debug("[fast-import STDERR] " + line);
+                synchronized (this.stderrTail) {
+                    this.stderrTail.addLast(line);
+                    if (this.stderrTail.size() > STDERR_LINES_TO_KEEP) this.stderrTail.removeFirst();
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private String getStderrTail() {
+        synchronized (this.stderrTail) {
+            return String.join("\n", this.stderrTail);
+        }
+    }
+
+    /**
+     * Paths only need quoting in fast-import if they start with a quote or contain a newline.
+     */
+    private static String quote(final String path) {
+        requireNonNull(path);
+        if (!path.startsWith("\"") && path.indexOf('\n') < 0) return path;
+        return '"' + path.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.repo.IndexUtils.StatChanges;
+import net.pcal.fastback.repo.IndexUtils.UpdateEntry;
+import net.pcal.fastback.repo.StagingUtils.StagedChanges;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEditor.DeletePath;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.logging.UserMessage.UserMessageStyle.NATIVE_GIT;
+import static net.pcal.fastback.logging.UserMessage.styledLocalized;
+import static net.pcal.fastback.mod.Mod.mod;
+
+/**
+ * Utilities for committing snapshots through a FastImportSession.
+ * <p>
+ * The new snapshot's tree starts out as the tree of the current index (i.e., the previous snapshot), and
+ * only the files whose stat info has changed are streamed in.  Since fast-import doesn't know about lfs, we
+ * write the lfs objects and pointers ourselves.  Afterwards, the index is updated with the new blob ids and
+ * stat info, and HEAD is pointed at the new branch, so that everything looks just like it would after
+ * 'git checkout --orphan' / 'git add' / 'git commit'.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+abstract class FastImportUtils {
+
+    private static final String LFS_FILTER = "lfs";
+
+    /**
+     * @param lfsObjectListener notified of each lfs object that's added to .git/lfs/objects, or null.
+     */
+    static void native_fastImportCommit(final String newBranchName, final Set<String> dirtyFiles, final boolean staged, final Consumer<String> lfsObjectListener, final RepoImpl repo, final UserLogger ulog) throws IOException {
+        syslog().debug("Start native_fastImportCommit");
+        ulog.update(styledLocalized("fastback.hud.local-saving", NATIVE_GIT));
+        final Repository jgitRepo = repo.getJGit().getRepository();
+        final Path worktree = jgitRepo.getWorkTree().toPath();
+        final List<UpdateEntry> updates;
+        final List<String> removed;
+        try {
+            if (staged) {
+                final StagedChanges changes = StagingUtils.stageChanges(jgitRepo, dirtyFiles);
+                try {
+                    removed = changes.removed();
+                    updates = importSnapshot(jgitRepo, newBranchName, changes.stagingDir(), changes.changed(), removed, lfsObjectListener, ulog);
+                } finally {
+                    StagingUtils.clearStagingDir(jgitRepo);
+                }
+            } else {
+                mod().setWorldSaveEnabled(false);
+                try {
+                    final StatChanges changes = IndexUtils.findStatChanges(jgitRepo, dirtyFiles);
+                    removed = changes.removed();
+                    updates = importSnapshot(jgitRepo, newBranchName, worktree, changes.changed(), removed, lfsObjectListener, ulog);
+                } finally {
+                    mod().setWorldSaveEnabled(true);
+                    syslog().debug("World save re-enabled.");
+                }
+            }
+        } catch (IOException e) {
+            // we don't know what state the stream is in, so start over next time
+            FastImportSession.close(worktree);
+            throw e;
+        }
+        final DirCache dc = jgitRepo.lockDirCache();
+        try {
+            final DirCacheEditor editor = dc.editor();
+            updates.forEach(editor::add);
+            removed.forEach(path -> editor.add(new DeletePath(path)));
+            editor.commit();
+        } finally {
+            dc.unlock();
+        }
+        final RefUpdate head = jgitRepo.updateRef(Constants.HEAD);
+        final RefUpdate.Result result = head.link(Constants.R_HEADS + newBranchName);
+        if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED && result != RefUpdate.Result.NO_CHANGE) {
+            throw new IOException("Failed to point HEAD at " + newBranchName + ": " + result);
+        }
+        syslog().debug("End native_fastImportCommit, " + updates.size() + " files changed, " + removed.size() + " removed");
+    }
+
+    private static List<UpdateEntry> importSnapshot(final Repository repo,
+                                                    final String newBranchName,
+                                                    final Path readFrom,
+                                                    final List<String> changed,
+                                                    final List<String> removed,
+                                                    final Consumer<String> lfsObjectListener,
+                                                    final UserLogger ulog) throws IOException {
+        final ObjectId baseTree;
+        try (final ObjectInserter inserter = repo.newObjectInserter()) {
+            baseTree = repo.readDirCache().writeTree(inserter);
+            inserter.flush();
+        }
+        final Set<String> lfsPaths = findLfsPaths(repo, changed);
+        final boolean trustExecutable = repo.getFS().supportsExecute() &&
+                repo.getConfig().getBoolean(ConfigConstants.CONFIG_CORE_SECTION, ConfigConstants.CONFIG_KEY_FILEMODE, true);
+        final FastImportSession session = FastImportSession.get(repo.getWorkTree().toPath());
+        session.startCommit(newBranchName, new PersonIdent(repo), newBranchName + "\n", baseTree);
+        final List<UpdateEntry> updates = new ArrayList<>(changed.size());
+        for (final String path : changed) {
+            ulog.update(styledLocalized("fastback.chat.backup-start", NATIVE_GIT, path));
+            final Path file = readFrom.resolve(path);
+            final FileMode mode = trustExecutable && repo.getFS().canExecute(file.toFile()) ?
+                    FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE;
+            final long length = Files.size(file);
+            final Instant lastModified = Files.getLastModifiedTime(file).toInstant();
+            final ObjectId id;
+            if (lfsPaths.contains(path)) {
+                final byte[] pointer = writeLfsObject(repo, file, length, lfsObjectListener);
+                id = session.modify(mode, path, pointer.length, new ByteArrayInputStream(pointer));
+            } else {
+                try (final InputStream in = Files.newInputStream(file)) {
+                    id = session.modify(mode, path, length, in);
+                }
+            }
+            updates.add(new UpdateEntry(path, mode, length, lastModified, id));
+        }
+        for (final String path : removed) {
+            session.delete(path);
+        }
+        session.checkpoint();
+        return updates;
+    }
+
+    /**
+     * @return the subset of the given paths that are stored with lfs, per .gitattributes.
+     */
+    private static Set<String> findLfsPaths(final Repository repo, final List<String> paths) throws IOException {
+        final Set<String> out = new HashSet<>();
+        if (paths.isEmpty()) return out;
+        try (final TreeWalk tw = new TreeWalk(repo)) {
+            tw.setOperationType(TreeWalk.OperationType.CHECKIN_OP);
+            tw.setRecursive(true);
+            tw.addTree(new DirCacheIterator(repo.readDirCache()));
+            tw.addTree(new FileTreeIterator(repo));
+            tw.setFilter(PathFilterGroup.createFromStrings(paths));
+            while (tw.next()) {
+                if (LFS_FILTER.equals(tw.getAttributes().getValue("filter"))) out.add(tw.getPathString());
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Copy the file into the lfs object store (if it isn't already there) and return the pointer file that
+     * should be committed in its place.  This produces exactly what 'git lfs clean' would.
+     */
+    private static byte[] writeLfsObject(final Repository repo, final Path file, final long length, final Consumer<String> lfsObjectListener) throws IOException {
+        final Path lfsDir = repo.getDirectory().toPath().resolve("lfs");
+        final Path tmpDir = lfsDir.resolve("tmp");
+        Files.createDirectories(tmpDir);
+        final Path tmpFile = Files.createTempFile(tmpDir, "fastback", ".tmp");
+        final String oid;
+        try {
+            final MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            try (final InputStream in = Files.newInputStream(file);
+                 final OutputStream out = new DigestOutputStream(Files.newOutputStream(tmpFile), md)) {
+                final long copied = in.transferTo(out);
+                if (copied != length) throw new IOException("File changed size while importing " + file);
+            }
+            oid = HexFormat.of().formatHex(md.digest());
+            final Path objectFile = lfsDir.resolve("objects").resolve(oid.substring(0, 2)).resolve(oid.substring(2, 4)).resolve(oid);
+            if (!Files.exists(objectFile)) {
+                Files.createDirectories(objectFile.getParent());
+                Files.move(tmpFile, objectFile, ATOMIC_MOVE);
+                if (lfsObjectListener != null) lfsObjectListener.accept(oid);
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+        return ("version https://git-lfs.github.com/spec/v1\n" +
+                "oid sha256:" + oid + "\n" +
+                "size " + length + "\n").getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.config.GitConfig;
+import net.pcal.fastback.logging.UserLogger;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.Pack;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.util.FS;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static net.pcal.fastback.config.FastbackConfigKey.CHUNK_STORE_DIRECTORY;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_FILE_REMOTE_COPY_ENABLED;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.logging.UserMessage.UserMessageStyle.JGIT;
+import static net.pcal.fastback.logging.UserMessage.styledLocalized;
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
+import static org.eclipse.jgit.lib.Constants.OBJ_TREE;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+
+/**
+ * Pushes to a file:// remote by copying files instead of going through git's pack protocol, which would read,
+ * delta and rewrite everything it sends even though both repos are on the same machine.
+ * <p>
+ * We work out which objects the remote is missing the way git itself does: by walking the snapshots being pushed,
+ * leaving out everything reachable from the remote's branches.  Only the branches can be trusted to be complete;
+ * a commit or tree that's merely present on the remote may have been left there, without everything under it,
+ * by an interrupted transfer.  A blob has nothing under it, so blobs the remote already has are skipped.  Then,
+ * in this order:
+ * <ul>
+ * <li>lfs objects referenced by missing pointer files are copied into the remote's lfs/objects, which is where
+ * git-lfs keeps them for a file remote.</li>
+ * <li>missing blobs.</li>
+ * <li>whole packs, if most of what's in them is missing.</li>
+ * <li>missing trees, bottom-up, and then commits, oldest first.</li>
+ * <li>the remote's branches, in a single atomic ref transaction.</li>
+ * </ul>
+ * Loose objects are copied as-is; objects from packs that are mostly on the remote already are written to it one
+ * at a time.  As far as possible, nothing is written before the things it refers to, and everything a ref points
+ * to is in place before the ref is; so an interrupted transfer just leaves some unreferenced objects behind.  Files
+ * are hardlinked if the remote is on the same filesystem (git and lfs objects never change once they're written),
+ * and copied with FileChannel.transferTo otherwise.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class FileRemoteTransfer {
+
+    // ======================================================================
+    // Constants
+
+    static final String LFS_POINTER_VERSION = "version https://git-lfs.github.com/spec/v1";
+    static final String LFS_POINTER_OID = "oid sha256:";
+    static final int LFS_POINTER_MAX_SIZE = 1024;
+
+    // ======================================================================
+    // Fields
+
+    private final Repository local;
+    private final Repository remote;
+    private final boolean sameFileStore;
+    private int linkedCount = 0;
+    private int copiedCount = 0;
+
+    // ======================================================================
+    // Factory
+
+    /**
+     * @return the git directory of the remote at the given url, or null if it isn't a file remote that we can
+     * transfer to directly (or we've been told not to).
+     */
+    static File getRemoteGitDir(final RepoImpl repo, final String url) {
+        final GitConfig conf = repo.getConfig();
+        if (!conf.getBoolean(IS_FILE_REMOTE_COPY_ENABLED)) return null;
+        if (conf.getString(CHUNK_STORE_DIRECTORY) != null) {
+            // the lfs objects belong in the chunk store, which only git-lfs knows how to put them in
+            syslog().debug("Not copying directly to the file remote, a chunk store is configured");
+            return null;
+        }
+        if (url == null) return null;
+        final URIish uri;
+        try {
+            uri = new URIish(url);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        if (uri.getHost() != null || !(uri.getScheme() == null || uri.getScheme().equals("file"))) return null;
+        final File gitDir = RepositoryCache.FileKey.resolve(new File(uri.getPath()), FS.DETECTED);
+        if (gitDir == null) syslog().debug("Not copying directly to " + url + ", it isn't a git repo");
+        return gitDir;
+    }
+
+    /**
+     * Copy the given branches, and whatever they need that the remote doesn't have, into the remote repo.
+     *
+     * @return the ids that the remote's branches now point to.
+     */
+    static Map<String, ObjectId> push(final Repository local, final File remoteGitDir, final List<String> branchesToPush,
+                                      final UserLogger ulog) throws IOException {
+        try (final Repository remote = new FileRepositoryBuilder().setGitDir(remoteGitDir).setMustExist(true).build()) {
+            final boolean sameFileStore = Files.getFileStore(local.getDirectory().toPath()).equals(
+                    Files.getFileStore(remoteGitDir.toPath()));
+            return new FileRemoteTransfer(local, remote, sameFileStore).push(branchesToPush, ulog);
+        }
+    }
+
+    private FileRemoteTransfer(final Repository local, final Repository remote, final boolean sameFileStore) {
+        this.local = local;
+        this.remote = remote;
+        this.sameFileStore = sameFileStore;
+    }
+
+    /**
+     * @return the lfs oid if the blob is an lfs pointer file, otherwise null.
+     */
+    static String getLfsOid(final ObjectLoader loader) throws IOException {
+        if (loader.getType() != OBJ_BLOB || loader.getSize() > LFS_POINTER_MAX_SIZE) return null;
+        final String text = new String(loader.getCachedBytes(), UTF_8);
+        if (!text.startsWith(LFS_POINTER_VERSION)) return null;
+        for (final String line : text.split("\n")) {
+            if (line.startsWith(LFS_POINTER_OID)) {
+                final String oid = line.substring(LFS_POINTER_OID.length()).trim();
+                return oid.matches("[0-9a-f]{64}") ? oid : null;
+            }
+        }
+        return null;
+    }
+
+    // ======================================================================
+    // Private
+
+    private Map<String, ObjectId> push(final List<String> branchesToPush, final UserLogger ulog) throws IOException {
+        final Map<String, ObjectId> branchIds = new HashMap<>();
+        for (final String branchName : branchesToPush) {
+            final ObjectId id = this.local.resolve(R_HEADS + branchName);
+            if (id == null) throw new IOException("No such branch " + branchName);
+            branchIds.put(branchName, id);
+        }
+        ulog.update(styledLocalized("fastback.chat.file-remote-copy-scanning", JGIT));
+        final Missing missing = findMissing(branchIds.values());
+        syslog().debug("File remote is missing " + missing.size() + " objects and up to " + missing.lfsOids.size() + " lfs objects");
+        copyLfsObjects(missing.lfsOids, ulog);
+        copyObjects(missing, ulog);
+        updateRefs(branchIds);
+        syslog().info("Copied to file remote: " + this.linkedCount + " files linked, " + this.copiedCount + " copied");
+        return branchIds;
+    }
+
+    /**
+     * Find everything reachable from the given commits that isn't reachable from the remote's branches, and the
+     * lfs objects referenced by any missing pointer files.
+     */
+    private Missing findMissing(final Iterable<ObjectId> tips) throws IOException {
+        final ObjectDatabase remoteDb = this.remote.getObjectDatabase();
+        final Missing out = new Missing();
+        try (final ObjectReader reader = this.local.newObjectReader();
+             final ObjectWalk ow = new ObjectWalk(reader)) {
+            ow.sort(RevSort.TOPO);
+            ow.sort(RevSort.REVERSE, true);
+            for (final ObjectId tip : tips) ow.markStart(ow.parseCommit(tip));
+            for (final Ref ref : this.remote.getRefDatabase().getRefsByPrefix(R_HEADS)) {
+                final ObjectId id = ref.getObjectId();
+                if (id == null || !reader.has(id)) continue; // we can't walk what we don't have
+                final RevObject o = ow.parseAny(id);
+                if (o instanceof RevCommit) ow.markUninteresting(o);
+            }
+            final List<RevCommit> commits = new ArrayList<>();
+            RevCommit commit;
+            while ((commit = ow.next()) != null) commits.add(commit);
+            final Set<ObjectId> trees = new HashSet<>();
+            RevObject o;
+            while ((o = ow.nextObject()) != null) {
+                if (o.getType() == OBJ_TREE) {
+                    trees.add(o.copy());
+                } else if (o.getType() == OBJ_BLOB && !remoteDb.has(o)) {
+                    out.blobs.add(o.copy());
+                    final String lfsOid = getLfsOid(reader.open(o, OBJ_BLOB));
+                    if (lfsOid != null) out.lfsOids.add(lfsOid);
+                }
+            }
+            for (final RevCommit c : commits) {
+                addTreesBottomUp(reader, c.getTree(), trees, out.trees);
+                out.commits.add(c.copy());
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Add the given tree to the list after any of the trees under it, if it's one of the trees we want and isn't
+     * there already.
+     */
+    private static void addTreesBottomUp(final ObjectReader reader, final ObjectId tree, final Set<ObjectId> wanted,
+                                         final List<ObjectId> out) throws IOException {
+        if (!wanted.remove(tree)) return;
+        final CanonicalTreeParser parser = new CanonicalTreeParser(null, reader, tree);
+        for (; !parser.eof(); parser.next()) {
+            if (parser.getEntryFileMode() == FileMode.TREE) addTreesBottomUp(reader, parser.getEntryObjectId(), wanted, out);
+        }
+        out.add(tree.copy());
+    }
+
+    private void copyLfsObjects(final Set<String> lfsOids, final UserLogger ulog) throws IOException {
+        final Path localLfs = this.local.getDirectory().toPath().resolve("lfs").resolve("objects");
+        final Path remoteLfs = this.remote.getDirectory().toPath().resolve("lfs").resolve("objects");
+        int count = 0;
+        for (final String oid : lfsOids) {
+            ulog.update(styledLocalized("fastback.chat.file-remote-copy-lfs", JGIT, ++count, lfsOids.size()));
+            final Path relative = Path.of(oid.substring(0, 2), oid.substring(2, 4), oid);
+            final Path target = remoteLfs.resolve(relative);
+            if (Files.exists(target)) continue;
+            final Path source = localLfs.resolve(relative);
+            if (!Files.exists(source)) throw new IOException("Missing lfs object " + oid);
+            linkOrCopy(source, target);
+        }
+    }
+
+    private void copyObjects(final Missing missing, final UserLogger ulog) throws IOException {
+        final Path localObjects = this.local.getDirectory().toPath().resolve("objects");
+        final Map<Pack, List<ObjectId>> packed = new HashMap<>();
+        final Set<ObjectId> loose = new HashSet<>();
+        final Collection<Pack> packs = this.local.getObjectDatabase() instanceof ObjectDirectory od ? od.getPacks() : List.of();
+        for (final List<ObjectId> ids : List.of(missing.blobs, missing.trees, missing.commits)) {
+            for (final ObjectId id : ids) {
+                if (Files.exists(localObjects.resolve(getLoosePath(id)))) {
+                    loose.add(id);
+                    continue;
+                }
+                Pack pack = null;
+                for (final Pack p : packs) {
+                    if (p.hasObject(id)) {
+                        pack = p;
+                        break;
+                    }
+                }
+                if (pack == null) throw new IOException("Can't find object " + id.name()); // e.g., it's in an alternate
+                packed.computeIfAbsent(pack, p -> new ArrayList<>()).add(id);
+            }
+        }
+        final Set<Pack> wholePacks = new HashSet<>();
+        final Set<ObjectId> inWholePacks = new HashSet<>();
+        for (final Map.Entry<Pack, List<ObjectId>> e : packed.entrySet()) {
+            if (e.getValue().size() * 2L >= e.getKey().getIndex().getObjectCount()) {
+                wholePacks.add(e.getKey());
+                inWholePacks.addAll(e.getValue());
+            }
+        }
+        final int[] count = {0};
+        try (final ObjectReader reader = this.local.newObjectReader();
+             final ObjectInserter inserter = this.remote.newObjectInserter()) {
+            copyObjects(missing.blobs, loose, inWholePacks, reader, inserter, count, missing.size(), ulog);
+            for (final Pack pack : wholePacks) {
+                count[0] += packed.get(pack).size();
+                ulog.update(styledLocalized("fastback.chat.file-remote-copy-objects", JGIT, count[0], missing.size()));
+                copyPack(pack, this.remote.getDirectory().toPath().resolve("objects").resolve("pack"));
+            }
+            copyObjects(missing.trees, loose, inWholePacks, reader, inserter, count, missing.size(), ulog);
+            copyObjects(missing.commits, loose, inWholePacks, reader, inserter, count, missing.size(), ulog);
+        }
+    }
+
+    /**
+     * Copy the given objects in order, leaving out the ones that come with a whole pack.
+     */
+    private void copyObjects(final List<ObjectId> ids, final Set<ObjectId> loose, final Set<ObjectId> inWholePacks,
+                             final ObjectReader reader, final ObjectInserter inserter, final int[] count, final int total,
+                             final UserLogger ulog) throws IOException {
+        final Path localObjects = this.local.getDirectory().toPath().resolve("objects");
+        final Path remoteObjects = this.remote.getDirectory().toPath().resolve("objects");
+        for (final ObjectId id : ids) {
+            if (inWholePacks.contains(id)) continue;
+            ulog.update(styledLocalized("fastback.chat.file-remote-copy-objects", JGIT, ++count[0], total));
+            if (loose.contains(id)) {
+                final Path target = remoteObjects.resolve(getLoosePath(id));
+                if (!Files.exists(target)) linkOrCopy(localObjects.resolve(getLoosePath(id)), target);
+            } else {
+                final ObjectLoader loader = reader.open(id);
+                inserter.insert(loader.getType(), loader.getSize(), loader.openStream());
+            }
+        }
+        // so that they're on the disk before anything that refers to them
+        inserter.flush();
+    }
+
+    private static Path getLoosePath(final ObjectId id) {
+        final String name = id.name();
+        return Path.of(name.substring(0, 2), name.substring(2));
+    }
+
+    /**
+     * Copy all of a pack's files.  The .pack goes first and the .idx last, since git finds packs by their
+     * index.
+     */
+    private void copyPack(final Pack pack, final Path remotePackDir) throws IOException {
+        final List<File> files = new ArrayList<>();
+        files.add(pack.getPackFile().create(PackExt.PACK));
+        for (final PackExt ext : PackExt.values()) {
+            if (ext != PackExt.PACK && ext != PackExt.INDEX && ext != PackExt.KEEP) files.add(pack.getPackFile().create(ext));
+        }
+        files.add(pack.getPackFile().create(PackExt.INDEX));
+        for (final File file : files) {
+            final Path target = remotePackDir.resolve(file.getName());
+            if (file.exists() && !Files.exists(target)) linkOrCopy(file.toPath(), target);
+        }
+    }
+
+    private void updateRefs(final Map<String, ObjectId> branchIds) throws IOException {
+        final BatchRefUpdate batch = this.remote.getRefDatabase().newBatchUpdate();
+        batch.setAtomic(true);
+        batch.setAllowNonFastForwards(true);
+        for (final Map.Entry<String, ObjectId> e : branchIds.entrySet()) {
+            final String refName = R_HEADS + e.getKey();
+            final Ref current = this.remote.exactRef(refName);
+            if (current == null) {
+                batch.addCommand(new ReceiveCommand(ObjectId.zeroId(), e.getValue(), refName));
+            } else if (!e.getValue().equals(current.getObjectId())) {
+                batch.addCommand(new ReceiveCommand(current.getObjectId(), e.getValue(), refName, ReceiveCommand.Type.UPDATE_NONFASTFORWARD));
+            }
+        }
+        if (batch.getCommands().isEmpty()) return;
+        try (final RevWalk rw = new RevWalk(this.remote)) {
+            batch.execute(rw, NullProgressMonitor.INSTANCE);
+        }
+        for (final ReceiveCommand cmd : batch.getCommands()) {
+            if (cmd.getResult() != ReceiveCommand.Result.OK) {
+                throw new IOException("File remote did not update " + cmd.getRefName() + ": " + cmd.getResult() +
+                        (cmd.getMessage() == null ? "" : " " + cmd.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * The objects a push has to copy, in the order they should be written.
+     */
+    private static class Missing {
+
+        private final List<ObjectId> blobs = new ArrayList<>();
+        private final List<ObjectId> trees = new ArrayList<>();
+        private final List<ObjectId> commits = new ArrayList<>();
+        private final Set<String> lfsOids = new HashSet<>();
+
+        int size() {
+            return this.blobs.size() + this.trees.size() + this.commits.size();
+        }
+    }
+
+    /**
+     * Hardlink the file if we can, copy it if not.  Either way, it only appears at the target once it's complete.
+     */
+    private void linkOrCopy(final Path source, final Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        if (this.sameFileStore) {
+            try {
+                Files.createLink(target, source);
+                this.linkedCount++;
+                return;
+            } catch (FileAlreadyExistsException e) {
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                syslog().debug("Couldn't link " + source + ", copying instead: " + e.getMessage());
+            }
+        }
+        final Path tmp = target.resolveSibling(target.getFileName() + ".fastback-tmp");
+        try {
+            try (final FileChannel in = FileChannel.open(source, READ);
+                 final FileChannel out = FileChannel.open(tmp, WRITE, CREATE_NEW)) {
+                final long size = in.size();
+                long position = 0;
+                while (position < size) position += in.transferTo(position, size - position, out);
+            }
+            Files.move(tmp, target, ATOMIC_MOVE);
+            this.copiedCount++;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
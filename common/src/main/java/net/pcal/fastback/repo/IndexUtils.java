@@ -0,0 +1,345 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.repo.StatCache.Stat;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEditor.DeletePath;
+import org.eclipse.jgit.dircache.DirCacheEditor.PathEdit;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.CoreConfig.EolStreamType;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator.MetadataDiff;
+import org.eclipse.jgit.treewalk.WorkingTreeOptions;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
+
+/**
+ * Utilities for staging files in the index with jgit.
+ * <p>
+ * AddCommand and RmCommand lock, read and rewrite the whole index every time they're called, which gets
+ * very slow when called once per file on a world with lots of changed regions.  This does all of the adds
+ * and removes in a single DirCache edit.
+ * <p>
+ * Hashing and deflating the blobs is the expensive part, so plain files are hashed on a small pool of worker
+ * threads (each with its own ObjectInserter) and the results gathered up into the one DirCache edit.  Files
+ * that need eol conversion or a clean filter are hashed inline through the WorkingTreeIterator.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+abstract class IndexUtils {
+
+    /**
+     * Stage the given paths in the index.  Paths in toAdd may be files or directories; ignored files are
+     * skipped unless they're already tracked.  Paths in toRemove are removed from the index.
+     *
+     * @param threadCount number of threads to hash files on; 0 to pick based on the number of cores.
+     * @param progress gets called with each path as it's staged.
+     */
+    static void stageFiles(final Repository repo,
+                           final Collection<String> toAdd,
+                           final Collection<String> toRemove,
+                           final int threadCount,
+                           final Consumer<String> progress) throws IOException {
+        stageFiles(repo, repo.getWorkTree(), toAdd, toRemove, threadCount, progress);
+    }
+
+    /**
+     * Stage files as above, but read them from the given directory instead of the repo's work tree.
+     */
+    static void stageFiles(final Repository repo,
+                           final File workTree,
+                           final Collection<String> toAdd,
+                           final Collection<String> toRemove,
+                           final int threadCount,
+                           final Consumer<String> progress) throws IOException {
+        final List<UpdateEntry> updates = hashFiles(repo, workTree, toAdd, toRemove, threadCount, progress);
+        final DirCache dc = repo.lockDirCache();
+        try {
+            final DirCacheEditor editor = dc.editor();
+            updates.forEach(editor::add);
+            for (final String path : toRemove) {
+                progress.accept(path);
+                editor.add(new DeletePath(path));
+            }
+            syslog().debug("Writing index with " + updates.size() + " updated and " + toRemove.size() + " removed files");
+            editor.commit();
+        } finally {
+            dc.unlock();
+        }
+    }
+
+    /**
+     * Hash the given paths into new blobs, without touching the index.  Paths may be files or directories;
+     * ignored files are skipped unless they're already tracked, and so are files whose content matches the
+     * index.  When hashing from the worktree, files the StatCache knows haven't changed aren't read at all.
+     *
+     * @param forget paths the StatCache should drop, because they're gone or aren't stored as blobs anymore.
+     * @return index updates for the files that were hashed.
+     */
+    static List<UpdateEntry> hashFiles(final Repository repo,
+                                       final File workTree,
+                                       final Collection<String> paths,
+                                       final Collection<String> forget,
+                                       final int threadCount,
+                                       final Consumer<String> progress) throws IOException {
+        final List<UpdateEntry> out = new ArrayList<>();
+        if (paths.isEmpty() && forget.isEmpty()) return out;
+        // the cache is keyed on stat info, which is different for copies in a staging directory
+        final StatCache statCache = workTree.equals(repo.getWorkTree()) ? StatCache.load(repo) : null;
+        if (statCache != null) statCache.remove(forget);
+        if (paths.isEmpty()) {
+            if (statCache != null) statCache.save(repo);
+            return out;
+        }
+        final int threads = threadCount > 0 ? threadCount : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        final ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads, IndexUtils::newHashThread) : null;
+        final Map<String, Stat> hashedStats = new HashMap<>();
+        try (final ObjectInserter inserter = repo.newObjectInserter();
+             final ObjectReader reader = inserter.newReader();
+             final TreeWalk tw = new TreeWalk(repo, reader)) {
+            final List<Future<UpdateEntry>> pending = new ArrayList<>();
+            tw.setOperationType(TreeWalk.OperationType.CHECKIN_OP);
+            tw.setRecursive(true);
+            tw.addTree(new DirCacheIterator(repo.readDirCache()));
+            tw.addTree(new FileTreeIterator(workTree, repo.getFS(), repo.getConfig().get(WorkingTreeOptions.KEY)));
+            tw.setFilter(PathFilterGroup.createFromStrings(paths));
+            while (tw.next()) {
+                final DirCacheIterator c = tw.getTree(0, DirCacheIterator.class);
+                final WorkingTreeIterator f = tw.getTree(1, WorkingTreeIterator.class);
+                if (f == null) continue; // missing, it's up to the caller to remove it
+                if (c == null && f.isEntryIgnored()) continue;
+                final FileMode mode = f.getIndexFileMode(c);
+                if (mode == FileMode.TREE || mode == FileMode.GITLINK) continue;
+                final String path = tw.getPathString();
+                final Stat stat = statCache == null ? null : Stat.of(new File(workTree, path).toPath());
+                if (stat != null) {
+                    final ObjectId cached = statCache.lookup(path, stat);
+                    if (cached != null && reader.has(cached)) {
+                        out.add(new UpdateEntry(path, mode, stat.size(), stat.lastModified(), cached));
+                        continue;
+                    }
+                }
+                if (c != null && !f.isModified(c.getDirCacheEntry(), true, reader)) {
+                    if (stat != null) statCache.put(path, stat, c.getEntryObjectId());
+                    continue;
+                }
+                progress.accept(path);
+                if (stat != null) hashedStats.put(path, stat);
+                if (pool != null && mode.getObjectType() == OBJ_BLOB && mode != FileMode.SYMLINK &&
+                        f.getEolStreamType() == EolStreamType.DIRECT && f.getCleanFilterCommand() == null) {
+                    final File file = new File(workTree, path);
+                    pending.add(pool.submit(() -> hashFile(repo, file, path, mode)));
+                    continue;
+                }
+                final ObjectId id;
+                try (final InputStream in = f.openEntryStream()) {
+                    id = inserter.insert(OBJ_BLOB, f.getEntryContentLength(), in);
+                }
+                out.add(new UpdateEntry(path, mode, f.getEntryLength(), f.getEntryLastModifiedInstant(), id));
+            }
+            for (final Future<UpdateEntry> future : pending) {
+                out.add(await(future));
+            }
+            inserter.flush();
+            if (statCache != null) {
+                for (final UpdateEntry update : out) {
+                    final Stat stat = hashedStats.get(update.getPath());
+                    if (stat != null) statCache.put(update.getPath(), stat, update.getObjectId());
+                }
+                statCache.save(repo);
+            }
+        } finally {
+            if (pool != null) pool.shutdownNow();
+        }
+        return out;
+    }
+
+    /**
+     * Hash and insert a file straight off the disk.  Called on the worker threads.  The stat info is read
+     * before the content so that if the file changes underneath us, it just looks modified next time.
+     */
+    private static UpdateEntry hashFile(final Repository repo, final File file, final String path, final FileMode mode) throws IOException {
+        final long length = file.length();
+        final Instant lastModified = Files.getLastModifiedTime(file.toPath()).toInstant();
+        final ObjectId id;
+        try (final ObjectInserter inserter = repo.newObjectInserter();
+             final InputStream in = new FileInputStream(file)) {
+            id = inserter.insert(OBJ_BLOB, length, in);
+            inserter.flush();
+        }
+        return new UpdateEntry(path, mode, length, lastModified, id);
+    }
+
+    private static <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing files");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioe) throw ioe;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Thread newHashThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "fastback-hash");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Files whose stat info differs from the index, and tracked files that no longer exist.
+     *
+     * @param tracked the changed files that are already in the index.
+     */
+    record StatChanges(List<String> changed, List<String> removed, Set<String> tracked) {
+    }
+
+    /**
+     * Find the files in the work tree whose stat info doesn't match the index.  Unlike IndexDiff, this never
+     * looks at file contents, so it's cheap enough to do while world saves are disabled.  Files that haven't
+     * really changed may be reported; that's harmless, they'll just end up with the same blob id.
+     *
+     * @param dirtyFiles files written since the last snapshot, or null if unknown.
+     */
+    static StatChanges findStatChanges(final Repository repo, final Set<String> dirtyFiles) throws IOException {
+        return findStatChanges(repo, dirtyFiles, null);
+    }
+
+    /**
+     * @param chunkedRegions stat info for region files that are stored chunked, and so aren't in the index,
+     *                       or null if nothing is chunked.
+     */
+    static StatChanges findStatChanges(final Repository repo, final Set<String> dirtyFiles, final ChunkedRegionTable chunkedRegions) throws IOException {
+        final List<String> changed = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+        final Set<String> tracked = new HashSet<>();
+        try (final TreeWalk tw = new TreeWalk(repo)) {
+            tw.setOperationType(TreeWalk.OperationType.CHECKIN_OP);
+            tw.setRecursive(true);
+            tw.addTree(new DirCacheIterator(repo.readDirCache()));
+            tw.addTree(new FileTreeIterator(repo));
+            if (dirtyFiles != null) tw.setFilter(new DirtyFileFilter(dirtyFiles));
+            while (tw.next()) {
+                final String path = tw.getPathString();
+                final DirCacheIterator c = tw.getTree(0, DirCacheIterator.class);
+                final WorkingTreeIterator f = tw.getTree(1, WorkingTreeIterator.class);
+                if (f == null) {
+                    if (c != null) removed.add(path);
+                    continue;
+                }
+                if (f.getEntryFileMode() == FileMode.GITLINK) continue;
+                if (c == null) {
+                    if (f.isEntryIgnored()) continue;
+                    if (chunkedRegions != null && chunkedRegions.getPaths().contains(path)) {
+                        if (chunkedRegions.isUnchanged(path, f.getEntryLength(), f.getEntryLastModifiedInstant())) continue;
+                        tracked.add(path);
+                    }
+                } else if (f.compareMetadata(c.getDirCacheEntry()) == MetadataDiff.EQUAL) {
+                    continue;
+                } else {
+                    tracked.add(path);
+                }
+                changed.add(path);
+            }
+        }
+        if (chunkedRegions != null) {
+            for (final String path : chunkedRegions.getPaths()) {
+                if (dirtyFiles != null && !dirtyFiles.contains(path)) continue;
+                if (!Files.exists(repo.getWorkTree().toPath().resolve(path))) removed.add(path);
+            }
+        }
+        return new StatChanges(changed, removed, tracked);
+    }
+
+    /**
+     * Sets the new blob and stat info on an index entry.
+     */
+    static class UpdateEntry extends PathEdit {
+
+        private final String path;
+        private final FileMode mode;
+        private final long length;
+        private final Instant lastModified;
+        private final ObjectId id;
+
+        UpdateEntry(String path, FileMode mode, long length, Instant lastModified, ObjectId id) {
+            super(path);
+            this.path = path;
+            this.mode = mode;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.id = id;
+        }
+
+        String getPath() {
+            return this.path;
+        }
+
+        FileMode getMode() {
+            return this.mode;
+        }
+
+        ObjectId getObjectId() {
+            return this.id;
+        }
+
+        @Override
+        public void apply(DirCacheEntry ent) {
+            ent.setFileMode(this.mode);
+            ent.setLength(this.length);
+            ent.setLastModified(this.lastModified);
+            ent.setObjectId(this.id);
+        }
+    }
+}
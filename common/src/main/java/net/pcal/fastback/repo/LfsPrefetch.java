@@ -0,0 +1,250 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.utils.ProcessException;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.logging.UserMessage.localized;
+import static net.pcal.fastback.repo.FileRemoteTransfer.LFS_POINTER_MAX_SIZE;
+import static net.pcal.fastback.repo.FileRemoteTransfer.LFS_POINTER_OID;
+import static net.pcal.fastback.repo.FileRemoteTransfer.LFS_POINTER_VERSION;
+import static net.pcal.fastback.utils.ProcessUtils.doExec;
+import static org.apache.commons.io.FileUtils.byteCountToDisplaySize;
+
+/**
+ * Downloads the lfs objects for a snapshot that was checked out with the lfs filter turned off, so that every lfs
+ * file in it is still a pointer.  The pointers say how big each object is, so the objects are pulled in batches of
+ * a bounded number of bytes, and the user is told how many bytes are done and roughly how long the rest will take.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class LfsPrefetch {
+
+    // ======================================================================
+    // Constants
+
+    private static final String LFS_POINTER_SIZE = "size ";
+    private static final int MAX_BATCH_FILES = 200; // keeps the git-lfs command line a sane length
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+
+    // ======================================================================
+    // Fields
+
+    private final Path worktree;
+    private final Map<String, LfsObject> objects;
+    private final long totalBytes;
+    private final UserLogger ulog;
+    private long doneBytes = 0;
+    private long startMillis;
+    private long lastProgressMillis = 0;
+
+    // ======================================================================
+    // Factory
+
+    /**
+     * Find all of the lfs pointer files in the given worktree.
+     */
+    static LfsPrefetch create(final Path worktree, final UserLogger ulog) throws IOException {
+        final Map<String, LfsObject> objects = new LinkedHashMap<>();
+        Files.walkFileTree(worktree, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                return dir.getFileName().toString().equals(".git") ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && attrs.size() <= LFS_POINTER_MAX_SIZE) {
+                    final LfsObject pointer = parsePointer(Files.readAllBytes(file));
+                    if (pointer != null) {
+                        final String path = worktree.relativize(file).toString().replace('\\', '/');
+                        objects.computeIfAbsent(pointer.oid, oid -> pointer).paths.add(path);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return new LfsPrefetch(worktree, objects, ulog);
+    }
+
+    private LfsPrefetch(final Path worktree, final Map<String, LfsObject> objects, final UserLogger ulog) {
+        this.worktree = requireNonNull(worktree);
+        this.objects = requireNonNull(objects);
+        this.ulog = requireNonNull(ulog);
+        this.totalBytes = objects.values().stream().mapToLong(o -> o.size).sum();
+    }
+
+    // ======================================================================
+    // Package private
+
+    int getObjectCount() {
+        return this.objects.size();
+    }
+
+    long getTotalBytes() {
+        return this.totalBytes;
+    }
+
+    /**
+     * Pull the objects with git-lfs, one batch at a time.
+     *
+     * @param lfsTransfers how many objects git-lfs should download at once, or 0 to leave it up to git-lfs.
+     * @param windowBytes  the most bytes of objects to ask git-lfs for at once.  A single object bigger than this
+     *                     gets a batch of its own.
+     */
+    void pull(final int lfsTransfers, final long windowBytes, final Map<String, String> env) throws ProcessException {
+        this.startMillis = System.currentTimeMillis();
+        reportProgress();
+        for (final List<LfsObject> batch : getBatches(windowBytes)) {
+            final List<String> args = new ArrayList<>(List.of("git", "-C", this.worktree.toString()));
+            if (lfsTransfers > 0) Collections.addAll(args, "-c", "lfs.concurrenttransfers=" + lfsTransfers);
+            Collections.addAll(args, "lfs", "pull", "--include", getIncludes(batch));
+            final Set<LfsObject> pending = new LinkedHashSet<>(batch);
+            // git-lfs's output is a good enough clock for checking which objects have arrived
+            final Consumer<String> outputConsumer = line -> {
+                syslog().debug(line);
+                checkPending(pending, false);
+            };
+            doExec(args.toArray(new String[0]), env, outputConsumer, outputConsumer);
+            checkPending(pending, true);
+        }
+        syslog().debug("Pulled " + this.objects.size() + " lfs objects, " + this.totalBytes + " bytes in " +
+                (System.currentTimeMillis() - this.startMillis) + "ms");
+    }
+
+    /**
+     * Split the objects into batches of at most windowBytes (and MAX_BATCH_FILES files).
+     */
+    List<List<LfsObject>> getBatches(final long windowBytes) {
+        final List<List<LfsObject>> out = new ArrayList<>();
+        List<LfsObject> batch = new ArrayList<>();
+        long batchBytes = 0;
+        int batchFiles = 0;
+        for (final LfsObject object : this.objects.values()) {
+            if (!batch.isEmpty() && (batchBytes + object.size > windowBytes || batchFiles + object.paths.size() > MAX_BATCH_FILES)) {
+                out.add(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+                batchFiles = 0;
+            }
+            batch.add(object);
+            batchBytes += object.size;
+            batchFiles += object.paths.size();
+        }
+        if (!batch.isEmpty()) out.add(batch);
+        return out;
+    }
+
+    /**
+     * @return how long the rest should take at the rate so far, as h:mm:ss or m:ss.
+     */
+    static String formatEta(final long doneBytes, final long totalBytes, final long elapsedMillis) {
+        if (doneBytes <= 0) return "--:--";
+        final long seconds = (long) ((double) elapsedMillis * (totalBytes - doneBytes) / doneBytes / 1000);
+        return seconds >= 3600 ? String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60) :
+                String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+
+    /**
+     * @return the object the given file is a pointer to, or null if it isn't an lfs pointer.
+     */
+    static LfsObject parsePointer(final byte[] content) {
+        final String text = new String(content, UTF_8);
+        if (!text.startsWith(LFS_POINTER_VERSION)) return null;
+        String oid = null;
+        long size = -1;
+        for (final String line : text.split("\n")) {
+            if (line.startsWith(LFS_POINTER_OID)) {
+                oid = line.substring(LFS_POINTER_OID.length()).trim();
+            } else if (line.startsWith(LFS_POINTER_SIZE)) {
+                try {
+                    size = Long.parseLong(line.substring(LFS_POINTER_SIZE.length()).trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+        return oid != null && oid.matches("[0-9a-f]{64}") && size >= 0 ? new LfsObject(oid, size, new ArrayList<>()) : null;
+    }
+
+    record LfsObject(String oid, long size, List<String> paths) {
+    }
+
+    // ======================================================================
+    // Private
+
+    /**
+     * Count the bytes of any pending objects that have turned up in the lfs store.  When the batch is done, whatever
+     * is left is counted too; git-lfs would have failed if it couldn't get them.
+     */
+    private synchronized void checkPending(final Set<LfsObject> pending, final boolean batchDone) {
+        final long now = System.currentTimeMillis();
+        if (!batchDone && now - this.lastProgressMillis < PROGRESS_INTERVAL_MILLIS) return;
+        final Path lfsObjects = this.worktree.resolve(".git").resolve("lfs").resolve("objects");
+        pending.removeIf(o -> {
+            if (!batchDone && !Files.exists(lfsObjects.resolve(o.oid.substring(0, 2)).resolve(o.oid.substring(2, 4)).resolve(o.oid))) {
+                return false;
+            }
+            this.doneBytes += o.size;
+            return true;
+        });
+        reportProgress();
+    }
+
+    private void reportProgress() {
+        this.lastProgressMillis = System.currentTimeMillis();
+        this.ulog.update(localized("fastback.hud.restore-progress", byteCountToDisplaySize(this.doneBytes),
+                byteCountToDisplaySize(this.totalBytes),
+                formatEta(this.doneBytes, this.totalBytes, this.lastProgressMillis - this.startMillis)));
+    }
+
+    /**
+     * @return the paths in the batch as a git-lfs include list.  Wildcards are escaped, and commas (which would
+     * split the list) are matched with '?'.
+     */
+    private static String getIncludes(final List<LfsObject> batch) {
+        final List<String> out = new ArrayList<>();
+        for (final LfsObject object : batch) {
+            for (final String path : object.paths) {
+                out.add(path.replaceAll("([\\\\*?\\[])", "\\\\$1").replace(',', '?'));
+            }
+        }
+        return String.join(",", out);
+    }
+}
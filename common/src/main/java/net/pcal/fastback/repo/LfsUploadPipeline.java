@@ -0,0 +1,188 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.config.GitConfig;
+import net.pcal.fastback.utils.ProcessException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_FAST_IMPORT_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_NATIVE_GIT_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_PIPELINED_PUSH_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_NAME;
+import static net.pcal.fastback.config.OtherConfigKey.REMOTE_PUSH_URL;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.utils.ProcessUtils.doExec;
+
+/**
+ * Uploads lfs objects to the remote while a snapshot is still being committed, so that by the time the
+ * commit is done, the push that follows only has to send the (small) git objects and the branch ref.  The
+ * pre-push hook asks the remote which lfs objects it's missing, so anything that was already uploaded here
+ * isn't sent again.
+ * <p>
+ * Objects are handed over as they're written and uploaded in batches with 'git lfs push --object-id' on a
+ * background thread.  Upload failures are only logged; whatever didn't make it just goes with the push.
+ * <p>
+ * Only the fast-import commit writes lfs objects itself, so that's the only time we hear about them early.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class LfsUploadPipeline {
+
+    // ======================================================================
+    // Constants
+
+    private static final int BATCH_SIZE = 50;
+    private static final long BATCH_WAIT_MILLIS = 500;
+    private static final String END = "";
+
+    // ======================================================================
+    // Fields
+
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private final String worktree;
+    private final String remoteName;
+    private final Map<String, String> env;
+    private final Thread thread;
+    private volatile boolean failed = false;
+    private int uploadedCount = 0;
+
+    // ======================================================================
+    // Factory
+
+    /**
+     * @return a running pipeline, or null if it isn't enabled or can't be used for this repo.
+     */
+    static LfsUploadPipeline start(final RepoImpl repo) {
+        final GitConfig conf = repo.getConfig();
+        if (!conf.getBoolean(IS_PIPELINED_PUSH_ENABLED)) return null;
+        if (!conf.getBoolean(IS_NATIVE_GIT_ENABLED) || !conf.getBoolean(IS_FAST_IMPORT_ENABLED)) {
+            syslog().debug("Pipelined push needs native git and fast-import, pushing after the commit instead");
+            return null;
+        }
+        if (conf.getString(REMOTE_PUSH_URL) == null) return null;
+        if (!PushUtils.isRemoteWorldOk(repo)) {
+            syslog().debug("Not starting pipelined push, the remote didn't pass the world id check");
+            return null;
+        }
+        final Map<String, String> env;
+        try {
+            env = repo.getRemoteSession().getNativeEnv(repo);
+        } catch (IOException e) {
+            syslog().debug("Not starting pipelined push, couldn't set up the remote session", e);
+            return null;
+        }
+        final LfsUploadPipeline out = new LfsUploadPipeline(repo.getWorkTree().getAbsolutePath(), conf.getString(REMOTE_NAME), env);
+        out.thread.start();
+        return out;
+    }
+
+    private LfsUploadPipeline(final String worktree, final String remoteName, final Map<String, String> env) {
+        this.worktree = requireNonNull(worktree);
+        this.remoteName = requireNonNull(remoteName);
+        this.env = requireNonNull(env);
+        this.thread = new Thread(this::run, "fastback-lfs-upload");
+        this.thread.setDaemon(true);
+    }
+
+    // ======================================================================
+    // Package private
+
+    /**
+     * Queue an lfs object for upload.  Called as soon as the object is in .git/lfs/objects.
+     */
+    void upload(final String oid) {
+        this.queue.add(oid);
+    }
+
+    /**
+     * Wait for everything queued so far to be uploaded.
+     */
+    void finish() {
+        this.queue.add(END);
+        join();
+    }
+
+    /**
+     * Drop anything that hasn't started uploading yet and wait for the current batch.
+     */
+    void abort() {
+        this.queue.clear();
+        this.queue.add(END);
+        join();
+    }
+
+    // ======================================================================
+    // Private
+
+    private void join() {
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        syslog().debug("Pipelined upload of " + this.uploadedCount + " lfs objects finished" + (this.failed ? " with errors" : ""));
+    }
+
+    private void run() {
+        try {
+            boolean done = false;
+            while (!done) {
+                final List<String> batch = new ArrayList<>();
+                String oid = this.queue.take();
+                while (oid != null) {
+                    if (oid.equals(END)) {
+                        done = true;
+                        break;
+                    }
+                    batch.add(oid);
+                    if (batch.size() >= BATCH_SIZE) break;
+                    oid = this.queue.poll(BATCH_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (!batch.isEmpty() && !this.failed) uploadBatch(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void uploadBatch(final List<String> oids) {
+        final List<String> cmd = new ArrayList<>();
+        Collections.addAll(cmd, "git", "-C", this.worktree, "lfs", "push", "--object-id", this.remoteName);
+        cmd.addAll(oids);
+        try {
+            doExec(cmd.toArray(new String[0]), this.env, s -> syslog().debug(s), s -> syslog().debug(s));
+            this.uploadedCount += oids.size();
+        } catch (ProcessException e) {
+            // don't keep hammering a remote that isn't working; the push will sort it out
+            syslog().warn("Pipelined lfs upload failed, the rest will be uploaded by the push: " + e.getMessage());
+            this.failed = true;
+        }
+    }
+}
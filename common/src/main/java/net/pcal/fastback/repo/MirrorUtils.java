@@ -0,0 +1,168 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.config.GitConfig;
+import net.pcal.fastback.config.RemoteConfigKey;
+import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.logging.UserMessage;
+import net.pcal.fastback.utils.ProcessException;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.config.FastbackConfigKey.MIRROR_REMOTES;
+import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_NAME;
+import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_RETENTION_POLICY;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.logging.UserMessage.UserMessageStyle.ERROR;
+import static net.pcal.fastback.logging.UserMessage.localized;
+import static net.pcal.fastback.logging.UserMessage.styledLocalized;
+
+/**
+ * Utils for mirror remotes: additional git remotes (listed in mirror-remotes) that every snapshot is pushed to
+ * as well as the main one.  E.g., a NAS on the local network and an offsite ssh host.
+ * <p>
+ * Each mirror is a regular git remote with its own url, and can have its own retention policy in
+ * 'fastback.[name].remote-retention-policy' (otherwise it uses remote-retention-policy).  Pushes to all of
+ * the remotes run at the same time, each with its own RemoteSession and PushQueue, so a slow or broken remote
+ * doesn't hold up the others, and a failed push to one is retried on its own later.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+abstract class MirrorUtils {
+
+    /**
+     * @return the names of the configured mirror remotes.  Names that aren't git remotes with a url (or that are
+     * the main remote) are logged and left out.
+     */
+    static List<String> getMirrorNames(final RepoImpl repo) {
+        final GitConfig conf = repo.getConfig();
+        final String setting = conf.getString(MIRROR_REMOTES);
+        if (setting == null || setting.isBlank()) return List.of();
+        final Set<String> out = new LinkedHashSet<>();
+        for (final String name : setting.trim().split("[\\s,]+")) {
+            if (name.equals(conf.getString(REMOTE_NAME))) {
+                syslog().warn("Ignoring mirror " + name + ", it's the main remote");
+            } else if (PushUtils.getPushUrl(repo.getJGit(), name) == null) {
+                syslog().warn("Ignoring mirror " + name + ", there's no git remote with that name");
+            } else {
+                out.add(name);
+            }
+        }
+        return new ArrayList<>(out);
+    }
+
+    /**
+     * @return the retention policy for the given mirror, or null if it doesn't have one.
+     */
+    static String getRetentionPolicy(final RepoImpl repo, final String mirrorName) {
+        final GitConfig conf = repo.getConfig();
+        final RemoteConfigKey key = new RemoteConfigKey(REMOTE_RETENTION_POLICY, mirrorName);
+        return conf.isSet(key) ? conf.getString(key) : conf.getString(REMOTE_RETENTION_POLICY);
+    }
+
+    /**
+     * Start pushing to each of the given mirrors in the background.
+     *
+     * @param branchName a new snapshot to add to each mirror's queue, or null to just retry whatever is
+     *                   queued for the mirrors whose backoff has run out.
+     */
+    static MirrorPushes startPushes(final RepoImpl repo, final List<String> mirrorNames, final String branchName,
+                                    final UserLogger ulog) {
+        final List<Thread> threads = new ArrayList<>(mirrorNames.size());
+        for (final String mirrorName : mirrorNames) {
+            final Thread thread = new Thread(() -> pushMirror(repo, mirrorName, branchName, ulog), "fastback-mirror-" + mirrorName);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        return new MirrorPushes(threads);
+    }
+
+    /**
+     * The pushes started by startPushes.
+     */
+    record MirrorPushes(List<Thread> threads) {
+
+        /**
+         * Wait for all of the pushes to finish.  Failures have already been reported by then.
+         */
+        void await() {
+            for (final Thread thread : this.threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    syslog().warn("Interrupted while waiting for mirror pushes");
+                    return;
+                }
+            }
+        }
+    }
+
+    // ======================================================================
+    // Private
+
+    private static void pushMirror(final RepoImpl repo, final String mirrorName, final String branchName, final UserLogger ulog) {
+        final PushQueue queue = PushQueue.load(repo.getDotFasbackDir(), mirrorName);
+        if (branchName != null) {
+            queue.add(branchName);
+        } else if (!queue.isRetryDue(Instant.now())) {
+            return;
+        } else {
+            syslog().info("Retrying push of " + queue.getBranches().size() + " snapshots to mirror " + mirrorName +
+                    " after " + queue.getFailures() + " failed attempts");
+        }
+        try {
+            PushUtils.pushQueue(queue, repo, mirrorName, new MirrorLogger(ulog));
+            ulog.message(localized("fastback.chat.mirror-push-done", mirrorName));
+        } catch (IOException | ProcessException | RuntimeException e) {
+            syslog().error("Push to mirror " + mirrorName + " failed", e);
+            ulog.message(styledLocalized("fastback.chat.mirror-push-failed", ERROR, mirrorName));
+        }
+    }
+
+    /**
+     * Passes on a mirror push's messages, but not its progress updates, which would otherwise be fighting with
+     * those of the other pushes for the HUD.
+     */
+    private record MirrorLogger(UserLogger delegate) implements UserLogger {
+
+        MirrorLogger {
+            requireNonNull(delegate);
+        }
+
+        @Override
+        public void message(UserMessage message) {
+            this.delegate.message(message);
+        }
+
+        @Override
+        public void update(UserMessage message) {
+            syslog().debug(message.toString());
+        }
+    }
+}
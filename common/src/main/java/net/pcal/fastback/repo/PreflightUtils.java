@@ -23,12 +23,16 @@ import net.pcal.fastback.logging.SystemLogger;
 import net.pcal.fastback.utils.ProcessException;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.StoredConfig;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.CodeSource;
 import java.util.Collections;
 
+import static net.pcal.fastback.config.FastbackConfigKey.CHUNK_STORE_DIRECTORY;
 import static net.pcal.fastback.config.FastbackConfigKey.IS_NATIVE_GIT_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.UPDATE_GITATTRIBUTES_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.UPDATE_GITIGNORE_ENABLED;
@@ -44,6 +48,8 @@ import static net.pcal.fastback.utils.ProcessUtils.doExec;
  */
 abstract class PreflightUtils {
 
+    private static final String CHUNK_STORE_AGENT = "fastback-chunks";
+
     // ======================================================================
     // Util methods
 
@@ -73,16 +79,63 @@ abstract class PreflightUtils {
         updateNativeLfsInstallation(repo);
     }
 
+    /**
+     * Point git-lfs at ChunkStoreAgent if a chunk store directory is given, or remove our agent if not.
+     *
+     * @param chunkStoreDir the directory to keep lfs objects in, or null.
+     * @param gitDir        the .git directory of the repo being configured.
+     */
+    static void configureChunkStoreAgent(final StoredConfig config, final String chunkStoreDir, final Path gitDir) throws IOException {
+        final String subsection = "customtransfer." + CHUNK_STORE_AGENT;
+        final Path jar = chunkStoreDir == null ? null : getModCodeSource();
+        if (chunkStoreDir != null && jar == null) syslog().warn("Can't find the fastback jar, the chunk store will not be used");
+        if (jar == null) {
+            if (CHUNK_STORE_AGENT.equals(config.getString("lfs", null, "standalonetransferagent"))) {
+                config.unset("lfs", null, "standalonetransferagent");
+            }
+            config.unsetSection("lfs", subsection);
+        } else {
+            final Path java = Path.of(System.getProperty("java.home"), "bin", "java");
+            config.setString("lfs", null, "standalonetransferagent", CHUNK_STORE_AGENT);
+            config.setString("lfs", subsection, "path", java.toString());
+            config.setString("lfs", subsection, "args", String.join(" ",
+                    "-cp", quote(jar.toString()), ChunkStoreAgent.class.getName(),
+                    quote(Path.of(chunkStoreDir).toAbsolutePath().toString()),
+                    quote(gitDir.toAbsolutePath().resolve("lfs").resolve("tmp").toString())));
+            config.setBoolean("lfs", subsection, "concurrent", true);
+        }
+        config.save();
+    }
+
+    /**
+     * @return the jar (or classes directory) that the mod was loaded from, for running ChunkStoreAgent and
+     * ProxyTunnel in their own JVMs.  Null if it's somewhere that another JVM couldn't load it from.
+     */
+    static Path getModCodeSource() {
+        try {
+            final CodeSource cs = ChunkStoreAgent.class.getProtectionDomain().getCodeSource();
+            if (cs != null && cs.getLocation() != null) {
+                final Path path = Path.of(cs.getLocation().toURI());
+                if (Files.exists(path)) return path;
+            }
+        } catch (Exception e) {
+            syslog().debug(e);
+        }
+        return null;
+    }
+
     // ======================================================================
     // Private
 
     /**
      * Ensures that git-lfs is installed or uninstalled in the worktree as appropriate.
      */
-    private static void updateNativeLfsInstallation(final RepoImpl repo) throws ProcessException, GitAPIException {
+    private static void updateNativeLfsInstallation(final RepoImpl repo) throws IOException, ProcessException, GitAPIException {
         if (repo.getConfig().getBoolean(IS_NATIVE_GIT_ENABLED)) {
             final String[] cmd = {"git", "-C", repo.getWorkTree().getAbsolutePath(), "lfs", "install", "--local"};
             doExec(cmd, Collections.emptyMap(), s -> {}, s -> {});
+            final Repository jgitRepo = repo.getJGit().getRepository();
+            configureChunkStoreAgent(jgitRepo.getConfig(), repo.getConfig().getString(CHUNK_STORE_DIRECTORY), jgitRepo.getDirectory().toPath());
         } else {
             try {
                 // jgit has builtin support for lfs, but it's weird not compatible with native lfs, so lets just
@@ -96,4 +149,8 @@ abstract class PreflightUtils {
             }
         }
     }
+
+    private static String quote(final String arg) {
+        return '"' + arg + '"';
+    }
 }
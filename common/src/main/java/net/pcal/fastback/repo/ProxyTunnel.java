@@ -0,0 +1,96 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.pcal.fastback.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * An ssh ProxyCommand that connects to a ThrottlingProxy and then relays between it and ssh's stdin and stdout,
+ * so that native git's ssh connections are throttled too.  ssh is configured (via GIT_SSH_COMMAND) to run it as
+ * <pre>
+ * java -cp [mod jar] net.pcal.fastback.repo.ProxyTunnel [proxy port] %h %p
+ * </pre>
+ * Like ChunkStoreAgent, this runs in its own JVM with just the mod jar on the classpath, so it must only use
+ * the JDK.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+public final class ProxyTunnel {
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("usage: ProxyTunnel <proxy-port> <host> <port>");
+            System.exit(1);
+        }
+        try (final Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]))) {
+            final OutputStream proxyOut = socket.getOutputStream();
+            final InputStream proxyIn = socket.getInputStream();
+            final String target = args[1] + ":" + args[2];
+            proxyOut.write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes(ISO_8859_1));
+            proxyOut.flush();
+            final String status = readResponse(proxyIn);
+            if (status == null || !status.matches("HTTP/1\\.[01] 200.*")) {
+                System.err.println("fastback proxy refused connection to " + target + ": " + status);
+                System.exit(1);
+            }
+            final Thread upload = new Thread(() -> {
+                try {
+                    System.in.transferTo(proxyOut);
+                    socket.shutdownOutput();
+                } catch (IOException ignored) {
+                }
+            });
+            upload.setDaemon(true);
+            upload.start();
+            final byte[] buf = new byte[16 * 1024];
+            int n;
+            while ((n = proxyIn.read(buf)) != -1) {
+                System.out.write(buf, 0, n);
+                System.out.flush();
+            }
+        }
+    }
+
+    private static String readResponse(final InputStream in) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        String status = null;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\r') continue;
+            if (b != '\n') {
+                buf.write(b);
+                continue;
+            }
+            final String line = buf.toString(ISO_8859_1);
+            buf.reset();
+            if (line.isEmpty()) return status;
+            if (status == null) status = line;
+        }
+        return null;
+    }
+}
@@ -18,15 +18,16 @@
 
 package net.pcal.fastback.repo;
 
-import net.pcal.fastback.config.FastbackConfigKey;
-import net.pcal.fastback.config.GitConfig;
 import net.pcal.fastback.logging.UserLogger;
 import net.pcal.fastback.logging.UserMessage;
 import net.pcal.fastback.retention.RetentionPolicy;
 import net.pcal.fastback.retention.RetentionPolicyCodec;
 import net.pcal.fastback.retention.RetentionPolicyType;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.transport.PushResult;
 import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -36,10 +37,16 @@ import java.util.List;
 import java.util.Set;
 
 import static net.pcal.fastback.config.FastbackConfigKey.LOCAL_RETENTION_POLICY;
-import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_NAME;
+import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_PRUNE_BATCH_SIZE;
+import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_RETENTION_POLICY;
+import static net.pcal.fastback.config.OtherConfigKey.REMOTE_PUSH_URL;
 import static net.pcal.fastback.logging.SystemLogger.syslog;
 import static net.pcal.fastback.logging.UserMessage.UserMessageStyle.ERROR;
+import static net.pcal.fastback.logging.UserMessage.localized;
 import static net.pcal.fastback.logging.UserMessage.styledLocalized;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.eclipse.jgit.transport.RemoteRefUpdate.Status.NON_EXISTING;
+import static org.eclipse.jgit.transport.RemoteRefUpdate.Status.OK;
 
 /**
  * Utils for pruning and deleting snapshot branches.
@@ -52,12 +59,8 @@ abstract class PruneUtils {
     static void deleteRemoteBranch(final RepoImpl repo, String remoteBranchName) throws IOException {
         RefSpec refSpec = new RefSpec()
                 .setSource(null)
-                .setDestination("refs/heads/" + remoteBranchName);
-        try {
-            repo.getJGit().push().setRefSpecs(refSpec).setRemote(repo.getConfig().getString(REMOTE_NAME)).call();
-        } catch (GitAPIException e) {
-            throw new IOException(e);
-        }
+                .setDestination(R_HEADS + remoteBranchName);
+        repo.getRemoteSession().push(List.of(refSpec), NullProgressMonitor.INSTANCE);
     }
 
     static void deleteLocalBranches(final RepoImpl repo, List<String> branchNames) throws IOException {
@@ -68,39 +71,122 @@ abstract class PruneUtils {
         }
     }
 
+    /**
+     * Delete the given snapshots from the remote, batching the deletions into as few pushes as
+     * remote-prune-batch-size allows.  A deletion the remote rejects is logged and skipped; it doesn't stop
+     * the others.
+     *
+     * @return the snapshots that are no longer on the remote.
+     */
+    static List<SnapshotId> deleteRemoteBranches(final RepoImpl repo, final List<SnapshotId> sids) throws IOException {
+        return deleteRemoteBranches(repo, repo.getRemoteSession(), sids);
+    }
+
+    private static List<SnapshotId> deleteRemoteBranches(final RepoImpl repo, final RemoteSession session,
+                                                         final List<SnapshotId> sids) {
+        final int batchSize = Math.max(1, repo.getConfig().getInt(REMOTE_PRUNE_BATCH_SIZE));
+        final List<SnapshotId> deleted = new ArrayList<>(sids.size());
+        for (int i = 0; i < sids.size(); i += batchSize) {
+            final List<SnapshotId> batch = sids.subList(i, Math.min(i + batchSize, sids.size()));
+            final List<RefSpec> refSpecs = new ArrayList<>(batch.size());
+            for (final SnapshotId sid : batch) {
+                refSpecs.add(new RefSpec().setSource(null).setDestination(R_HEADS + sid.getBranchName()));
+            }
+            syslog().debug("Deleting " + batch.size() + " remote branches");
+            final PushResult result;
+            try {
+                result = session.push(refSpecs, NullProgressMonitor.INSTANCE);
+            } catch (IOException e) {
+                syslog().error("Failed to delete remote branches " + batch, e);
+                continue;
+            }
+            for (final SnapshotId sid : batch) {
+                final RemoteRefUpdate update = result.getRemoteUpdate(R_HEADS + sid.getBranchName());
+                if (update != null && (update.getStatus() == OK || update.getStatus() == NON_EXISTING)) {
+                    syslog().info("Pruned remote snapshot " + sid.getBranchName());
+                    deleted.add(sid);
+                } else {
+                    syslog().warn("Failed to prune remote snapshot " + sid.getBranchName() + ": " +
+                            (update == null ? "no result" : update.getStatus()));
+                }
+            }
+        }
+        return deleted;
+    }
+
     static Collection<SnapshotId> doLocalPrune(final RepoImpl repo, final UserLogger log) throws IOException {
-        return doPrune(repo, log,
-                LOCAL_RETENTION_POLICY,
+        final List<SnapshotId> toPrune = getSnapshotsToPrune(log,
+                repo.getConfig().getString(LOCAL_RETENTION_POLICY),
                 repo::getLocalSnapshots,
-                sid -> {
-                    syslog().info("Pruning local snapshot " + sid.getBranchName());
-                    deleteLocalBranches(repo, List.of(sid.getBranchName()));
-                },
                 "fastback.chat.retention-policy-not-set"
         );
+        if (toPrune == null) return null;
+        for (final SnapshotId sid : toPrune) {
+            syslog().info("Pruning local snapshot " + sid.getBranchName());
+            deleteLocalBranches(repo, List.of(sid.getBranchName()));
+        }
+        return toPrune;
     }
 
+    /**
+     * Prune the remote according to the remote retention policy, and each of the mirror remotes according to
+     * its own (see MirrorUtils).  A mirror that can't be pruned doesn't stop the others.
+     *
+     * @return the snapshots pruned from the primary remote.
+     */
     static Collection<SnapshotId> doRemotePrune(RepoImpl repo, UserLogger ulog) throws IOException {
-        return doPrune(repo, ulog,
-                FastbackConfigKey.REMOTE_RETENTION_POLICY,
+        final List<String> mirrorNames = MirrorUtils.getMirrorNames(repo);
+        for (final String mirrorName : mirrorNames) {
+            doMirrorPrune(repo, mirrorName, ulog);
+        }
+        // nothing more to do if the mirrors are all there is
+        if (!repo.getConfig().isSet(REMOTE_PUSH_URL) && !mirrorNames.isEmpty()) return List.of();
+        final List<SnapshotId> toPrune = getSnapshotsToPrune(ulog,
+                repo.getConfig().getString(REMOTE_RETENTION_POLICY),
                 repo::getRemoteSnapshots,
-                sid -> {
-                    syslog().info("Pruning remote snapshot " + sid.getBranchName());
-                    repo.deleteRemoteBranch(sid.getBranchName());
-                },
                 "fastback.chat.remote-retention-policy-not-set"
         );
+        if (toPrune == null) return null;
+        final List<SnapshotId> pruned = deleteRemoteBranches(repo, toPrune);
+        if (pruned.size() < toPrune.size()) {
+            ulog.message(styledLocalized("fastback.chat.remote-prune-incomplete", ERROR, toPrune.size() - pruned.size()));
+        }
+        return pruned;
+    }
+
+    private static void doMirrorPrune(final RepoImpl repo, final String mirrorName, final UserLogger ulog) {
+        final String policyConfig = MirrorUtils.getRetentionPolicy(repo, mirrorName);
+        if (policyConfig == null) {
+            syslog().info("Not pruning mirror " + mirrorName + ", it has no retention policy");
+            return;
+        }
+        try {
+            final RemoteSession session = repo.getRemoteSession(mirrorName);
+            final List<SnapshotId> toPrune = getSnapshotsToPrune(ulog, policyConfig, () -> {
+                try {
+                    return BranchUtils.listSnapshots(repo, session::getRemoteBranchRefs);
+                } catch (GitAPIException e) {
+                    throw new IOException(e);
+                }
+            }, "fastback.chat.remote-retention-policy-not-set");
+            if (toPrune == null) return;
+            final List<SnapshotId> pruned = deleteRemoteBranches(repo, session, toPrune);
+            syslog().info("Pruned " + pruned.size() + " snapshots from mirror " + mirrorName);
+            ulog.message(localized("fastback.chat.mirror-prune-done", pruned.size(), mirrorName));
+            if (pruned.size() < toPrune.size()) {
+                ulog.message(styledLocalized("fastback.chat.remote-prune-incomplete", ERROR, toPrune.size() - pruned.size()));
+            }
+        } catch (IOException | RuntimeException e) {
+            syslog().error("Failed to prune mirror " + mirrorName, e);
+            ulog.message(styledLocalized("fastback.chat.mirror-prune-failed", ERROR, mirrorName));
+        }
     }
 
-    private static Collection<SnapshotId> doPrune(Repo repo,
-                                                  UserLogger log,
-                                                  FastbackConfigKey policyConfigKey,
-                                                  JGitSupplier<Set<SnapshotId>> listSnapshotsFn,
-                                                  JGitConsumer<SnapshotId> deleteSnapshotsFn,
-                                                  String notSetKey) throws IOException {
-        final GitConfig conf = repo.getConfig();
+    private static List<SnapshotId> getSnapshotsToPrune(UserLogger log,
+                                                        String policyConfig,
+                                                        JGitSupplier<Set<SnapshotId>> listSnapshotsFn,
+                                                        String notSetKey) throws IOException {
         RetentionPolicy policy = null;
-        final String policyConfig = conf.getString(policyConfigKey);
         if (policyConfig != null) {
             policy = RetentionPolicyCodec.INSTANCE.decodePolicy(RetentionPolicyType.getAvailable(), policyConfig);
         }
@@ -112,9 +198,6 @@ abstract class PruneUtils {
         final List<SnapshotId> toPrune = new ArrayList<>(toPruneUnsorted);
         Collections.sort(toPrune);
         log.update(UserMessage.localized("fastback.hud.prune-started"));
-        for (final SnapshotId sid : toPrune) {
-            deleteSnapshotsFn.accept(sid);
-        }
         return toPrune;
     }
 }
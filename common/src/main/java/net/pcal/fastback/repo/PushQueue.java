@@ -0,0 +1,197 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.pcal.fastback.repo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+
+/**
+ * The snapshot branches that should be on the remote but (as far as we know) aren't yet, along with how many
+ * times in a row pushing them has failed.  Every push sends everything in the queue, so a snapshot whose push
+ * failed (say, because the remote was down) goes up with the next one rather than never.  Failed pushes are
+ * retried on their own after an exponentially increasing wait.
+ * <p>
+ * The queue lives in .fastback so it survives restarts (each mirror remote has its own, in push-queue-[name]):
+ * <pre>
+ * fastback-push-queue 1
+ * failures 2 retry-after 2024-01-01T12:10:00Z
+ * snapshots/[world-id]/2024-01-01_12-00-00
+ * snapshots/[world-id]/2024-01-01_12-05-00
+ * </pre>
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class PushQueue {
+
+    // ======================================================================
+    // Constants
+
+    static final String QUEUE_FILE = "push-queue";
+    static final String VERSION = "fastback-push-queue 1";
+    static final Duration MIN_BACKOFF = Duration.ofMinutes(5);
+    static final Duration MAX_BACKOFF = Duration.ofHours(4);
+    private static final String FAILURES_PREFIX = "failures ";
+    private static final String RETRY_AFTER = " retry-after ";
+
+    // ======================================================================
+    // Fields
+
+    private final Path file;
+    private final Set<String> branches;
+    private int failures;
+    private Instant retryAfter;
+
+    // ======================================================================
+    // Factory
+
+    static PushQueue load(final Path dotFastbackDir) {
+        return loadFile(dotFastbackDir.resolve(QUEUE_FILE));
+    }
+
+    /**
+     * @return the queue for the given mirror remote.
+     */
+    static PushQueue load(final Path dotFastbackDir, final String mirrorName) {
+        return loadFile(dotFastbackDir.resolve(QUEUE_FILE + "-" + mirrorName.replaceAll("[^A-Za-z0-9._-]", "_")));
+    }
+
+    private static PushQueue loadFile(final Path queueFile) {
+        final PushQueue out = new PushQueue(queueFile);
+        try {
+            if (!Files.exists(out.file)) return out;
+            final List<String> lines = Files.readAllLines(out.file, UTF_8);
+            if (lines.size() < 2 || !lines.get(0).equals(VERSION) || !lines.get(1).startsWith(FAILURES_PREFIX)) {
+                syslog().warn("Ignoring push queue with unknown format");
+                return out;
+            }
+            final String[] status = lines.get(1).substring(FAILURES_PREFIX.length()).split(RETRY_AFTER, 2);
+            try {
+                out.failures = Integer.parseInt(status[0]);
+                out.retryAfter = status.length == 2 ? Instant.parse(status[1]) : null;
+            } catch (NumberFormatException | DateTimeParseException e) {
+                syslog().warn("Ignoring bad push queue status: " + lines.get(1));
+            }
+            for (final String line : lines.subList(2, lines.size())) {
+                if (!line.isBlank()) out.branches.add(line.trim());
+            }
+        } catch (IOException e) {
+            syslog().error("Failed to read push queue", e);
+        }
+        return out;
+    }
+
+    private PushQueue(final Path file) {
+        this.file = requireNonNull(file);
+        this.branches = new LinkedHashSet<>();
+        this.failures = 0;
+        this.retryAfter = null;
+    }
+
+    // ======================================================================
+    // Package private
+
+    /**
+     * @return the queued branch names, oldest first.
+     */
+    List<String> getBranches() {
+        return new ArrayList<>(this.branches);
+    }
+
+    boolean isEmpty() {
+        return this.branches.isEmpty();
+    }
+
+    int getFailures() {
+        return this.failures;
+    }
+
+    /**
+     * @return when the queue should next be retried on its own, or null if it hasn't failed.
+     */
+    Instant getRetryAfter() {
+        return this.retryAfter;
+    }
+
+    boolean isRetryDue(final Instant now) {
+        return !this.branches.isEmpty() && (this.retryAfter == null || !now.isBefore(this.retryAfter));
+    }
+
+    void add(final String branchName) {
+        this.branches.add(requireNonNull(branchName));
+    }
+
+    /**
+     * Forget branches that aren't around to be pushed anymore (e.g., they were pruned while the remote was down).
+     */
+    void retainAll(final Set<String> branchNames) {
+        this.branches.retainAll(branchNames);
+    }
+
+    void pushSucceeded() {
+        this.branches.clear();
+        this.failures = 0;
+        this.retryAfter = null;
+    }
+
+    void pushFailed(final Instant now) {
+        this.failures++;
+        this.retryAfter = now.plus(getBackoff(this.failures));
+    }
+
+    void save() throws IOException {
+        if (!Files.isDirectory(this.file.getParent())) return;
+        if (this.branches.isEmpty() && this.failures == 0) {
+            Files.deleteIfExists(this.file);
+            return;
+        }
+        final List<String> lines = new ArrayList<>(this.branches.size() + 2);
+        lines.add(VERSION);
+        lines.add(FAILURES_PREFIX + this.failures + (this.retryAfter == null ? "" : RETRY_AFTER + this.retryAfter));
+        lines.addAll(this.branches);
+        final Path temp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        Files.write(temp, lines, UTF_8);
+        Files.move(temp, this.file, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    /**
+     * @return how long to wait before retrying after the given number of consecutive failures.
+     */
+    static Duration getBackoff(final int failures) {
+        if (failures <= 0) return Duration.ZERO;
+        final int doublings = Math.min(failures - 1, 16);
+        final Duration backoff = MIN_BACKOFF.multipliedBy(1L << doublings);
+        return backoff.compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : backoff;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+
+/**
+ * What a ResumablePush to one remote has managed to upload so far: the chunk commits the remote has confirmed
+ * receiving, and the lfs objects it has confirmed.  Saved after every chunk and every batch of lfs objects, so
+ * that an interrupted push can pick up where it left off.
+ * <p>
+ * Lives in .fastback/push-state/[remote-name] until the push it belongs to has finished:
+ * <pre>
+ * fastback-push-state 1
+ * chunk 2e65efe2a145dda7ee51d1741299f848e5bf752e
+ * lfs 2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae
+ * </pre>
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class PushState {
+
+    // ======================================================================
+    // Constants
+
+    static final String STATE_DIR = "push-state";
+    static final String VERSION = "fastback-push-state 1";
+    private static final String CHUNK_PREFIX = "chunk ";
+    private static final String LFS_PREFIX = "lfs ";
+
+    // ======================================================================
+    // Fields
+
+    private final Path file;
+    private final Set<ObjectId> chunks = new LinkedHashSet<>();
+    private final Set<String> lfsOids = new LinkedHashSet<>();
+
+    // ======================================================================
+    // Factory
+
+    static PushState load(final Path dotFastbackDir, final String remoteName) {
+        final PushState out = new PushState(dotFastbackDir.resolve(STATE_DIR).
+                resolve(remoteName.replaceAll("[^A-Za-z0-9._-]", "_")));
+        try {
+            if (!Files.exists(out.file)) return out;
+            final List<String> lines = Files.readAllLines(out.file, UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(VERSION)) {
+                syslog().warn("Ignoring push state with unknown format");
+                return out;
+            }
+            for (final String line : lines.subList(1, lines.size())) {
+                if (line.startsWith(CHUNK_PREFIX) && ObjectId.isId(line.substring(CHUNK_PREFIX.length()))) {
+                    out.chunks.add(ObjectId.fromString(line.substring(CHUNK_PREFIX.length())));
+                } else if (line.startsWith(LFS_PREFIX)) {
+                    out.lfsOids.add(line.substring(LFS_PREFIX.length()));
+                } else if (!line.isBlank()) {
+                    syslog().warn("Ignoring bad push state line: " + line);
+                }
+            }
+        } catch (IOException e) {
+            syslog().error("Failed to read push state", e);
+        }
+        return out;
+    }
+
+    private PushState(final Path file) {
+        this.file = requireNonNull(file);
+    }
+
+    // ======================================================================
+    // Package private
+
+    /**
+     * @return the chunk commits the remote has, in the order they were pushed.
+     */
+    List<ObjectId> getChunks() {
+        return new ArrayList<>(this.chunks);
+    }
+
+    boolean isLfsUploaded(final String oid) {
+        return this.lfsOids.contains(oid);
+    }
+
+    int getLfsUploadedCount() {
+        return this.lfsOids.size();
+    }
+
+    boolean isEmpty() {
+        return this.chunks.isEmpty() && this.lfsOids.isEmpty();
+    }
+
+    void chunkPushed(final ObjectId chunkId) {
+        this.chunks.add(chunkId.copy());
+    }
+
+    void lfsUploaded(final Iterable<String> oids) {
+        oids.forEach(this.lfsOids::add);
+    }
+
+    /**
+     * Forget chunks that turn out not to be on the remote anymore.
+     */
+    void retainChunks(final Set<ObjectId> chunkIds) {
+        this.chunks.retainAll(chunkIds);
+    }
+
+    void save() throws IOException {
+        if (this.isEmpty()) {
+            this.delete();
+            return;
+        }
+        if (!Files.isDirectory(this.file.getParent().getParent())) return;
+        Files.createDirectories(this.file.getParent());
+        final List<String> lines = new ArrayList<>(this.chunks.size() + this.lfsOids.size() + 1);
+        lines.add(VERSION);
+        for (final ObjectId chunk : this.chunks) lines.add(CHUNK_PREFIX + chunk.name());
+        for (final String oid : this.lfsOids) lines.add(LFS_PREFIX + oid);
+        final Path temp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        Files.write(temp, lines, UTF_8);
+        Files.move(temp, this.file, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    /**
+     * The push is done; there's nothing to resume.
+     */
+    void delete() throws IOException {
+        this.chunks.clear();
+        this.lfsOids.clear();
+        Files.deleteIfExists(this.file);
+    }
+}
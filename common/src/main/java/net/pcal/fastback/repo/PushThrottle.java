@@ -0,0 +1,155 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.config.GitConfig;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.function.IntSupplier;
+
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_ADAPTIVE_PUSH_THROTTLE_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.PUSH_BANDWIDTH_LIMIT;
+
+/**
+ * Limits how fast we send data to the remote, so that a push doesn't eat the bandwidth players need.  This is a
+ * token bucket holding up to one second's worth of bytes.
+ * <p>
+ * In adaptive mode, the limit only applies while players are online; an empty server pushes at full speed.  The
+ * player count is checked as we go, so a push that's underway speeds up or slows down when people leave or join.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class PushThrottle {
+
+    // ======================================================================
+    // Constants
+
+    private static final long KILOBYTE = 1024;
+    // don't sleep so long at a time that we're slow to notice the limit changing
+    private static final long MAX_SLEEP_MILLIS = 250;
+    private static final int MAX_WRITE = 16 * 1024;
+
+    // ======================================================================
+    // Fields
+
+    private final long bytesPerSecond;
+    private final boolean isAdaptive;
+    private final IntSupplier playerCount;
+    private double tokens;
+    private long lastRefill;
+
+    // ======================================================================
+    // Factory
+
+    /**
+     * @return a throttle for pushes from the given repo, or null if pushes aren't limited.
+     */
+    static PushThrottle create(final GitConfig conf, final IntSupplier playerCount) {
+        final int limitKb = conf.getInt(PUSH_BANDWIDTH_LIMIT);
+        if (limitKb <= 0) return null;
+        return new PushThrottle(limitKb * KILOBYTE, conf.getBoolean(IS_ADAPTIVE_PUSH_THROTTLE_ENABLED), playerCount);
+    }
+
+    PushThrottle(final long bytesPerSecond, final boolean isAdaptive, final IntSupplier playerCount) {
+        if (bytesPerSecond <= 0) throw new IllegalArgumentException();
+        this.bytesPerSecond = bytesPerSecond;
+        this.isAdaptive = isAdaptive;
+        this.playerCount = requireNonNull(playerCount);
+        this.tokens = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    // ======================================================================
+    // Package private
+
+    /**
+     * @return the current limit in bytes per second, or 0 if there isn't one right now.
+     */
+    long getCurrentLimit() {
+        if (this.isAdaptive && this.playerCount.getAsInt() == 0) return 0;
+        return this.bytesPerSecond;
+    }
+
+    /**
+     * Wait until we're allowed to send the given number of bytes.
+     */
+    synchronized void acquire(final int bytes) throws InterruptedIOException {
+        refill();
+        this.tokens -= bytes;
+        while (this.tokens < 0) {
+            final long limit = getCurrentLimit();
+            if (limit == 0) {
+                this.tokens = 0;
+                return;
+            }
+            final long sleepMillis = Math.min(MAX_SLEEP_MILLIS, Math.max(1, (long) (-this.tokens * 1000 / limit)));
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            refill();
+        }
+    }
+
+    /**
+     * @return a stream that writes to the given one no faster than this throttle allows.
+     */
+    OutputStream wrap(final OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                this.out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    final int n = Math.min(len, MAX_WRITE);
+                    acquire(n);
+                    this.out.write(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+        };
+    }
+
+    // ======================================================================
+    // Private
+
+    private void refill() {
+        final long now = System.nanoTime();
+        final long limit = getCurrentLimit();
+        if (limit == 0) {
+            this.tokens = this.bytesPerSecond;
+        } else {
+            this.tokens = Math.min(limit, this.tokens + (now - this.lastRefill) * limit / 1e9);
+        }
+        this.lastRefill = now;
+    }
+}
@@ -26,19 +26,23 @@ import net.pcal.fastback.utils.ProcessException;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
-import org.eclipse.jgit.merge.ContentMergeStrategy;
-import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
-import org.eclipse.jgit.transport.TrackingRefUpdate;
 import org.eclipse.jgit.transport.URIish;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,10 +50,8 @@ import java.util.function.Consumer;
 
 import static java.util.Objects.requireNonNull;
 import static net.pcal.fastback.config.FastbackConfigKey.IS_NATIVE_GIT_ENABLED;
-import static net.pcal.fastback.config.FastbackConfigKey.IS_REMOTE_TEMP_BRANCH_CLEANUP_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_RESUMABLE_PUSH_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.IS_SMART_PUSH_ENABLED;
-import static net.pcal.fastback.config.FastbackConfigKey.IS_TEMP_BRANCH_CLEANUP_ENABLED;
-import static net.pcal.fastback.config.FastbackConfigKey.IS_TRACKING_BRANCH_CLEANUP_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.IS_UUID_CHECK_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_NAME;
 import static net.pcal.fastback.config.OtherConfigKey.REMOTE_PUSH_URL;
@@ -61,6 +63,7 @@ import static net.pcal.fastback.logging.UserMessage.UserMessageStyle.NORMAL;
 import static net.pcal.fastback.logging.UserMessage.styledLocalized;
 import static net.pcal.fastback.logging.UserMessage.styledRaw;
 import static net.pcal.fastback.utils.ProcessUtils.doExec;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
 
 /**
  * Utils for pushing changes to a remote.
@@ -70,22 +73,99 @@ import static net.pcal.fastback.utils.ProcessUtils.doExec;
  */
 abstract class PushUtils {
 
+    private static final int THIN_PUSH_BASE_SNAPSHOTS = 3;
+
     static boolean isTempBranch(String branchName) {
         return branchName.startsWith("temp/");
     }
 
+    /**
+     * Push the given snapshot, along with any others still waiting in the push queue from earlier failures.
+     * If the push fails, they all stay queued and are retried later by doRetryPush.  The snapshot also goes to
+     * every mirror remote at the same time; see MirrorUtils.
+     */
     // TODO stop throwing IOE
     static void doPush(SnapshotId sid, RepoImpl repo, UserLogger ulog) throws IOException, ProcessException {
+        final boolean hasPrimary = repo.getConfig().getString(REMOTE_PUSH_URL) != null;
+        final List<String> mirrors = MirrorUtils.getMirrorNames(repo);
+        if (!hasPrimary && mirrors.isEmpty()) {
+            syslog().warn("Skipping remote backup because no remote url has been configured.");
+            return;
+        }
+        final MirrorUtils.MirrorPushes mirrorPushes = MirrorUtils.startPushes(repo, mirrors, sid.getBranchName(), ulog);
         try {
-            final GitConfig conf = repo.getConfig();
-            final String pushUrl = conf.getString(REMOTE_PUSH_URL);
-            if (pushUrl == null) {
-                syslog().warn("Skipping remote backup because no remote url has been configured.");
-                return;
+            if (!hasPrimary) return;
+            final PushQueue queue = PushQueue.load(repo.getDotFasbackDir());
+            queue.add(sid.getBranchName());
+            pushQueue(queue, repo, repo.getConfig().getString(REMOTE_NAME), ulog);
+        } finally {
+            mirrorPushes.await();
+        }
+    }
+
+    /**
+     * Push whatever is in the push queue if the backoff since the last failed attempt has run out.  Does
+     * nothing if the queue is empty.  Each mirror's queue is handled the same way, independently.
+     */
+    static void doRetryPush(RepoImpl repo, UserLogger ulog) throws IOException, ProcessException {
+        final MirrorUtils.MirrorPushes mirrorPushes = MirrorUtils.startPushes(repo, MirrorUtils.getMirrorNames(repo), null, ulog);
+        try {
+            if (repo.getConfig().getString(REMOTE_PUSH_URL) == null) return;
+            final PushQueue queue = PushQueue.load(repo.getDotFasbackDir());
+            if (!queue.isRetryDue(Instant.now())) return;
+            syslog().info("Retrying push of " + queue.getBranches().size() + " snapshots after " + queue.getFailures() + " failed attempts");
+            pushQueue(queue, repo, repo.getConfig().getString(REMOTE_NAME), ulog);
+        } finally {
+            mirrorPushes.await();
+        }
+    }
+
+    /**
+     * Push everything in the given queue to the named remote, and record how it went in the queue.
+     */
+    static void pushQueue(PushQueue queue, RepoImpl repo, String remoteName, UserLogger ulog) throws IOException, ProcessException {
+        final Repository repository = repo.getJGit().getRepository();
+        final Set<String> localBranches = new HashSet<>();
+        for (final String branchName : queue.getBranches()) {
+            if (repository.exactRef(R_HEADS + branchName) != null) {
+                localBranches.add(branchName);
+            } else {
+                syslog().warn("Dropping " + branchName + " from the push queue, it no longer exists locally.");
+            }
+        }
+        queue.retainAll(localBranches);
+        if (queue.isEmpty()) {
+            queue.pushSucceeded();
+            queue.save();
+            return;
+        }
+        queue.save(); // so it gets retried even if we die mid-push
+        boolean succeeded = false;
+        try {
+            doPush(queue.getBranches(), repo, remoteName, ulog);
+            succeeded = true;
+        } finally {
+            if (succeeded) {
+                queue.pushSucceeded();
+            } else {
+                queue.pushFailed(Instant.now());
+                syslog().warn(queue.getBranches().size() + " snapshots are waiting to be pushed to " + remoteName +
+                        ", will retry after " + queue.getRetryAfter());
             }
-            final Git jgit = repo.getJGit();
-            final Collection<Ref> remoteBranchRefs = jgit.lsRemote().setHeads(true).setTags(false).
-                    setRemote(conf.getString(REMOTE_NAME)).call();
+            try {
+                queue.save();
+            } catch (IOException e) {
+                syslog().error("Failed to update push queue", e);
+            }
+        }
+    }
+
+    private static void doPush(List<String> branchesToPush, RepoImpl repo, String remoteName, UserLogger ulog) throws IOException, ProcessException {
+        try {
+            final GitConfig conf = repo.getConfig();
+            final String pushUrl = getPushUrl(repo.getJGit(), remoteName);
+            final RemoteSession session = repo.getRemoteSession(remoteName);
+            final Collection<Ref> remoteBranchRefs = session.getRemoteBranchRefs();
             final ListMultimap<WorldId, SnapshotId> snapshotsPerWorld =
                     SnapshotIdUtils.getSnapshotsPerWorld(remoteBranchRefs, repo.getSidCodec());
             if (conf.getBoolean(IS_UUID_CHECK_ENABLED)) {
@@ -97,142 +177,139 @@ abstract class PushUtils {
                     uuidCheckResult = false;
                 }
                 if (!uuidCheckResult) {
-                    final URIish remoteUri = getRemoteUri(repo.getJGit(), repo.getConfig().getString(REMOTE_NAME));
+                    final URIish remoteUri = getRemoteUri(repo.getJGit(), remoteName);
                     ulog.message(styledLocalized("fastback.chat.push-id-mismatch", ERROR, remoteUri));
                     syslog().error("Failing remote backup due to failed id check");
                     throw new IOException();
                 }
             }
-            syslog().debug("Pushing to " + pushUrl);
-            PreflightUtils.doPreflight(repo);
-            if (conf.getBoolean(IS_NATIVE_GIT_ENABLED)) {
-                ulog.message(styledLocalized("fastback.chat.push-started", NATIVE_GIT, pushUrl));
-                native_doPush(repo, sid.getBranchName(), ulog);
-            } else if (conf.getBoolean(IS_SMART_PUSH_ENABLED)) {
-                ulog.message(styledLocalized("fastback.chat.push-started", NORMAL, pushUrl));
-                final WorldId uuid = repo.getWorldId();
-                jgit_doSmartPush(repo, snapshotsPerWorld.get(uuid), sid.getBranchName(), conf, ulog);
-            } else {
-                ulog.message(styledLocalized("fastback.chat.push-started", NORMAL, pushUrl));
-                jgit_doPush(jgit, sid.getBranchName(), conf, ulog);
+            syslog().debug("Pushing " + branchesToPush + " to " + pushUrl);
+            try {
+                repo.doPushPreflight();
+                final File fileRemoteGitDir = FileRemoteTransfer.getRemoteGitDir(repo, pushUrl);
+                final boolean isThinPackSupported = fileRemoteGitDir == null && ThinPackPush.isSupported(session.getTransport());
+                final boolean isResumable = isThinPackSupported && conf.getBoolean(IS_RESUMABLE_PUSH_ENABLED);
+                final boolean isThin = isThinPackSupported && !conf.getBoolean(IS_NATIVE_GIT_ENABLED) && conf.getBoolean(IS_SMART_PUSH_ENABLED);
+                // finding these means listing the remote's refs, so only do it if something's going to use them
+                final List<ObjectId> baseIds = isResumable || isThin ?
+                        getBaseSnapshotIds(repo, session, snapshotsPerWorld.get(repo.getWorldId())) : List.of();
+                final ResumablePush resumablePush = isResumable ?
+                        ResumablePush.plan(repo, remoteName, session, branchesToPush, baseIds) : null;
+                if (fileRemoteGitDir != null) {
+                    ulog.message(styledLocalized("fastback.chat.push-started", JGIT, pushUrl));
+                    final Map<String, ObjectId> pushed = FileRemoteTransfer.push(repo.getJGit().getRepository(),
+                            fileRemoteGitDir, branchesToPush, ulog);
+                    pushed.forEach(session::branchPushed);
+                } else if (resumablePush != null) {
+                    ulog.message(styledLocalized("fastback.chat.push-started", JGIT, pushUrl));
+                    final ProgressMonitor pm = new JGitIncrementalProgressMonitor(new JGitPushProgressMonitor(ulog), 100);
+                    resumablePush.push(ulog, pm).forEach(session::branchPushed);
+                } else if (conf.getBoolean(IS_NATIVE_GIT_ENABLED)) {
+                    ulog.message(styledLocalized("fastback.chat.push-started", NATIVE_GIT, pushUrl));
+                    native_doPush(repo, remoteName, session, branchesToPush, ulog);
+                    for (final String branchName : branchesToPush) {
+                        session.branchPushed(branchName, repo.getJGit().getRepository().resolve(branchName));
+                    }
+                } else if (isThin) {
+                    ulog.message(styledLocalized("fastback.chat.push-started", NORMAL, pushUrl));
+                    jgit_doThinPush(repo, session, baseIds, branchesToPush, ulog);
+                } else {
+                    ulog.message(styledLocalized("fastback.chat.push-started", NORMAL, pushUrl));
+                    jgit_doPush(session, branchesToPush, ulog);
+                }
+            } catch (IOException | ProcessException e) {
+                session.forgetRemoteBranches();
+                throw e;
             }
-            syslog().info("Remote backup complete.");
+            syslog().info("Remote backup to " + remoteName + " complete.");
         } catch (GitAPIException e) {
             throw new IOException(e);
         }
     }
 
-    private static void native_doPush(final Repo repo, final String branchNameToPush, final UserLogger log) throws ProcessException {
+    /**
+     * @return true if the remote can be reached and doesn't belong to some other world.  Used to decide
+     * whether it's safe to start sending things to it before doPush is called.
+     */
+    static boolean isRemoteWorldOk(final RepoImpl repo) {
+        try {
+            final GitConfig conf = repo.getConfig();
+            if (!conf.getBoolean(IS_UUID_CHECK_ENABLED)) return true;
+            final Collection<Ref> remoteBranchRefs = repo.getRemoteSession().getRemoteBranchRefs();
+            return doWorldIdCheck(repo, SnapshotIdUtils.getSnapshotsPerWorld(remoteBranchRefs, repo.getSidCodec()).keySet());
+        } catch (IOException e) {
+            syslog().debug("Remote check failed", e);
+            return false;
+        }
+    }
+
+    private static void native_doPush(final RepoImpl repo, final String remoteName, final RemoteSession session,
+                                      final List<String> branchesToPush, final UserLogger log) throws IOException, ProcessException {
         syslog().debug("Start native_push");
         final File worktree = repo.getWorkTree();
-        final GitConfig conf = repo.getConfig();
-        String remoteName = conf.getString(REMOTE_NAME);
-        final String[] push = {"git", "-C", worktree.getAbsolutePath(), "-c", "push.autosetupremote=false", "push", "--progress", "--set-upstream", remoteName, branchNameToPush};
-        final Map<String, String> env = Map.of("GIT_LFS_FORCE_PROGRESS", "1");
+        final List<String> pushList = new ArrayList<>(List.of("git", "-C", worktree.getAbsolutePath(), "-c", "push.autosetupremote=false", "push", "--progress"));
+        if (remoteName.equals(repo.getConfig().getString(REMOTE_NAME))) {
+            // not for mirrors, whose pushes run alongside this one and would fight over .git/config
+            pushList.add("--set-upstream");
+        }
+        pushList.add(remoteName);
+        pushList.addAll(branchesToPush);
+        final String[] push = pushList.toArray(new String[0]);
+        final Map<String, String> env = new HashMap<>(session.getNativeEnv(repo));
+        env.put("GIT_LFS_FORCE_PROGRESS", "1");
         final Consumer<String> outputConsumer = line -> log.update(styledRaw(line, NATIVE_GIT));
         doExec(push, env, outputConsumer, outputConsumer);
         syslog().debug("End native_push");
     }
 
-    private static void jgit_doPush(final Git jgit, final String branchNameToPush, final GitConfig conf, final UserLogger ulog) throws GitAPIException {
+    private static void jgit_doPush(final RemoteSession session, final List<String> branchesToPush, final UserLogger ulog) throws IOException {
         final ProgressMonitor pm = new JGitIncrementalProgressMonitor(new JGitPushProgressMonitor(ulog), 100);
-        final String remoteName = conf.getString(REMOTE_NAME);
-        syslog().info("Doing simple push of " + branchNameToPush);
-        jgit.push().setProgressMonitor(pm).setRemote(remoteName).
-                setRefSpecs(new RefSpec(branchNameToPush + ":" + branchNameToPush)).call();
+        syslog().info("Doing simple push of " + branchesToPush);
+        final List<RefSpec> refSpecs = new ArrayList<>(branchesToPush.size());
+        for (final String branchName : branchesToPush) {
+            refSpecs.add(new RefSpec(branchName + ":" + branchName));
+        }
+        session.push(refSpecs, pm);
     }
 
     /**
-     * This is a probably-failed attempt at an optimization.  It is no longer the default behavior.
-     * <p>
-     * The idea was to try to minimize re-pushing unchanged blobs by establishing a common merge history between the
-     * branch being pushed and one we already know is upstream Again, all snapshot branches are orphan branches, and
-     * git can't bother checking every single blob in unrelated branches when receiving a push.
-     * <p>
-     * But it does do some of this when there is a related history, so the idea here is to create a temporary merge
-     * commit between a branch the server has and the new one it doesn't have, and to then let it figure out that most
-     * of the blobs in those commits are already present on the server.   Unfortunately, I think I may misunderstand
-     * how git behaves here - I think the deduplication is only at commit granularity, so this actually isn't doing
-     * anything except adding a lot of moving parts and problems like this one:
-     * <p>
-     * https://github.com/pcal43/fastback/issues/267
-     * <p>
-     * So, this is no longer enabled by default.  And really, if they're backing up a big world where this matters,
-     * you should just be using native git.
+     * Push with a pack that leaves out whatever is already in the remote's most recent snapshots.  Snapshots are
+     * orphan commits, so a normal push can't tell that the remote already has nearly all of a new snapshot's
+     * trees and blobs.  See ThinPackPush.
      */
-    private static void jgit_doSmartPush(final RepoImpl repo, List<SnapshotId> remoteSnapshots, final String branchNameToPush, final GitConfig conf, final UserLogger ulog) throws IOException {
-        ulog.update(styledLocalized("fastback.chat.push-started", JGIT));
-        try {
-            final Git jgit = repo.getJGit();
-            final String remoteName = conf.getString(REMOTE_NAME);
-            final WorldId worldUuid = repo.getWorldId();
-            final SnapshotId latestCommonSnapshot;
-            if (remoteSnapshots.isEmpty()) {
-                syslog().warn("** This appears to be the first time this world has been pushed.");
-                syslog().warn("** If the world is large, this may take some time.");
-                jgit_doPush(jgit, branchNameToPush, conf, ulog);
-                return;
-            } else {
-                final Collection<Ref> localBranchRefs = jgit.branchList().call();
-                final ListMultimap<WorldId, SnapshotId> localSnapshotsPerWorld =
-                        SnapshotIdUtils.getSnapshotsPerWorld(localBranchRefs, repo.getSidCodec());
-                final List<SnapshotId> localSnapshots = localSnapshotsPerWorld.get(worldUuid);
-                remoteSnapshots.retainAll(localSnapshots);
-                if (remoteSnapshots.isEmpty()) {
-                    syslog().warn("No common snapshots found between local and remote.");
-                    syslog().warn("Doing a full push.  This may take some time.");
-                    jgit_doPush(jgit, branchNameToPush, conf, ulog);
-                    return;
-                } else {
-                    Collections.sort(remoteSnapshots);
-                    latestCommonSnapshot = remoteSnapshots.get(remoteSnapshots.size() - 1);
-                    syslog().debug("Using existing snapshot " + latestCommonSnapshot + " for common history");
-                }
-            }
-            // ok, we have a common snapshot that we can use to create a fake merge history.
-            final String tempBranchName = "temp/" + branchNameToPush;
-            syslog().debug("Creating out temp branch " + tempBranchName);
-            jgit.checkout().setCreateBranch(true).setName(tempBranchName).call();
-            final ObjectId branchId = jgit.getRepository().resolve(latestCommonSnapshot.getBranchName());
-            syslog().debug("Merging " + latestCommonSnapshot.getBranchName());
-            jgit.merge().setContentMergeStrategy(ContentMergeStrategy.OURS).
-                    include(branchId).setMessage("Merge " + branchId + " into " + tempBranchName).call();
-            syslog().debug("Checking out " + branchNameToPush);
-            jgit.checkout().setName(branchNameToPush).call();
-            syslog().debug("Pushing temp branch " + tempBranchName);
-            final ProgressMonitor pm = new JGitIncrementalProgressMonitor(new JGitPushProgressMonitor(ulog), 100);
-            final Iterable<PushResult> pushResult = jgit.push().setProgressMonitor(pm).setRemote(remoteName).
-                    setRefSpecs(new RefSpec(tempBranchName + ":" + tempBranchName),
-                            new RefSpec(branchNameToPush + ":" + branchNameToPush)).call();
-            syslog().debug("Cleaning up branches...");
-            if (conf.getBoolean(IS_TRACKING_BRANCH_CLEANUP_ENABLED)) {
-                for (final PushResult pr : pushResult) {
-                    for (final TrackingRefUpdate f : pr.getTrackingRefUpdates()) {
-                        final String PREFIX = "refs/remotes/";
-                        if (f.getLocalName().startsWith(PREFIX)) {
-                            final String trackingBranchName = f.getLocalName().substring(PREFIX.length());
-                            syslog().debug("Cleaning up tracking branch " + trackingBranchName);
-                            jgit.branchDelete().setForce(true).setBranchNames(trackingBranchName).call();
-                        } else {
-                            syslog().warn("Ignoring unrecognized TrackingRefUpdate " + f.getLocalName());
-                        }
-                    }
-                }
-            }
-            if (conf.getBoolean(IS_TEMP_BRANCH_CLEANUP_ENABLED)) {
-                syslog().debug("Deleting local temp branch " + tempBranchName);
-                jgit.branchDelete().setForce(true).setBranchNames(tempBranchName).call();
-            }
-            if (conf.getBoolean(IS_REMOTE_TEMP_BRANCH_CLEANUP_ENABLED)) {
-                final String remoteTempBranch = "refs/heads/" + tempBranchName;
-                syslog().debug("Deleting remote temp branch " + remoteTempBranch);
-                final RefSpec deleteRemoteBranchSpec = new RefSpec().setSource(null).setDestination(remoteTempBranch);
-                jgit.push().setProgressMonitor(pm).setRemote(remoteName).setRefSpecs(deleteRemoteBranchSpec).call();
+    private static void jgit_doThinPush(final RepoImpl repo, final RemoteSession session, final List<ObjectId> baseIds,
+                                        final List<String> branchesToPush, final UserLogger ulog) throws IOException {
+        if (baseIds.isEmpty()) {
+            syslog().warn("No common snapshots found between local and remote.");
+            syslog().warn("Doing a full push.  This may take some time.");
+        }
+        syslog().info("Doing thin push of " + branchesToPush + " against " + baseIds.size() + " remote snapshots");
+        final ProgressMonitor pm = new JGitIncrementalProgressMonitor(new JGitPushProgressMonitor(ulog), 100);
+        final Map<String, ObjectId> pushed = ThinPackPush.push(session.getTransport(), repo.getJGit().getRepository(),
+                branchesToPush, baseIds, pm);
+        pushed.forEach(session::branchPushed);
+    }
+
+    /**
+     * @return the commit ids of the remote's most recent snapshots that we also have locally, for a ThinPackPush
+     * to leave out.
+     */
+    private static List<ObjectId> getBaseSnapshotIds(final RepoImpl repo, final RemoteSession session,
+                                                     final List<SnapshotId> remoteSnapshots) throws IOException {
+        final Map<String, ObjectId> remoteIds = new HashMap<>();
+        for (final Ref ref : session.getRemoteBranchRefs()) remoteIds.put(ref.getName(), ref.getObjectId());
+        final List<SnapshotId> sorted = new ArrayList<>(remoteSnapshots);
+        Collections.sort(sorted);
+        Collections.reverse(sorted);
+        final List<ObjectId> baseIds = new ArrayList<>();
+        try (final ObjectReader reader = repo.getJGit().getRepository().newObjectReader()) {
+            for (final SnapshotId sid : sorted) {
+                final ObjectId id = remoteIds.get(R_HEADS + sid.getBranchName());
+                if (id != null && reader.has(id)) baseIds.add(id);
+                if (baseIds.size() >= THIN_PUSH_BASE_SNAPSHOTS) break;
             }
-            syslog().info("Push complete");
-        } catch (GitAPIException e) {
-            throw new IOException(e);
         }
+        return baseIds;
     }
 
     private static boolean doWorldIdCheck(RepoImpl repo, Set<WorldId> remoteWorldUuids) throws IOException {
@@ -252,6 +329,15 @@ abstract class PushUtils {
         return true;
     }
 
+    /**
+     * @return the url we push to for the named remote, or null if it doesn't have one.
+     */
+    static String getPushUrl(final Git jgit, final String remoteName) {
+        final StoredConfig config = jgit.getRepository().getConfig();
+        final String pushUrl = config.getString("remote", remoteName, "pushurl");
+        return pushUrl != null ? pushUrl : config.getString("remote", remoteName, "url");
+    }
+
     private static URIish getRemoteUri(Git jgit, String remoteName) throws IOException {
         requireNonNull(jgit);
         requireNonNull(remoteName);
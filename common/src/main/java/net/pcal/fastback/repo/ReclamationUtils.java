@@ -64,6 +64,8 @@ import static org.eclipse.jgit.api.ListBranchCommand.ListMode.ALL;
 abstract class ReclamationUtils {
 
     static void doReclamation(RepoImpl repo, UserLogger ulog) throws GitAPIException, ProcessException {
+        // fast-import mustn't be holding on to objects we're about to delete
+        FastImportSession.close(repo.getWorkTree().toPath());
         if (repo.getConfig().getBoolean(IS_NATIVE_GIT_ENABLED)) {
             native_doLfsPrune(repo, ulog);
         } else {
@@ -0,0 +1,253 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.utils.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+
+/**
+ * Stores region files as a tree of per-chunk blobs instead of one big blob.
+ * <p>
+ * A region file is an 8 KiB header (the chunk locations and timestamps) followed by up to 1024 chunks, each
+ * taking some number of 4 KiB sectors.  A save usually rewrites only a handful of chunks, but every one of
+ * them changes the region file's blob, so each snapshot would otherwise store the whole file again.  Here
+ * r.0.0.mca is stored as r.0.0.mca.chunked/, containing
+ * <ul>
+ *   <li>header - the first 8 KiB of the file</li>
+ *   <li>c.[index] - the sectors of each chunk, exactly as they are in the file</li>
+ *   <li>residue - every other byte of the file (free sectors, a partial trailing sector), in file order</li>
+ *   <li>layout - the length of the file</li>
+ * </ul>
+ * Unchanged chunks hash to the same blobs, so they're shared with the previous snapshot and cost nothing to
+ * store or push.  The header is all that's needed to put the pieces back in place, so reassembly is
+ * byte-identical.  Files that don't parse as a region (too short, overlapping chunks, chunks past the end)
+ * are stored with no header; the residue is then the whole file.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+abstract class RegionChunkUtils {
+
+    // ======================================================================
+    // Constants
+
+    static final String CHUNKED_SUFFIX = ".chunked";
+    static final String HEADER = "header";
+    static final String LAYOUT = "layout";
+    static final String RESIDUE = "residue";
+    static final String CHUNK_PREFIX = "c.";
+    private static final int SECTOR_SIZE = 4096;
+    private static final int CHUNK_COUNT = 1024;
+    private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+    private static final String LAYOUT_VERSION = "fastback-region 1";
+    private static final String LENGTH_PREFIX = "length ";
+
+    // ======================================================================
+    // Package private
+
+    record ChunkedRegion(String path, long length, Instant lastModified, ObjectId treeId) {
+    }
+
+    /**
+     * Write the chunked trees for some region files.  Blobs for chunks that haven't changed are already in
+     * the object database and don't get written again.
+     *
+     * @param workTree where to read the files from; usually the worktree, but could be the staging directory.
+     */
+    static List<ChunkedRegion> insertChunkedRegions(final Repository repo,
+                                                    final File workTree,
+                                                    final Collection<String> paths,
+                                                    final Consumer<String> progress) throws IOException {
+        final List<ChunkedRegion> out = new ArrayList<>(paths.size());
+        try (final ObjectInserter inserter = repo.newObjectInserter()) {
+            for (final String path : paths) {
+                progress.accept(path);
+                final Path file = workTree.toPath().resolve(path);
+                final Instant lastModified = Files.getLastModifiedTime(file).toInstant();
+                final byte[] data = Files.readAllBytes(file);
+                final ObjectId treeId = insertTree(inserter, split(data));
+                out.add(new ChunkedRegion(path, data.length, lastModified, treeId));
+            }
+            inserter.flush();
+        }
+        return out;
+    }
+
+    /**
+     * Replace every chunked region in a restored snapshot with the reassembled region file.
+     */
+    static void reassembleRegions(final Path restoreDir) throws IOException {
+        final List<Path> chunkedDirs;
+        try (final Stream<Path> s = Files.walk(restoreDir)) {
+            chunkedDirs = s.filter(p -> Files.isDirectory(p) && p.getFileName().toString().endsWith(CHUNKED_SUFFIX)).
+                    filter(p -> !restoreDir.relativize(p).startsWith(".git")).toList();
+        }
+        for (final Path chunkedDir : chunkedDirs) {
+            final Map<String, byte[]> parts = new TreeMap<>();
+            try (final Stream<Path> s = Files.list(chunkedDir)) {
+                for (final Path part : s.toList()) parts.put(part.getFileName().toString(), Files.readAllBytes(part));
+            }
+            final String name = chunkedDir.getFileName().toString();
+            final Path regionFile = chunkedDir.resolveSibling(name.substring(0, name.length() - CHUNKED_SUFFIX.length()));
+            Files.write(regionFile, join(parts));
+            FileUtils.rmdir(chunkedDir);
+        }
+        syslog().debug("Reassembled " + chunkedDirs.size() + " chunked region files");
+    }
+
+    /**
+     * @return the parts of the region file, keyed by name.
+     */
+    static SortedMap<String, byte[]> split(final byte[] data) {
+        final SortedMap<String, byte[]> out = new TreeMap<>();
+        out.put(LAYOUT, (LAYOUT_VERSION + "\n" + LENGTH_PREFIX + data.length + "\n").getBytes(UTF_8));
+        final List<ChunkRange> chunks = data.length < HEADER_SIZE ? null : findChunks(data, data.length);
+        if (chunks == null) {
+            out.put(RESIDUE, data);
+            return out;
+        }
+        out.put(HEADER, Arrays.copyOfRange(data, 0, HEADER_SIZE));
+        final ByteArrayOutputStream residue = new ByteArrayOutputStream();
+        int pos = HEADER_SIZE;
+        for (final ChunkRange chunk : chunks) {
+            residue.write(data, pos, chunk.start() - pos);
+            out.put(CHUNK_PREFIX + chunk.index(), Arrays.copyOfRange(data, chunk.start(), chunk.end()));
+            pos = chunk.end();
+        }
+        residue.write(data, pos, data.length - pos);
+        out.put(RESIDUE, residue.toByteArray());
+        return out;
+    }
+
+    /**
+     * @return the original region file, given the parts returned by split().
+     */
+    static byte[] join(final Map<String, byte[]> parts) throws IOException {
+        final int length = parseLength(parts.get(LAYOUT));
+        final byte[] residue = requirePart(parts, RESIDUE);
+        final byte[] header = parts.get(HEADER);
+        if (header == null) {
+            if (residue.length != length) throw new IOException("residue is " + residue.length + " bytes, expected " + length);
+            return residue;
+        }
+        if (header.length != HEADER_SIZE) throw new IOException("invalid header length " + header.length);
+        final List<ChunkRange> chunks = findChunks(header, length);
+        if (chunks == null) throw new IOException("invalid region header");
+        final byte[] out = new byte[length];
+        System.arraycopy(header, 0, out, 0, HEADER_SIZE);
+        int pos = HEADER_SIZE;
+        int residuePos = 0;
+        try {
+            for (final ChunkRange chunk : chunks) {
+                System.arraycopy(residue, residuePos, out, pos, chunk.start() - pos);
+                residuePos += chunk.start() - pos;
+                final byte[] data = requirePart(parts, CHUNK_PREFIX + chunk.index());
+                if (data.length != chunk.end() - chunk.start()) throw new IOException("chunk " + chunk.index() + " has the wrong length");
+                System.arraycopy(data, 0, out, chunk.start(), data.length);
+                pos = chunk.end();
+            }
+            System.arraycopy(residue, residuePos, out, pos, length - pos);
+            residuePos += length - pos;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("residue is too short", e);
+        }
+        if (residuePos != residue.length) throw new IOException("residue is too long");
+        return out;
+    }
+
+    // ======================================================================
+    // Private
+
+    private record ChunkRange(int index, int start, int end) {
+    }
+
+    /**
+     * @return the byte ranges of the chunks listed in the header, in file order, or null if they don't
+     * describe something we can reassemble.
+     */
+    private static List<ChunkRange> findChunks(final byte[] header, final int length) {
+        final List<ChunkRange> out = new ArrayList<>();
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            final int location = ((header[i * 4] & 0xff) << 24) | ((header[i * 4 + 1] & 0xff) << 16) |
+                    ((header[i * 4 + 2] & 0xff) << 8) | (header[i * 4 + 3] & 0xff);
+            if (location == 0) continue;
+            final long start = (long) (location >>> 8) * SECTOR_SIZE;
+            final long end = Math.min(start + (long) (location & 0xff) * SECTOR_SIZE, length);
+            if (start < HEADER_SIZE || end <= start) return null;
+            out.add(new ChunkRange(i, (int) start, (int) end));
+        }
+        out.sort(Comparator.comparingInt(ChunkRange::start));
+        for (int i = 1; i < out.size(); i++) {
+            if (out.get(i).start() < out.get(i - 1).end()) return null;
+        }
+        return out;
+    }
+
+    private static ObjectId insertTree(final ObjectInserter inserter, final SortedMap<String, byte[]> parts) throws IOException {
+        final TreeFormatter formatter = new TreeFormatter();
+        for (final Map.Entry<String, byte[]> part : parts.entrySet()) {
+            formatter.append(part.getKey(), FileMode.REGULAR_FILE, inserter.insert(Constants.OBJ_BLOB, part.getValue()));
+        }
+        return inserter.insert(formatter);
+    }
+
+    private static int parseLength(final byte[] layout) throws IOException {
+        if (layout == null) throw new IOException("missing " + LAYOUT);
+        final String[] lines = new String(layout, UTF_8).split("\n");
+        if (lines.length < 2 || !lines[0].equals(LAYOUT_VERSION) || !lines[1].startsWith(LENGTH_PREFIX)) {
+            throw new IOException("unsupported region layout: " + lines[0]);
+        }
+        try {
+            return Integer.parseInt(lines[1].substring(LENGTH_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid region length " + lines[1], e);
+        }
+    }
+
+    private static byte[] requirePart(final Map<String, byte[]> parts, final String name) throws IOException {
+        final byte[] out = parts.get(name);
+        if (out == null) throw new IOException("missing " + name);
+        return out;
+    }
+}
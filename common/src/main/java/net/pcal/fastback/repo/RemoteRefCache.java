@@ -0,0 +1,102 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.pcal.fastback.repo;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+
+/**
+ * Remembers the branches we last saw on each remote, so that read-only things like remote-list, snapshot name
+ * suggestions and the world-id check before a push don't have to go back to the remote every time.
+ * <p>
+ * Entries expire after remote-ref-cache-seconds.  Our own pushes and deletions are applied to an entry as
+ * they happen (without extending its life), and anything that goes wrong talking to the remote throws the
+ * entry away.  Other machines pushing to the same remote won't be noticed until the entry expires.
+ * <p>
+ * This is in-memory only, and keyed by both the local repo and the remote's url.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+abstract class RemoteRefCache {
+
+    // ======================================================================
+    // Fields
+
+    private static final Map<String, Entry> ENTRIES = new HashMap<>();
+
+    // ======================================================================
+    // Package private
+
+    /**
+     * @return the cached branches, or null if there are none that are younger than the ttl.
+     */
+    static synchronized Map<String, Ref> get(final String key, final Duration ttl) {
+        final Entry entry = ENTRIES.get(key);
+        if (entry == null) return null;
+        if (System.nanoTime() - entry.listedAt() > ttl.toNanos()) {
+            ENTRIES.remove(key);
+            return null;
+        }
+        return new HashMap<>(entry.branches());
+    }
+
+    static synchronized void put(final String key, final Duration ttl, final Collection<Ref> branches) {
+        if (ttl.isZero() || ttl.isNegative()) return;
+        final Map<String, Ref> map = new HashMap<>();
+        for (final Ref ref : branches) map.put(ref.getName(), ref);
+        ENTRIES.put(key, new Entry(map, System.nanoTime()));
+    }
+
+    /**
+     * Record that we've set the given branch on the remote to the given id, or deleted it if the id is null.
+     */
+    static synchronized void update(final String key, final String refName, final ObjectId newId) {
+        final Entry entry = ENTRIES.get(key);
+        if (entry == null) return;
+        if (newId == null) {
+            entry.branches().remove(refName);
+        } else {
+            entry.branches().put(refName, new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, newId.copy()));
+        }
+    }
+
+    static synchronized void invalidate(final String key) {
+        if (ENTRIES.remove(key) != null) syslog().debug("Invalidated cached refs for " + key);
+    }
+
+    static synchronized void clear() {
+        ENTRIES.clear();
+    }
+
+    // ======================================================================
+    // Private
+
+    private record Entry(Map<String, Ref> branches, long listedAt) {
+    }
+}
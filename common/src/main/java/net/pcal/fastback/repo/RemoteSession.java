@@ -0,0 +1,530 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.config.GitConfig;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.RemoteSession2;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.SshTransport;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_SSH_MULTIPLEXING_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_NAME;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.utils.ProcessUtils.doExec;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.eclipse.jgit.transport.RemoteRefUpdate.Status.NON_EXISTING;
+import static org.eclipse.jgit.transport.RemoteRefUpdate.Status.OK;
+import static org.eclipse.jgit.transport.RemoteRefUpdate.Status.UP_TO_DATE;
+
+/**
+ * A single connection to the remote that's shared by everything a Repo does with it: listing snapshots, the
+ * world-id check, pushing and deleting branches.  Over ssh, each separate jgit command would otherwise pay for
+ * its own handshake; a Transport keeps its ssh session open until it's closed, so fetch and push connections
+ * opened through the same one share it.
+ * <p>
+ * The remote's branches are listed once, when first asked for (or taken from the RemoteRefCache if it's been
+ * done recently), and then kept up to date with whatever we push or delete through the session.  That's only
+ * safe because sessions are short-lived (they belong to a single Repo, which belongs to a single command or
+ * scheduled action).
+ * <p>
+ * Native git doesn't go through here.  The nearest equivalent there is ssh connection multiplexing, which
+ * getNativeEnv sets up if ssh-multiplexing-enabled is set.
+ * <p>
+ * If pushes are throttled, the session also applies the PushThrottle: to jgit's ssh connections by wrapping the
+ * streams of the processes its ssh sessions run, and to native git (and git-lfs) by running a ThrottlingProxy
+ * for them to connect through.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class RemoteSession implements Closeable {
+
+    // ======================================================================
+    // Constants
+
+    // keep the path short; unix socket paths are limited to about 100 characters
+    private static final String CONTROL_PATH = "~/.ssh/fastback-%C";
+    private static final String CONTROL_PERSIST_SECONDS = "600";
+
+    // ======================================================================
+    // Fields
+
+    private final Transport transport;
+    private final String cacheKey;
+    private final Duration cacheTtl;
+    private final PushThrottle throttle;
+    private Map<String, Ref> remoteBranches = null;
+    private ThrottlingProxy proxy = null;
+
+    // ======================================================================
+    // Factory
+
+    static RemoteSession open(final Repository repository, final String remoteName, final Duration cacheTtl) throws IOException {
+        return open(repository, remoteName, cacheTtl, null);
+    }
+
+    /**
+     * @param throttle limits the rate we send to the remote, or null for no limit.
+     */
+    static RemoteSession open(final Repository repository, final String remoteName, final Duration cacheTtl,
+                              final PushThrottle throttle) throws IOException {
+        final Transport transport;
+        try {
+            transport = Transport.open(repository, remoteName, Transport.Operation.PUSH);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if (throttle != null && transport instanceof SshTransport sshTransport) {
+            sshTransport.setSshSessionFactory(new ThrottledSshSessionFactory(sshTransport.getSshSessionFactory(), throttle));
+        }
+        final String cacheKey = repository.getDirectory().getAbsolutePath() + " " + transport.getURI();
+        return new RemoteSession(transport, cacheKey, cacheTtl, throttle);
+    }
+
+    private RemoteSession(final Transport transport, final String cacheKey, final Duration cacheTtl, final PushThrottle throttle) {
+        this.transport = requireNonNull(transport);
+        this.cacheKey = requireNonNull(cacheKey);
+        this.cacheTtl = requireNonNull(cacheTtl);
+        this.throttle = throttle;
+    }
+
+    // ======================================================================
+    // Package private
+
+    /**
+     * @return the branches on the remote.  Only goes to the remote the first time it's called, and not even
+     * then if they're in the cache.
+     */
+    synchronized Collection<Ref> getRemoteBranchRefs() throws IOException {
+        if (this.remoteBranches == null) {
+            this.remoteBranches = RemoteRefCache.get(this.cacheKey, this.cacheTtl);
+        }
+        if (this.remoteBranches == null) {
+            syslog().debug("Listing branches on " + this.transport.getURI());
+            try (final FetchConnection fc = this.transport.openFetch(List.of(new RefSpec(R_HEADS + "*:" + R_HEADS + "*")), R_HEADS)) {
+                final Map<String, Ref> branches = new HashMap<>();
+                for (final Ref ref : fc.getRefs()) {
+                    if (ref.getName().startsWith(R_HEADS)) branches.put(ref.getName(), ref);
+                }
+                this.remoteBranches = branches;
+            } catch (IOException | RuntimeException e) {
+                RemoteRefCache.invalidate(this.cacheKey);
+                throw e;
+            }
+            RemoteRefCache.put(this.cacheKey, this.cacheTtl, this.remoteBranches.values());
+        }
+        return Collections.unmodifiableCollection(new ArrayList<>(this.remoteBranches.values()));
+    }
+
+    /**
+     * @return the transport this session pushes through, for things that need to talk to the remote in ways
+     * it doesn't support itself (i.e., ThinPackPush).
+     */
+    Transport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Record that something other than this session (i.e., native git) has successfully pushed the given
+     * branch to the given id.
+     */
+    synchronized void branchPushed(final String branchName, final ObjectId newId) {
+        if (this.remoteBranches != null) {
+            this.remoteBranches.put(R_HEADS + branchName, new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, R_HEADS + branchName, newId));
+        }
+        RemoteRefCache.update(this.cacheKey, R_HEADS + branchName, newId);
+    }
+
+    /**
+     * Drop what we know about the remote's branches, so they're listed again next time.  For when something
+     * has gone wrong and we can't be sure what state the remote is in.
+     */
+    synchronized void forgetRemoteBranches() {
+        this.remoteBranches = null;
+        RemoteRefCache.invalidate(this.cacheKey);
+    }
+
+    /**
+     * Push the given refspecs (e.g., 'branch:branch' to push a branch, ':refs/heads/branch' to delete one).
+     */
+    synchronized PushResult push(final Collection<RefSpec> refSpecs, final ProgressMonitor pm) throws IOException {
+        final PushResult result;
+        try {
+            final Collection<RemoteRefUpdate> updates = this.transport.findRemoteRefUpdatesFor(refSpecs);
+            result = this.transport.push(pm, updates);
+        } catch (IOException | RuntimeException e) {
+            this.forgetRemoteBranches();
+            throw e;
+        }
+        for (final RemoteRefUpdate update : result.getRemoteUpdates()) {
+            final boolean alreadyDeleted = update.isDelete() && update.getStatus() == NON_EXISTING;
+            if (update.getStatus() != OK && update.getStatus() != UP_TO_DATE && !alreadyDeleted) {
+                syslog().warn("Remote did not update " + update.getRemoteName() + ": " + update.getStatus() +
+                        (update.getMessage() == null ? "" : " " + update.getMessage()));
+                continue;
+            }
+            if (!update.getRemoteName().startsWith(R_HEADS)) continue; // we only keep track of branches
+            final ObjectId newId = update.isDelete() ? null : update.getNewObjectId();
+            if (this.remoteBranches != null) {
+                if (newId == null) {
+                    this.remoteBranches.remove(update.getRemoteName());
+                } else {
+                    this.remoteBranches.put(update.getRemoteName(), new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK,
+                            update.getRemoteName(), newId));
+                }
+            }
+            RemoteRefCache.update(this.cacheKey, update.getRemoteName(), newId);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.proxy != null) {
+            this.proxy.close();
+            this.proxy = null;
+        }
+        this.transport.close();
+    }
+
+    // ======================================================================
+    // Native git
+
+    /**
+     * @return environment variables for native git commands that talk to the remote.  These make its ssh
+     * connections share a single multiplexed connection (ssh ControlMaster) if ssh-multiplexing-enabled is set,
+     * and send everything through our ThrottlingProxy if pushes are throttled.  We don't touch the ssh command if
+     * the user has configured their own, and don't multiplex on Windows, where OpenSSH can't.  If the user already
+     * goes through a proxy of their own (for https, or a ProxyCommand or ProxyJump for ssh), we leave it alone
+     * and that traffic isn't throttled.
+     */
+    synchronized Map<String, String> getNativeEnv(final RepoImpl repo) throws IOException {
+        final Map<String, String> env = new HashMap<>();
+        final List<String> sshOptions = new ArrayList<>();
+        if (repo.getConfig().getBoolean(IS_SSH_MULTIPLEXING_ENABLED) && !isWindows()) {
+            sshOptions.add("ControlMaster=auto");
+            sshOptions.add("ControlPath=" + CONTROL_PATH);
+            sshOptions.add("ControlPersist=" + CONTROL_PERSIST_SECONDS);
+        }
+        if (this.throttle != null) {
+            final URIish uri = this.transport.getURI();
+            final Map<String, String> sshConfig = isSsh(uri) && !isWindows() ? getSshConfig(uri) : null;
+            final boolean proxyHttps = !hasHttpsProxy(repo);
+            final boolean proxySsh = sshConfig != null && !isSshCommandSet(repo) &&
+                    "none".equals(sshConfig.getOrDefault("proxycommand", "none")) &&
+                    "none".equals(sshConfig.getOrDefault("proxyjump", "none"));
+            if (!proxyHttps) syslog().info("Not throttling https, a proxy is already configured");
+            if (sshConfig != null && !proxySsh) syslog().info("Not throttling ssh, it has its own proxy or command");
+            if (this.proxy == null && (proxyHttps || proxySsh)) {
+                this.proxy = ThrottlingProxy.start(this.throttle, getProxyPorts(uri, sshConfig, repo));
+            }
+            if (proxyHttps) {
+                final String proxyUrl = "http://127.0.0.1:" + this.proxy.getPort();
+                env.put("HTTPS_PROXY", proxyUrl);
+                env.put("https_proxy", proxyUrl);
+            }
+            final String proxyCommand = proxySsh ? getProxyCommand(this.proxy.getPort()) : null;
+            if (proxyCommand != null) sshOptions.add("ProxyCommand=" + proxyCommand);
+        }
+        if (!sshOptions.isEmpty() && !isSshCommandSet(repo)) {
+            final StringBuilder sshCommand = new StringBuilder("ssh");
+            for (final String option : sshOptions) sshCommand.append(" -o '").append(option).append('\'');
+            env.put("GIT_SSH_COMMAND", sshCommand.toString());
+        }
+        return env;
+    }
+
+    /**
+     * Ask the multiplexing master for the given world's remote (if there is one) to exit, rather than leaving
+     * it to time out.  Best-effort.
+     */
+    static void closeNativeSsh(final Path worldSaveDir) {
+        if (isWindows()) return;
+        try (final Git jgit = Git.open(worldSaveDir.toFile())) {
+            final GitConfig conf = GitConfig.load(jgit);
+            if (!conf.getBoolean(IS_SSH_MULTIPLEXING_ENABLED)) return;
+            final String remoteName = conf.getString(REMOTE_NAME);
+            final StoredConfig config = jgit.getRepository().getConfig();
+            final String url = config.getString("remote", remoteName, "pushurl") != null ?
+                    config.getString("remote", remoteName, "pushurl") : config.getString("remote", remoteName, "url");
+            if (url == null) return;
+            final URIish uri = new URIish(url);
+            if (uri.getHost() == null || !(uri.getScheme() == null || uri.getScheme().startsWith("ssh"))) return;
+            final List<String> cmd = new ArrayList<>(List.of("ssh", "-o", "ControlPath=" + CONTROL_PATH, "-O", "exit"));
+            if (uri.getPort() > 0) {
+                cmd.add("-p");
+                cmd.add(String.valueOf(uri.getPort()));
+            }
+            cmd.add(uri.getUser() == null ? uri.getHost() : uri.getUser() + "@" + uri.getHost());
+            doExec(cmd.toArray(new String[0]), Collections.emptyMap(), s -> {}, s -> {}, false);
+        } catch (Exception e) {
+            syslog().debug("Failed to stop ssh master", e);
+        }
+    }
+
+    // ======================================================================
+    // Private
+
+    private static boolean isSsh(final URIish uri) {
+        return uri.getHost() != null && (uri.getScheme() == null || uri.getScheme().startsWith("ssh"));
+    }
+
+    /**
+     * @return true if git or git-lfs would already use a proxy for https.
+     */
+    private static boolean hasHttpsProxy(final RepoImpl repo) {
+        for (final String var : List.of("HTTPS_PROXY", "https_proxy", "ALL_PROXY", "all_proxy")) {
+            final String value = System.getenv(var);
+            if (value != null && !value.isBlank()) return true;
+        }
+        final StoredConfig config = repo.getJGit().getRepository().getConfig();
+        if (config.getString("http", null, "proxy") != null) return true;
+        for (final String remote : config.getSubsections("remote")) {
+            if (config.getString("remote", remote, "proxy") != null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return ssh's configuration for connecting to the given remote (from 'ssh -G'), with lowercase keys.
+     */
+    private static Map<String, String> getSshConfig(final URIish uri) {
+        final Map<String, String> out = new HashMap<>();
+        final List<String> cmd = new ArrayList<>(List.of("ssh", "-G"));
+        if (uri.getPort() > 0) {
+            cmd.add("-p");
+            cmd.add(String.valueOf(uri.getPort()));
+        }
+        cmd.add(uri.getUser() == null ? uri.getHost() : uri.getUser() + "@" + uri.getHost());
+        try {
+            doExec(cmd.toArray(new String[0]), Collections.emptyMap(), line -> {
+                final int space = line.indexOf(' ');
+                if (space > 0) out.putIfAbsent(line.substring(0, space).toLowerCase(), line.substring(space + 1).trim());
+            }, s -> {}, false);
+        } catch (Exception e) {
+            syslog().debug("Failed to get ssh config for " + uri.getHost(), e);
+        }
+        return out;
+    }
+
+    /**
+     * @return the ports our proxy should let git and git-lfs connect to: https and ssh, plus whatever other ports
+     * the remote (as ssh resolves it, for ssh remotes) and any configured lfs urls use.
+     */
+    private static Set<Integer> getProxyPorts(final URIish uri, final Map<String, String> sshConfig, final RepoImpl repo) {
+        final Set<Integer> out = new HashSet<>(List.of(443, 22));
+        if (uri.getHost() != null && uri.getPort() > 0) out.add(uri.getPort());
+        if (sshConfig != null && sshConfig.containsKey("port")) {
+            try {
+                out.add(Integer.parseInt(sshConfig.get("port")));
+            } catch (NumberFormatException e) {
+                syslog().debug("Bad ssh port " + sshConfig.get("port"));
+            }
+        }
+        final StoredConfig config = repo.getJGit().getRepository().getConfig();
+        final List<String> lfsUrls = new ArrayList<>();
+        if (config.getString("lfs", null, "url") != null) lfsUrls.add(config.getString("lfs", null, "url"));
+        for (final String remote : config.getSubsections("remote")) {
+            if (config.getString("remote", remote, "lfsurl") != null) lfsUrls.add(config.getString("remote", remote, "lfsurl"));
+        }
+        for (final String lfsUrl : lfsUrls) {
+            try {
+                final URIish lfsUri = new URIish(lfsUrl);
+                if (lfsUri.getHost() != null) out.add(lfsUri.getPort() > 0 ? lfsUri.getPort() : getDefaultPort(lfsUri.getScheme()));
+            } catch (URISyntaxException e) {
+                syslog().debug("Bad lfs url " + lfsUrl);
+            }
+        }
+        syslog().debug("Proxy will allow ports " + out);
+        return out;
+    }
+
+    private static int getDefaultPort(final String scheme) {
+        if (scheme == null) return 22;
+        return switch (scheme) {
+            case "http" -> 80;
+            case "https" -> 443;
+            default -> 22;
+        };
+    }
+
+    private static boolean isSshCommandSet(final RepoImpl repo) {
+        return System.getenv("GIT_SSH_COMMAND") != null || System.getenv("GIT_SSH") != null ||
+                repo.getJGit().getRepository().getConfig().getString("core", null, "sshCommand") != null;
+    }
+
+    /**
+     * @return an ssh ProxyCommand that tunnels through the proxy on the given port, or null if we can't make one.
+     */
+    private static String getProxyCommand(final int proxyPort) {
+        if (isWindows()) return null;
+        final Path jar = PreflightUtils.getModCodeSource();
+        if (jar == null) return null;
+        final String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        // it's going to be inside single quotes in GIT_SSH_COMMAND, and double quotes in the ProxyCommand
+        if ((java + jar).contains("'") || (java + jar).contains("\"")) return null;
+        return '"' + java + "\" -cp \"" + jar + "\" " + ProxyTunnel.class.getName() + " " + proxyPort + " %h %p";
+    }
+
+    private static boolean isWindows() {
+        return System.getProperty("os.name").toLowerCase().contains("windows");
+    }
+
+    /**
+     * Wraps jgit's ssh sessions so that whatever we send to the commands they run goes through the throttle.
+     */
+    private static class ThrottledSshSessionFactory extends SshSessionFactory {
+
+        private final SshSessionFactory delegate;
+        private final PushThrottle throttle;
+
+        ThrottledSshSessionFactory(final SshSessionFactory delegate, final PushThrottle throttle) {
+            this.delegate = requireNonNull(delegate);
+            this.throttle = requireNonNull(throttle);
+        }
+
+        @Override
+        public org.eclipse.jgit.transport.RemoteSession getSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms) throws TransportException {
+            return new ThrottledSshSession(this.delegate.getSession(uri, credentialsProvider, fs, tms), this.throttle);
+        }
+
+        @Override
+        public String getType() {
+            return this.delegate.getType();
+        }
+
+        @Override
+        public void releaseSession(org.eclipse.jgit.transport.RemoteSession session) {
+            this.delegate.releaseSession(session instanceof ThrottledSshSession t ? t.delegate : session);
+        }
+    }
+
+    private record ThrottledSshSession(org.eclipse.jgit.transport.RemoteSession delegate, PushThrottle throttle) implements RemoteSession2 {
+
+        @Override
+        public Process exec(String commandName, int timeout) throws IOException {
+            return new ThrottledProcess(this.delegate.exec(commandName, timeout), this.throttle);
+        }
+
+        @Override
+        public Process exec(String commandName, Map<String, String> environment, int timeout) throws IOException {
+            if (this.delegate instanceof RemoteSession2 rs2) {
+                return new ThrottledProcess(rs2.exec(commandName, environment, timeout), this.throttle);
+            }
+            return exec(commandName, timeout);
+        }
+
+        @Override
+        public void disconnect() {
+            this.delegate.disconnect();
+        }
+    }
+
+    private static class ThrottledProcess extends Process {
+
+        private final Process delegate;
+        private final OutputStream out;
+
+        ThrottledProcess(final Process delegate, final PushThrottle throttle) {
+            this.delegate = requireNonNull(delegate);
+            this.out = throttle.wrap(delegate.getOutputStream());
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return this.out;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return this.delegate.getInputStream();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return this.delegate.getErrorStream();
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            return this.delegate.waitFor();
+        }
+
+        @Override
+        public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+            return this.delegate.waitFor(timeout, unit);
+        }
+
+        @Override
+        public int exitValue() {
+            return this.delegate.exitValue();
+        }
+
+        @Override
+        public boolean isAlive() {
+            return this.delegate.isAlive();
+        }
+
+        @Override
+        public void destroy() {
+            this.delegate.destroy();
+        }
+
+        @Override
+        public Process destroyForcibly() {
+            this.delegate.destroyForcibly();
+            return this;
+        }
+    }
+}
@@ -67,10 +67,24 @@ public interface Repo extends AutoCloseable {
 
     void doRestoreRemoteSnapshot(String snapshotName, UserLogger ulog);
 
+    /**
+     * Restore only some of the files in a snapshot.
+     *
+     * @param patterns globs relative to the world directory (e.g. 'playerdata/*.dat'), or region coordinates
+     *                 (e.g. 'r.3.-2').
+     */
+    void doRestoreLocalFiles(String snapshotName, List<String> patterns, UserLogger ulog);
+
+    void doRestoreRemoteFiles(String snapshotName, List<String> patterns, UserLogger ulog);
+
     void doGc(UserLogger ulog);
 
     void doPushSnapshot(SnapshotId sid, UserLogger ulog);
 
+    void doRetryPush(UserLogger ulog);
+
+    void doShowPushQueue(UserLogger ulog);
+
     void deleteRemoteBranch(String remoteBranchName) throws IOException;
 
     void deleteLocalBranches(List<String> branchesToDelete) throws GitAPIException, IOException;
@@ -44,4 +44,10 @@ public interface RepoFactory {
 
     boolean isGitRepo(Path worldSaveDir);
 
+    /**
+     * Shut down any long-running processes or connections that are being kept open for the given world.
+     * Should be called when the world stops.
+     */
+    void closeSessions(Path worldSaveDir);
+
 }
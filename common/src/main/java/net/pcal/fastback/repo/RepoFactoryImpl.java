@@ -103,4 +103,11 @@ class RepoFactoryImpl implements RepoFactory {
         final File dotGit = worldSaveDir.resolve(".git").toFile();
         return dotGit.exists() && dotGit.isDirectory();
     }
+
+    @Override
+    public void closeSessions(final Path worldSaveDir) {
+        FastImportSession.close(worldSaveDir);
+        RemoteSession.closeNativeSsh(worldSaveDir);
+        RemoteRefCache.clear();
+    }
 }
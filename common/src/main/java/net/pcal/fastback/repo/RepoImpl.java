@@ -36,9 +36,13 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.text.ParseException;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static java.util.Objects.requireNonNull;
@@ -46,6 +50,7 @@ import static net.pcal.fastback.config.FastbackConfigKey.BROADCAST_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.BROADCAST_MESSAGE;
 import static net.pcal.fastback.config.FastbackConfigKey.IS_LOCK_CLEANUP_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_NAME;
+import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_REF_CACHE_SECONDS;
 import static net.pcal.fastback.config.OtherConfigKey.REMOTE_PUSH_URL;
 import static net.pcal.fastback.logging.SystemLogger.syslog;
 import static net.pcal.fastback.logging.UserMessage.UserMessageStyle.BROADCAST;
@@ -75,6 +80,10 @@ class RepoImpl implements Repo {
     private final Git jgit;
     private GitConfig config;
     private WorldIdInfo worldIdInfo;
+    private final Map<String, RemoteSession> remoteSessions = new HashMap<>();
+    private PushThrottle pushThrottle;
+    private boolean pushThrottleCreated = false;
+    private boolean pushPreflightDone = false;
 
     // ======================================================================
     // Constructors
@@ -92,13 +101,22 @@ class RepoImpl implements Repo {
         checkIndexLock(ulog);
         broadcastBackupNotice();
         final long start = System.currentTimeMillis();
-        final SnapshotId newSid;
+        final LfsUploadPipeline uploads = LfsUploadPipeline.start(this);
+        SnapshotId newSid = null;
         try {
-            newSid = CommitUtils.doCommitSnapshot(this, ulog);
+            newSid = CommitUtils.doCommitSnapshot(this, ulog, uploads == null ? null : uploads::upload);
         } catch (IOException | GitAPIException | ProcessException e) {
             syslog().error(e);
             ulog.message(styledLocalized("fastback.chat.commit-failed", ERROR));
             return;
+        } finally {
+            if (uploads != null) {
+                if (newSid == null) {
+                    uploads.abort();
+                } else {
+                    uploads.finish();
+                }
+            }
         }
         try {
             PushUtils.doPush(newSid, this, ulog);
@@ -146,6 +164,37 @@ class RepoImpl implements Repo {
     }
 
 
+    @Override
+    public void doRetryPush(final UserLogger ulog) {
+        if (!isNativeOk(this.getConfig(), ulog, false)) return;
+        try {
+            PushUtils.doRetryPush(this, ulog);
+        } catch (IOException | ProcessException e) {
+            ulog.message(styledLocalized("fastback.chat.push-failed", ERROR));
+            syslog().error(e);
+        }
+    }
+
+    @Override
+    public void doShowPushQueue(final UserLogger ulog) {
+        final PushQueue queue = PushQueue.load(this.getDotFasbackDir());
+        if (queue.isEmpty()) {
+            ulog.message(localized("fastback.chat.info-push-queue-empty"));
+        } else {
+            final Instant retryAfter = queue.getRetryAfter();
+            ulog.message(localized("fastback.chat.info-push-queue", queue.getBranches().size(), queue.getFailures(),
+                    retryAfter == null ? "-" : retryAfter.atZone(ZoneId.systemDefault()).toLocalDateTime().withNano(0)));
+        }
+        for (final String mirrorName : MirrorUtils.getMirrorNames(this)) {
+            final PushQueue mirrorQueue = PushQueue.load(this.getDotFasbackDir(), mirrorName);
+            final Instant mirrorRetryAfter = mirrorQueue.getRetryAfter();
+            ulog.message(localized("fastback.chat.info-mirror-push-queue", mirrorName, mirrorQueue.getBranches().size(),
+                    mirrorQueue.getFailures(),
+                    mirrorRetryAfter == null ? "-" : mirrorRetryAfter.atZone(ZoneId.systemDefault()).toLocalDateTime().withNano(0)));
+        }
+    }
+
+
     @Override
     public Collection<SnapshotId> doLocalPrune(final UserLogger ulog) throws IOException {
         return PruneUtils.doLocalPrune(this, ulog);
@@ -177,6 +226,16 @@ class RepoImpl implements Repo {
         RestoreUtils.doRestoreRemoteSnapshot(snapshotName, this, ulog);
     }
 
+    @Override
+    public void doRestoreLocalFiles(String snapshotName, List<String> patterns, UserLogger ulog) {
+        RestoreUtils.doRestoreLocalFiles(snapshotName, patterns, this, ulog);
+    }
+
+    @Override
+    public void doRestoreRemoteFiles(String snapshotName, List<String> patterns, UserLogger ulog) {
+        RestoreUtils.doRestoreRemoteFiles(snapshotName, patterns, this, ulog);
+    }
+
     // ======================================================================
     // Other repo implementation
 
@@ -203,17 +262,9 @@ class RepoImpl implements Repo {
 
     @Override
     public Set<SnapshotId> getRemoteSnapshots() throws IOException {
-        final GitConfig conf = GitConfig.load(jgit);
-        final String remoteName = conf.getString(REMOTE_NAME);
-        final JGitSupplier<Collection<Ref>> refProvider = () -> {
-            try {
-                return jgit.lsRemote().setRemote(remoteName).setHeads(true).call();
-            } catch (GitAPIException e) {
-                throw new IOException(e);
-            }
-        };
+        final RemoteSession session = this.getRemoteSession();
         try {
-            return BranchUtils.listSnapshots(this, refProvider);
+            return BranchUtils.listSnapshots(this, session::getRemoteBranchRefs);
         } catch (GitAPIException e) {
             throw new IOException(e);
         }
@@ -249,6 +300,10 @@ class RepoImpl implements Repo {
 
     @Override
     public void close() {
+        synchronized (this) {
+            this.remoteSessions.values().forEach(RemoteSession::close);
+            this.remoteSessions.clear();
+        }
         this.getJGit().close();
     }
 
@@ -268,6 +323,39 @@ class RepoImpl implements Repo {
         return this.jgit;
     }
 
+    /**
+     * @return the connection to the remote, opening it if necessary.  It stays open until the repo is closed.
+     */
+    RemoteSession getRemoteSession() throws IOException {
+        return this.getRemoteSession(this.getConfig().getString(REMOTE_NAME));
+    }
+
+    /**
+     * @return the connection to the named remote (i.e., one of the mirrors), opening it if necessary.  Each
+     * remote gets its own, so pushes to different remotes don't wait on each other.  They all share one throttle,
+     * though, since they're all going out over the same link.
+     */
+    synchronized RemoteSession getRemoteSession(final String remoteName) throws IOException {
+        RemoteSession session = this.remoteSessions.get(remoteName);
+        if (session == null) {
+            session = RemoteSession.open(this.jgit.getRepository(), remoteName,
+                    Duration.ofSeconds(this.getConfig().getInt(REMOTE_REF_CACHE_SECONDS)),
+                    getPushThrottle());
+            this.remoteSessions.put(remoteName, session);
+        }
+        return session;
+    }
+
+    /**
+     * Do the preflight before a push, unless it's already been done for another one.  Pushes to the mirror
+     * remotes run at the same time as the main one, and they'd otherwise all be rewriting the same files.
+     */
+    synchronized void doPushPreflight() throws IOException, ProcessException, GitAPIException {
+        if (this.pushPreflightDone) return;
+        PreflightUtils.doPreflight(this);
+        this.pushPreflightDone = true;
+    }
+
     Path getDotFasbackDir() {
         return this.getWorkTree().toPath().resolve(FASTBACK_DIR);
     }
@@ -275,6 +363,17 @@ class RepoImpl implements Repo {
     // ======================================================================
     // Private
 
+    /**
+     * @return the throttle for all pushes from this repo, or null if pushes aren't limited.
+     */
+    private synchronized PushThrottle getPushThrottle() {
+        if (!this.pushThrottleCreated) {
+            this.pushThrottle = PushThrottle.create(this.getConfig(), () -> mod().getPlayerCount());
+            this.pushThrottleCreated = true;
+        }
+        return this.pushThrottle;
+    }
+
     private WorldIdInfo getWorldIdInfo() throws IOException {
         if (this.worldIdInfo == null) {
             this.worldIdInfo = WorldIdUtils.getWorldIdInfo(this.getWorkTree().toPath());
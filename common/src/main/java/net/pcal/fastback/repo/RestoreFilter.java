@@ -0,0 +1,144 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.repo.RegionChunkUtils.CHUNKED_SUFFIX;
+
+/**
+ * Decides which files in a snapshot a partial restore should write.  Built from a list of patterns, each of
+ * which is either
+ * <ul>
+ *   <li>a glob relative to the world directory, e.g. 'playerdata/*.dat' or '**&#47;r.0.0.mca'.  '*' and '?'
+ *   don't match across directories, '**' does.  A pattern that names a directory matches everything in it.</li>
+ *   <li>region coordinates like 'r.3.-2', which match that region's region, entities and poi files in every
+ *   dimension.  'DIM-1/r.3.-2' limits it to the dimension in the given directory.</li>
+ * </ul>
+ * Paths of chunked regions (see RegionChunkUtils) are matched as if they were the region file.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class RestoreFilter {
+
+    // ======================================================================
+    // Constants
+
+    private static final Pattern REGION_COORDS = Pattern.compile("^(?:(.+)/)?r\\.(-?\\d+)\\.(-?\\d+)$");
+    private static final Set<String> REGION_DIRS = Set.of("region", "entities", "poi");
+
+    // ======================================================================
+    // Fields
+
+    private final List<String> patterns;
+    private final List<Pattern> regexes;
+
+    // ======================================================================
+    // Factory
+
+    /**
+     * @throws IllegalArgumentException if there are no patterns.
+     */
+    static RestoreFilter parse(final Collection<String> patterns) {
+        final List<String> cleaned = new ArrayList<>();
+        final List<Pattern> regexes = new ArrayList<>();
+        for (final String raw : patterns) {
+            String p = raw.trim().replace('\\', '/');
+            while (p.startsWith("/")) p = p.substring(1);
+            while (p.endsWith("/")) p = p.substring(0, p.length() - 1);
+            if (p.isEmpty()) continue;
+            cleaned.add(p);
+            final Matcher m = REGION_COORDS.matcher(p);
+            if (m.matches()) {
+                final String dims = m.group(1) == null ? "(?:.*/)?" : globToRegex(m.group(1)) + "/";
+                regexes.add(Pattern.compile(dims + "(?:" + String.join("|", REGION_DIRS) + ")/" +
+                        Pattern.quote("r." + m.group(2) + "." + m.group(3) + ".mca")));
+            } else {
+                regexes.add(Pattern.compile(globToRegex(p) + "(?:/.*)?"));
+            }
+        }
+        if (regexes.isEmpty()) throw new IllegalArgumentException("No files to restore were given");
+        return new RestoreFilter(cleaned, regexes);
+    }
+
+    private RestoreFilter(final List<String> patterns, final List<Pattern> regexes) {
+        this.patterns = requireNonNull(patterns);
+        this.regexes = requireNonNull(regexes);
+    }
+
+    // ======================================================================
+    // Package private
+
+    /**
+     * @param path a path in the snapshot, relative to the world directory and using '/'.
+     */
+    boolean matches(final String path) {
+        final String regionPath = getRegionPath(path);
+        for (final Pattern regex : this.regexes) {
+            if (regex.matcher(path).matches()) return true;
+            if (regionPath != null && regex.matcher(regionPath).matches()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(" ", this.patterns);
+    }
+
+    /**
+     * @return the path of the region file a chunked region's part belongs to, or null if the path isn't part of
+     * a chunked region.
+     */
+    static String getRegionPath(final String path) {
+        final int i = path.indexOf(CHUNKED_SUFFIX + "/");
+        return i < 0 ? null : path.substring(0, i);
+    }
+
+    // ======================================================================
+    // Private
+
+    private static String globToRegex(final String glob) {
+        final StringBuilder out = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            if (c == '*' && glob.startsWith("**/", i)) {
+                out.append("(?:.*/)?");
+                i += 2;
+            } else if (c == '*' && glob.startsWith("**", i)) {
+                out.append(".*");
+                i++;
+            } else if (c == '*') {
+                out.append("[^/]*");
+            } else if (c == '?') {
+                out.append("[^/]");
+            } else {
+                out.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return out.toString();
+    }
+}
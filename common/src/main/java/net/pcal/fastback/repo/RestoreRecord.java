@@ -0,0 +1,178 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.repo.RepoImpl.FASTBACK_DIR;
+
+/**
+ * What a full restore wrote into its directory: the snapshot's commit, and for each file the object it was
+ * written from, plus the size and modification time it had right afterward.  A file whose size and time still
+ * match is assumed not to have been touched since, which is what lets TreeRestore.update() skip it.
+ * <p>
+ * Lives in .fastback/restore in the restored world:
+ * <pre>
+ * fastback-restore 1
+ * commit 2e65efe2a145dda7ee51d1741299f848e5bf752e
+ * 9daeafb9864cf43055ae93beb0afd6c7d144bfa4 4096 1700000000000 region/r.0.0.mca
+ * </pre>
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class RestoreRecord {
+
+    // ======================================================================
+    // Constants
+
+    static final String VERSION = "fastback-restore 1";
+    static final String RECORD_FILE = "restore";
+    private static final String COMMIT_PREFIX = "commit ";
+
+    // ======================================================================
+    // Fields
+
+    private final ObjectId commitId;
+    private final Map<String, FileRecord> files = new HashMap<>();
+
+    // ======================================================================
+    // Factory
+
+    static RestoreRecord create(final ObjectId commitId) {
+        return new RestoreRecord(commitId);
+    }
+
+    /**
+     * @return the record of the restore in the given directory, or null if there isn't one we can read.
+     */
+    static RestoreRecord load(final Path restoreDir) {
+        final Path file = getFile(restoreDir);
+        if (!Files.exists(file)) return null;
+        try {
+            final List<String> lines = Files.readAllLines(file, UTF_8);
+            if (lines.size() < 2 || !lines.get(0).equals(VERSION) || !lines.get(1).startsWith(COMMIT_PREFIX)) {
+                syslog().warn("Ignoring restore record with unknown format in " + restoreDir);
+                return null;
+            }
+            final RestoreRecord out = new RestoreRecord(ObjectId.fromString(lines.get(1).substring(COMMIT_PREFIX.length())));
+            for (final String line : lines.subList(2, lines.size())) {
+                final String[] parts = line.split(" ", 4);
+                if (parts.length != 4 || !ObjectId.isId(parts[0])) {
+                    syslog().warn("Ignoring bad restore record line: " + line);
+                    continue;
+                }
+                out.files.put(parts[3], new FileRecord(ObjectId.fromString(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+            }
+            return out;
+        } catch (IOException | RuntimeException e) {
+            syslog().error("Failed to read restore record in " + restoreDir, e);
+            return null;
+        }
+    }
+
+    private RestoreRecord(final ObjectId commitId) {
+        this.commitId = requireNonNull(commitId).copy();
+    }
+
+    // ======================================================================
+    // Package private
+
+    static Path getFile(final Path restoreDir) {
+        return restoreDir.resolve(FASTBACK_DIR).resolve(RECORD_FILE);
+    }
+
+    ObjectId getCommitId() {
+        return this.commitId;
+    }
+
+    /**
+     * @return true if the file was written from the given object and doesn't seem to have changed since.
+     */
+    boolean isUnchanged(final String path, final ObjectId id, final Path file) throws IOException {
+        final FileRecord record = this.files.get(path);
+        if (record == null || !record.id.equals(id) || !Files.isRegularFile(file)) return false;
+        return record.matches(file);
+    }
+
+    /**
+     * @return true if the directory holds just the files that were restored into it, and none of them seem to have
+     * changed.  Opening the world adds files (session.lock, at least), so this is false once it's been played.
+     */
+    boolean isUntouched(final Path restoreDir) throws IOException {
+        final Path fastbackDir = restoreDir.resolve(FASTBACK_DIR);
+        int count = 0;
+        try (final Stream<Path> s = Files.walk(restoreDir)) {
+            for (final Path file : (Iterable<Path>) s::iterator) {
+                if (file.startsWith(fastbackDir) || Files.isDirectory(file, NOFOLLOW_LINKS)) continue;
+                final FileRecord record = this.files.get(restoreDir.relativize(file).toString().replace('\\', '/'));
+                if (record == null || !Files.isRegularFile(file, NOFOLLOW_LINKS) || !record.matches(file)) return false;
+                count++;
+            }
+        }
+        return count == this.files.size();
+    }
+
+    /**
+     * Record a file as it is now.
+     */
+    void put(final String path, final ObjectId id, final Path file) throws IOException {
+        final BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        this.files.put(path, new FileRecord(id.copy(), attrs.size(), attrs.lastModifiedTime().toMillis()));
+    }
+
+    void save(final Path restoreDir) throws IOException {
+        final Path file = getFile(restoreDir);
+        Files.createDirectories(file.getParent());
+        final List<String> lines = new ArrayList<>(this.files.size() + 2);
+        lines.add(VERSION);
+        lines.add(COMMIT_PREFIX + this.commitId.name());
+        this.files.forEach((path, r) -> lines.add(r.id.name() + " " + r.size + " " + r.lastModified + " " + path));
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, lines, UTF_8);
+        Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    // ======================================================================
+    // Private
+
+    private record FileRecord(ObjectId id, long size, long lastModified) {
+
+        boolean matches(final Path file) throws IOException {
+            final BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            return attrs.size() == this.size && attrs.lastModifiedTime().toMillis() == this.lastModified;
+        }
+    }
+}
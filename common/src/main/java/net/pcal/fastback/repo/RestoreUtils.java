@@ -26,18 +26,36 @@ import net.pcal.fastback.utils.ProcessException;
 import net.pcal.fastback.utils.ProcessUtils;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.URIish;
 
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.config.FastbackConfigKey.CHUNK_STORE_DIRECTORY;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_INCREMENTAL_RESTORE_ENABLED;
 import static net.pcal.fastback.config.FastbackConfigKey.IS_NATIVE_GIT_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_NAME;
 import static net.pcal.fastback.config.FastbackConfigKey.RESTORE_DIRECTORY;
+import static net.pcal.fastback.config.FastbackConfigKey.RESTORE_LFS_TRANSFERS;
+import static net.pcal.fastback.config.FastbackConfigKey.RESTORE_LFS_WINDOW;
+import static net.pcal.fastback.config.FastbackConfigKey.RESTORE_THREADS;
 import static net.pcal.fastback.config.OtherConfigKey.REMOTE_PUSH_URL;
 import static net.pcal.fastback.logging.SystemLogger.syslog;
 import static net.pcal.fastback.logging.UserMessage.UserMessageStyle.ERROR;
@@ -46,6 +64,9 @@ import static net.pcal.fastback.logging.UserMessage.localized;
 import static net.pcal.fastback.logging.UserMessage.styledLocalized;
 import static net.pcal.fastback.logging.UserMessage.styledRaw;
 import static net.pcal.fastback.mod.Mod.mod;
+import static org.eclipse.jgit.lib.Constants.DEFAULT_REMOTE_NAME;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.eclipse.jgit.lib.Constants.R_REMOTES;
 
 /**
  * Utilities for restoring a snapshot
@@ -55,11 +76,16 @@ import static net.pcal.fastback.mod.Mod.mod;
  */
 abstract class RestoreUtils {
 
+    // ======================================================================
+    // Constants
+
+    private static final String PARTIAL_CLONE_UPLOAD_PACK = "git -c uploadpack.allowFilter=true -c uploadpack.allowAnySHA1InWant=true upload-pack";
+
     // ======================================================================
     // Package private
 
     static void doRestoreLocalSnapshot(final String snapshotNameToRestore, final RepoImpl repo, final UserLogger ulog) {
-        doRestoreSnapshot(snapshotNameToRestore, "file://" + mod().getWorldDirectory().toAbsolutePath(), repo, ulog);
+        doRestoreLocal(snapshotNameToRestore, null, repo, ulog);
     }
 
     static void doRestoreRemoteSnapshot(final String snapshotNameToRestore, final RepoImpl repo, final UserLogger ulog) {
@@ -67,58 +93,338 @@ abstract class RestoreUtils {
         if (!conf.isSet(REMOTE_PUSH_URL)) {
             ulog.message(styledLocalized("fastback.chat.remote-no-url", ERROR));
         } else {
-            doRestoreSnapshot(snapshotNameToRestore, conf.getString(REMOTE_PUSH_URL), repo, ulog);
+            // lfs objects on the remote live in the chunk store, if there is one
+            doRestoreSnapshot(snapshotNameToRestore, conf.getString(REMOTE_PUSH_URL), conf.getString(CHUNK_STORE_DIRECTORY), repo, ulog);
+        }
+    }
+
+    /**
+     * Restore just the files matching the given patterns (see RestoreFilter).
+     */
+    static void doRestoreLocalFiles(final String snapshotNameToRestore, final List<String> patterns, final RepoImpl repo, final UserLogger ulog) {
+        doRestoreLocal(snapshotNameToRestore, requireNonNull(patterns), repo, ulog);
+    }
+
+    /**
+     * Restore just the files matching the given patterns (see RestoreFilter) from the remote.  With native git,
+     * this is a partial clone with a sparse checkout, so only the blobs and lfs objects of those files are
+     * downloaded.
+     */
+    static void doRestoreRemoteFiles(final String snapshotNameToRestore, final List<String> patterns, final RepoImpl repo, final UserLogger ulog) {
+        final GitConfig conf = repo.getConfig();
+        if (!conf.isSet(REMOTE_PUSH_URL)) {
+            ulog.message(styledLocalized("fastback.chat.remote-no-url", ERROR));
+            return;
+        }
+        try {
+            final RestoreFilter filter = RestoreFilter.parse(patterns);
+            PreflightUtils.doPreflight(repo);
+            final SnapshotId sid = repo.createSnapshotId(snapshotNameToRestore);
+            final Path restoreTargetDir = getTargetDir(repo, sid);
+            final int count;
+            if (conf.getBoolean(IS_NATIVE_GIT_ENABLED)) {
+                count = native_restoreFiles(sid.getBranchName(), restoreTargetDir, conf.getString(REMOTE_PUSH_URL),
+                        conf.getString(CHUNK_STORE_DIRECTORY), filter, conf.getInt(RESTORE_THREADS), ulog);
+            } else {
+                count = jgit_restoreFiles(sid.getBranchName(), restoreTargetDir, conf.getString(REMOTE_PUSH_URL), filter,
+                        conf.getInt(RESTORE_THREADS), ulog);
+            }
+            filesRestored(count, sid, filter, restoreTargetDir, ulog);
+        } catch (Exception e) {
+            syslog().error(e);
+            ulog.message(styledLocalized("fastback.chat.restore-failed", ERROR));
         }
     }
 
     // ======================================================================
     // Private
 
-    private static void doRestoreSnapshot(final String snapshotNameToRestore, final String repoUri, final RepoImpl repo, final UserLogger ulog) {
+    private static void doRestoreSnapshot(final String snapshotNameToRestore, final String repoUri, final String chunkStoreDir, final RepoImpl repo, final UserLogger ulog) {
         try {
             PreflightUtils.doPreflight(repo);
             final GitConfig conf = repo.getConfig();
             final SnapshotId sid = repo.createSnapshotId(snapshotNameToRestore);
-            final Path allRestoresDir = conf.isSet(RESTORE_DIRECTORY) ?
-                    Paths.get(conf.getString(RESTORE_DIRECTORY)) : mod().getDefaultRestoresDir();
-            final Path restoreTargetDir = getTargetDir(allRestoresDir, mod().getWorldName(), sid.getShortName());
+            final Path restoreTargetDir = getTargetDir(repo, sid);
             if (conf.getBoolean(IS_NATIVE_GIT_ENABLED)) {
-                native_restoreSnapshot(sid.getBranchName(), restoreTargetDir, repoUri, ulog);
+                native_restoreSnapshot(sid.getBranchName(), restoreTargetDir, repoUri, chunkStoreDir,
+                        conf.getInt(RESTORE_THREADS), conf.getInt(RESTORE_LFS_TRANSFERS), conf.getInt(RESTORE_LFS_WINDOW), ulog);
             } else {
-                jgit_restoreSnapshot(sid.getBranchName(), restoreTargetDir, repoUri, ulog);
+                jgit_restoreSnapshot(sid.getBranchName(), restoreTargetDir, repoUri, conf.getInt(RESTORE_THREADS), ulog);
             }
+            RegionChunkUtils.reassembleRegions(restoreTargetDir);
             ulog.message(localized("fastback.chat.restore-done", restoreTargetDir));
         } catch (Exception e) {
             syslog().error(e);
-            ulog.message(styledRaw("Restore failed.  See log for details.", ERROR)); // FIXME i18n
+            ulog.message(styledLocalized("fastback.chat.restore-failed", ERROR));
         }
     }
 
-    private static void native_restoreSnapshot(final String branchName, final Path restoreTargetDir, final String repoUri, final UserLogger ulog) throws ProcessException {
+    /**
+     * Write the snapshot's files straight out of the local repo's object database; there's no need to clone it.
+     *
+     * @param patterns which files to restore, or null for all of them.
+     */
+    private static void doRestoreLocal(final String snapshotNameToRestore, final List<String> patterns, final RepoImpl repo, final UserLogger ulog) {
+        try {
+            final RestoreFilter filter = patterns == null ? null : RestoreFilter.parse(patterns);
+            final SnapshotId sid = repo.createSnapshotId(snapshotNameToRestore);
+            final Repository local = repo.getJGit().getRepository();
+            final ObjectId commitId = local.resolve(R_HEADS + sid.getBranchName());
+            if (commitId == null) {
+                ulog.message(styledLocalized("fastback.chat.restore-nosuch", ERROR, snapshotNameToRestore));
+                return;
+            }
+            final GitConfig conf = repo.getConfig();
+            Path previous = filter == null && conf.getBoolean(IS_INCREMENTAL_RESTORE_ENABLED) ?
+                    findPreviousRestore(getAllRestoresDir(repo), mod().getWorldName()) : null;
+            // if it's open or has been played in, leave it alone and write a new copy
+            if (previous != null && !TreeRestore.isReusable(previous)) previous = null;
+            if (previous != null) {
+                // it keeps its name if it's already a restore of this snapshot
+                final String name = getRestoreDirName(mod().getWorldName(), sid.getShortName());
+                final Path restoreTargetDir = previous.getFileName().toString().equals(name) ? previous : getTargetDir(repo, sid);
+                if (!previous.equals(restoreTargetDir)) {
+                    syslog().debug("Moving " + previous + " to " + restoreTargetDir);
+                    Files.move(previous, restoreTargetDir);
+                }
+                try {
+                    TreeRestore.update(local, commitId, restoreTargetDir, conf.getInt(RESTORE_THREADS), ulog);
+                } catch (TreeRestore.MissingLfsObjectsException e) {
+                    native_fetchLfsObjects(sid.getBranchName(), e, repo, ulog);
+                    TreeRestore.update(local, commitId, restoreTargetDir, conf.getInt(RESTORE_THREADS), ulog);
+                }
+                ulog.message(localized("fastback.chat.restore-reused", restoreTargetDir));
+                return;
+            }
+            final Path restoreTargetDir = getTargetDir(repo, sid);
+            int count;
+            try {
+                count = TreeRestore.restore(local, commitId, filter, restoreTargetDir, conf.getInt(RESTORE_THREADS), ulog);
+            } catch (TreeRestore.MissingLfsObjectsException e) {
+                native_fetchLfsObjects(sid.getBranchName(), e, repo, ulog);
+                count = TreeRestore.restore(local, commitId, filter, restoreTargetDir, conf.getInt(RESTORE_THREADS), ulog);
+            }
+            if (filter == null) {
+                ulog.message(localized("fastback.chat.restore-done", restoreTargetDir));
+            } else {
+                filesRestored(count, sid, filter, restoreTargetDir, ulog);
+            }
+        } catch (Exception e) {
+            syslog().error(e);
+            ulog.message(styledLocalized("fastback.chat.restore-failed", ERROR));
+        }
+    }
+
+    /**
+     * The local lfs store should have the objects for every snapshot, since lfs prune keeps them, but if some have
+     * gone missing anyway, get them back from the remote so the restore can be finished.
+     *
+     * @throws TreeRestore.MissingLfsObjectsException if they can't be fetched because there's no remote, or
+     *                                                native git isn't enabled.
+     */
+    private static void native_fetchLfsObjects(final String branchName, final TreeRestore.MissingLfsObjectsException missing,
+                                               final RepoImpl repo, final UserLogger ulog) throws IOException, ProcessException {
+        final GitConfig conf = repo.getConfig();
+        if (!conf.getBoolean(IS_NATIVE_GIT_ENABLED) || !conf.isSet(REMOTE_PUSH_URL)) throw missing;
+        syslog().warn(missing.getOids().size() + " lfs objects for " + branchName + " are missing, fetching them from the remote");
+        final Consumer<String> outputConsumer = line -> ulog.update(styledRaw(line, NATIVE_GIT));
+        ProcessUtils.doExec(new String[]{
+                "git", "-C", repo.getWorkTree().getAbsolutePath(), "lfs", "fetch", conf.getString(REMOTE_NAME), branchName
+        }, Map.of("GIT_LFS_FORCE_PROGRESS", "1"), outputConsumer, outputConsumer);
+    }
+
+    private static void filesRestored(final int count, final SnapshotId sid, final RestoreFilter filter, final Path restoreTargetDir, final UserLogger ulog) throws IOException {
+        if (count == 0) {
+            ulog.message(styledLocalized("fastback.chat.restore-files-none", ERROR, sid.getShortName(), filter));
+        } else {
+            RegionChunkUtils.reassembleRegions(restoreTargetDir);
+            ulog.message(localized("fastback.chat.restore-files-done", restoreTargetDir));
+        }
+    }
+
+    /**
+     * git won't hand a file with a filter to its parallel checkout workers, and git-lfs smudges files one at a
+     * time as git checks them out.  So the checkout is done with filters turned off, which writes the lfs files
+     * as pointers using all the workers (fetching the blobs they need in one go, since the clone has none), and
+     * then LfsPrefetch downloads the objects in batches and swaps them in.
+     */
+    private static void native_restoreSnapshot(final String branchName, final Path restoreTargetDir, final String repoUri, final String chunkStoreDir,
+                                               final int threadCount, final int lfsTransfers, final int lfsWindowMb, final UserLogger ulog) throws IOException, ProcessException {
         final Map<String, String> env = Map.of("GIT_LFS_FORCE_PROGRESS", "1");
         final Consumer<String> outputConsumer = line -> ulog.update(styledRaw(line, NATIVE_GIT));
         final String restoreTargetDirStr = restoreTargetDir.toString();
-        syslog().debug("Cloning repo at " + repoUri);
+        native_clone(branchName, restoreTargetDir, repoUri, chunkStoreDir, env, outputConsumer);
+        final int workers = TreeRestore.getThreadCount(threadCount);
+        syslog().debug("Checking out " + branchName + " with " + workers + " workers");
+        final Path attributes = restoreTargetDir.resolve(".git").resolve("info").resolve("attributes");
+        Files.createDirectories(attributes.getParent());
+        Files.writeString(attributes, "* -filter\n", UTF_8); // overrides the world's .gitattributes
+        try {
+            ProcessUtils.doExec(new String[]{
+                    "git", "-C", restoreTargetDirStr, "-c", "checkout.workers=" + workers, "checkout", branchName
+            }, env, outputConsumer, outputConsumer);
+        } finally {
+            Files.delete(attributes);
+        }
+        final LfsPrefetch prefetch = LfsPrefetch.create(restoreTargetDir, ulog);
+        if (prefetch.getObjectCount() > 0) {
+            syslog().debug("Downloading " + prefetch.getObjectCount() + " lfs objects, " + prefetch.getTotalBytes() + " bytes");
+            prefetch.pull(lfsTransfers, lfsWindowMb * 1024L * 1024L, env);
+        }
+    }
+
+    /**
+     * Clone without any blobs, then check out just the matching files.  git fetches the blobs it needs in one
+     * batch during the checkout, and git-lfs downloads only the lfs objects of the files being checked out.  If
+     * the remote doesn't allow partial clones, git clones everything but the checkout is still sparse.
+     */
+    private static int native_restoreFiles(final String branchName, final Path restoreTargetDir, final String repoUri,
+                                           final String chunkStoreDir, final RestoreFilter filter, final int threadCount,
+                                           final UserLogger ulog) throws IOException, ProcessException {
+        final Map<String, String> env = Map.of("GIT_LFS_FORCE_PROGRESS", "1");
+        final Consumer<String> outputConsumer = line -> ulog.update(styledRaw(line, NATIVE_GIT));
+        final String restoreTargetDirStr = restoreTargetDir.toString();
+        native_clone(branchName, restoreTargetDir, repoUri, chunkStoreDir, env, outputConsumer);
+        final Set<String> sparsePaths = new LinkedHashSet<>();
         ProcessUtils.doExec(new String[]{
-                "git", "clone", repoUri, "--no-checkout", "--branch", branchName, "--single-branch", restoreTargetDirStr
-        }, env, outputConsumer, outputConsumer);
+                "git", "-C", restoreTargetDirStr, "-c", "core.quotePath=false", "ls-tree", "-r", "--name-only", branchName
+        }, env, line -> {
+            if (filter.matches(line)) sparsePaths.add("/" + line.replaceAll("([\\\\*?\\[ ])", "\\\\$1"));
+        }, outputConsumer);
+        if (!sparsePaths.isEmpty()) {
+            syslog().debug("Checking out " + sparsePaths.size() + " files from " + branchName);
+            ProcessUtils.doExec(new String[]{
+                    "git", "-C", restoreTargetDirStr, "config", "core.sparseCheckout", "true"
+            }, env, outputConsumer, outputConsumer);
+            final Path sparseFile = restoreTargetDir.resolve(".git").resolve("info").resolve("sparse-checkout");
+            Files.createDirectories(sparseFile.getParent());
+            Files.write(sparseFile, sparsePaths, UTF_8);
+            ProcessUtils.doExec(new String[]{
+                    "git", "-C", restoreTargetDirStr, "-c", "checkout.workers=" + TreeRestore.getThreadCount(threadCount),
+                    "checkout", branchName
+            }, env, outputConsumer, outputConsumer);
+        }
+        FileUtils.rmdir(restoreTargetDir.resolve(".git"));
+        return sparsePaths.size();
+    }
+
+    /**
+     * Clone just the snapshot's commit and trees, without its history or any blobs.  The blobs are fetched when
+     * they're checked out.
+     */
+    private static void native_clone(final String branchName, final Path restoreTargetDir, final String repoUri, final String chunkStoreDir,
+                                     final Map<String, String> env, final Consumer<String> outputConsumer) throws IOException, ProcessException {
+        final String restoreTargetDirStr = restoreTargetDir.toString();
+        syslog().debug("Cloning repo at " + repoUri);
+        // a file remote is served by our own git, which doesn't allow partial clones unless it's told to
+        final boolean localUploadPack = isLocal(repoUri);
+        final List<String> clone = new ArrayList<>(List.of("git", "clone", toCloneUri(repoUri), "--no-checkout",
+                "--branch", branchName, "--single-branch", "--depth", "1", "--filter=blob:none"));
+        if (localUploadPack) Collections.addAll(clone, "--upload-pack", PARTIAL_CLONE_UPLOAD_PACK);
+        clone.add(restoreTargetDirStr);
+        ProcessUtils.doExec(clone.toArray(new String[0]), env, outputConsumer, outputConsumer);
+        if (localUploadPack) {
+            // and again for the blobs fetched during checkout
+            ProcessUtils.doExec(new String[]{
+                    "git", "-C", restoreTargetDirStr, "config", "remote.origin.uploadpack", PARTIAL_CLONE_UPLOAD_PACK
+            }, env, outputConsumer, outputConsumer);
+        }
         syslog().debug("Installing lfs locally in " + restoreTargetDirStr);
         ProcessUtils.doExec(new String[]{
                 "git", "-C", restoreTargetDirStr, "lfs", "install", "--local"
         }, env, outputConsumer, outputConsumer);
-        syslog().debug("Checking out " + branchName + ", downloading lfs blobs");
-        ProcessUtils.doExec(new String[]{
-                "git", "-C", restoreTargetDirStr, "checkout", branchName
-        }, env, outputConsumer, outputConsumer);
+        if (chunkStoreDir != null) {
+            try (final Git git = Git.open(restoreTargetDir.toFile())) {
+                final Repository restoredRepo = git.getRepository();
+                PreflightUtils.configureChunkStoreAgent(restoredRepo.getConfig(), chunkStoreDir, restoredRepo.getDirectory().toPath());
+            }
+        }
     }
 
-    private static void jgit_restoreSnapshot(final String branchName, final Path restoreTargetDir, final String repoUri, final UserLogger ulog) throws IOException, GitAPIException {
+    /**
+     * git ignores --depth and --filter when cloning from a plain path, but not from a file:// url.
+     */
+    private static String toCloneUri(final String repoUri) {
+        try {
+            final URIish uri = new URIish(repoUri);
+            if (uri.getHost() == null && uri.getScheme() == null) return Paths.get(uri.getPath()).toAbsolutePath().toUri().toString();
+        } catch (URISyntaxException e) {
+            syslog().debug("Not a uri: " + repoUri);
+        }
+        return repoUri;
+    }
+
+    private static boolean isLocal(final String repoUri) {
+        try {
+            return new URIish(repoUri).getHost() == null;
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * jgit's own checkout writes one file at a time, so the files are written by TreeRestore instead.
+     */
+    private static void jgit_restoreSnapshot(final String branchName, final Path restoreTargetDir, final String repoUri,
+                                             final int threadCount, final UserLogger ulog) throws IOException, GitAPIException {
         ulog.update(localized("fastback.hud.restore-percent", 0));
+        jgit_restoreFiles(branchName, restoreTargetDir, repoUri, null, threadCount, ulog);
+    }
+
+    /**
+     * jgit can't do partial clones, so this downloads the whole snapshot; but only the matching files are written.
+     *
+     * @param filter which files to write, or null for all of them.
+     */
+    private static int jgit_restoreFiles(final String branchName, final Path restoreTargetDir, final String repoUri,
+                                         final RestoreFilter filter, final int threadCount, final UserLogger ulog) throws IOException, GitAPIException {
         final ProgressMonitor pm = new JGitIncrementalProgressMonitor(new JGitRestoreProgressMonitor(ulog), 100);
-        try (Git git = Git.cloneRepository().setProgressMonitor(pm).setDirectory(restoreTargetDir.toFile()).
-                setBranchesToClone(List.of("refs/heads/" + branchName)).setBranch(branchName).setURI(repoUri).call()) {
+        final int count;
+        try (Git git = Git.cloneRepository().setProgressMonitor(pm).setDirectory(restoreTargetDir.toFile()).setNoCheckout(true).
+                setBranchesToClone(List.of(R_HEADS + branchName)).setBranch(branchName).setURI(repoUri).call()) {
+            final Repository clone = git.getRepository();
+            final ObjectId commitId = clone.resolve(R_REMOTES + DEFAULT_REMOTE_NAME + "/" + branchName);
+            if (commitId == null) throw new IOException("Remote has no branch " + branchName);
+            count = TreeRestore.restore(clone, commitId, filter, restoreTargetDir, threadCount, ulog);
         }
         FileUtils.rmdir(restoreTargetDir.resolve(".git"));
+        return count;
+    }
+
+    /**
+     * @return the most recent full restore of the world in the restores directory (going by its RestoreRecord),
+     * or null if there isn't one.
+     */
+    private static Path findPreviousRestore(final Path allRestoresDir, final String worldName) throws IOException {
+        if (!Files.isDirectory(allRestoresDir)) return null;
+        final String prefix = getRestoreDirName(worldName, "");
+        Path out = null;
+        FileTime newest = null;
+        try (final Stream<Path> s = Files.list(allRestoresDir)) {
+            for (final Path dir : s.toList()) {
+                final Path record = RestoreRecord.getFile(dir);
+                if (!dir.getFileName().toString().startsWith(prefix) || !Files.isRegularFile(record)) continue;
+                final FileTime modified = Files.getLastModifiedTime(record);
+                if (newest == null || modified.compareTo(newest) > 0) {
+                    out = dir;
+                    newest = modified;
+                }
+            }
+        }
+        return out;
+    }
+
+    private static Path getTargetDir(final RepoImpl repo, final SnapshotId sid) throws IOException {
+        return getTargetDir(getAllRestoresDir(repo), mod().getWorldName(), sid.getShortName());
+    }
+
+    private static Path getAllRestoresDir(final RepoImpl repo) throws IOException {
+        final GitConfig conf = repo.getConfig();
+        return conf.isSet(RESTORE_DIRECTORY) ? Paths.get(conf.getString(RESTORE_DIRECTORY)) : mod().getDefaultRestoresDir();
+    }
+
+    private static String getRestoreDirName(final String worldName, final String snapshotName) {
+        return worldName.replaceAll("\\W+", "") + "-" + snapshotName; // strip out all non-word characters for safety
     }
 
     /**
@@ -128,8 +434,7 @@ abstract class RestoreUtils {
      * @return The absolute path to the directory where the snapshot should be restored
      */
     private static Path getTargetDir(Path allRestoresDir, String worldName, String snapshotName) {
-        worldName = worldName.replaceAll("\\W+", ""); // strip out all non-word characters for safety
-        Path base = allRestoresDir.resolve(worldName + "-" + snapshotName);
+        Path base = allRestoresDir.resolve(getRestoreDirName(worldName, snapshotName));
         Path candidate = base;
         int i = 0;
         while (candidate.toFile().exists()) {
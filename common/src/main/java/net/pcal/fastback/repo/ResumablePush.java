@@ -0,0 +1,327 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.config.GitConfig;
+import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.utils.ProcessException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdSubclassMap;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_NATIVE_GIT_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_RESUMABLE_PUSH_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.RESUMABLE_PUSH_CHUNK_SIZE;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.logging.UserMessage.localized;
+import static net.pcal.fastback.utils.ProcessUtils.doExec;
+import static org.apache.commons.io.FileUtils.byteCountToDisplaySize;
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+import static org.eclipse.jgit.transport.RemoteRefUpdate.Status.OK;
+import static org.eclipse.jgit.transport.RemoteRefUpdate.Status.UP_TO_DATE;
+
+/**
+ * Pushes a lot of new data (e.g., the first push of a big world) in pieces, so that if it's interrupted, the next
+ * attempt carries on from the last piece that made it instead of starting over.
+ * <p>
+ * The files the remote doesn't have yet are split into chunks of about resumable-push-chunk-size megabytes.  For
+ * each chunk, we first upload its lfs objects in batches with 'git lfs push --object-id', and then push a
+ * throwaway commit whose tree holds just that chunk's blobs to refs/fastback/resume/[id] on the remote.  (Locally,
+ * it's refs/fastback/resume/[remote]/[id], so that pushes to different mirrors don't clean up each other's.)  Each
+ * batch and chunk is recorded in the PushState as soon as the remote has confirmed it.  When all of the chunks
+ * are there, the snapshot branches themselves are pushed with a ThinPackPush that excludes everything in the
+ * chunks, so that last step only sends trees and commits.  Then the chunk refs and the push state are removed.
+ * <p>
+ * A chunk is only trusted if the remote still has its ref, so nothing breaks if someone tidies them up in the
+ * meantime; they just get sent again.  Because the final step is a ThinPackPush, this only works over ssh and to
+ * file remotes.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class ResumablePush {
+
+    // ======================================================================
+    // Constants
+
+    static final String RESUME_REFS = "refs/fastback/resume/";
+    private static final long MEGABYTE = 1024 * 1024;
+    private static final int LFS_BATCH_SIZE = 50;
+
+    // ======================================================================
+    // Fields
+
+    private final RepoImpl repo;
+    private final String remoteName;
+    private final RemoteSession session;
+    private final List<String> branchesToPush;
+    private final List<ObjectId> baseIds;
+    private final PushState state;
+    private final List<Chunk> chunks;
+
+    // ======================================================================
+    // Factory
+
+    /**
+     * Work out what still needs to be sent to the remote and split it into chunks.
+     *
+     * @param baseIds remote snapshots that we also have locally, whose files don't need to be sent.
+     * @return the push, or null if resumable pushes aren't enabled or possible for this remote, or if there's too
+     * little to send for it to be worth it (and nothing left over from an earlier attempt).
+     */
+    static ResumablePush plan(final RepoImpl repo, final String remoteName, final RemoteSession session,
+                              final List<String> branchesToPush, final List<ObjectId> baseIds) throws IOException {
+        final GitConfig conf = repo.getConfig();
+        if (!conf.getBoolean(IS_RESUMABLE_PUSH_ENABLED)) return null;
+        if (!ThinPackPush.isSupported(session.getTransport())) {
+            syslog().debug("Resumable push only works with ssh and file remotes, doing a normal push");
+            return null;
+        }
+        final PushState state = PushState.load(repo.getDotFasbackDir(), remoteName);
+        if (!state.getChunks().isEmpty()) state.retainChunks(getRemoteChunks(session));
+        final Repository local = repo.getJGit().getRepository();
+        final long chunkBytes = Math.max(1, conf.getInt(RESUMABLE_PUSH_CHUNK_SIZE)) * MEGABYTE;
+        final List<ObjectId> sent = new ArrayList<>(baseIds);
+        sent.addAll(state.getChunks());
+        final ObjectIdSubclassMap<ObjectId> seen = ThinPackPush.getTreeObjects(local, sent);
+        final List<Chunk> chunks = new ArrayList<>();
+        Chunk current = new Chunk();
+        try (final ObjectReader reader = local.newObjectReader();
+             final RevWalk rw = new RevWalk(reader);
+             final TreeWalk tw = new TreeWalk(reader)) {
+            tw.setRecursive(true);
+            for (final String branchName : branchesToPush) {
+                final ObjectId commitId = local.resolve(R_HEADS + branchName);
+                if (commitId == null) throw new IOException("No such branch " + branchName);
+                tw.reset(rw.parseCommit(commitId).getTree());
+                while (tw.next()) {
+                    if (tw.getFileMode(0) == FileMode.GITLINK) continue;
+                    final ObjectId blobId = tw.getObjectId(0);
+                    if (seen.contains(blobId)) continue;
+                    seen.add(blobId);
+                    long size = reader.getObjectSize(blobId, OBJ_BLOB);
+                    String lfsOid = null;
+                    if (size <= FileRemoteTransfer.LFS_POINTER_MAX_SIZE) {
+                        lfsOid = FileRemoteTransfer.getLfsOid(reader.open(blobId, OBJ_BLOB));
+                        if (lfsOid != null && !state.isLfsUploaded(lfsOid)) size += getLfsObjectSize(local, lfsOid);
+                    }
+                    current.add(blobId, lfsOid, size);
+                    if (current.bytes >= chunkBytes) {
+                        chunks.add(current);
+                        current = new Chunk();
+                    }
+                }
+            }
+        }
+        if (!current.blobIds.isEmpty()) chunks.add(current);
+        if (state.isEmpty() && chunks.size() <= 1) {
+            syslog().debug("Not enough to push to bother with a resumable push");
+            return null;
+        }
+        return new ResumablePush(repo, remoteName, session, branchesToPush, baseIds, state, chunks);
+    }
+
+    private ResumablePush(final RepoImpl repo, final String remoteName, final RemoteSession session,
+                          final List<String> branchesToPush, final List<ObjectId> baseIds, final PushState state,
+                          final List<Chunk> chunks) {
+        this.repo = requireNonNull(repo);
+        this.remoteName = requireNonNull(remoteName);
+        this.session = requireNonNull(session);
+        this.branchesToPush = requireNonNull(branchesToPush);
+        this.baseIds = requireNonNull(baseIds);
+        this.state = requireNonNull(state);
+        this.chunks = requireNonNull(chunks);
+    }
+
+    // ======================================================================
+    // Package private
+
+    /**
+     * Send the chunks that the remote doesn't have yet, then the branches.
+     *
+     * @return the ids the remote's branches now point to.
+     */
+    Map<String, ObjectId> push(final UserLogger ulog, final ProgressMonitor pm) throws IOException, ProcessException {
+        if (!this.state.isEmpty()) {
+            syslog().info("Resuming push to " + this.remoteName + ", " + this.state.getChunks().size() + " chunks and " +
+                    this.state.getLfsUploadedCount() + " lfs objects were already sent");
+        }
+        syslog().info("Doing resumable push of " + this.branchesToPush + " in " + this.chunks.size() + " chunks");
+        for (int i = 0; i < this.chunks.size(); i++) {
+            final Chunk chunk = this.chunks.get(i);
+            ulog.update(localized("fastback.chat.resumable-push-chunk", i + 1, this.chunks.size(), byteCountToDisplaySize(chunk.bytes)));
+            pushChunk(chunk);
+        }
+        final List<ObjectId> sent = new ArrayList<>(this.baseIds);
+        sent.addAll(this.state.getChunks());
+        final Map<String, ObjectId> pushed = ThinPackPush.push(this.session.getTransport(), this.repo.getJGit().getRepository(),
+                this.branchesToPush, sent, pm);
+        cleanup();
+        return pushed;
+    }
+
+    // ======================================================================
+    // Private
+
+    private void pushChunk(final Chunk chunk) throws IOException, ProcessException {
+        // the lfs objects first, since they're most of the bytes and the git objects are useless without them
+        if (this.repo.getConfig().getBoolean(IS_NATIVE_GIT_ENABLED)) {
+            final List<String> toUpload = new ArrayList<>();
+            for (final String oid : chunk.lfsOids) {
+                if (!this.state.isLfsUploaded(oid)) toUpload.add(oid);
+            }
+            for (int i = 0; i < toUpload.size(); i += LFS_BATCH_SIZE) {
+                final List<String> batch = toUpload.subList(i, Math.min(i + LFS_BATCH_SIZE, toUpload.size()));
+                uploadLfsObjects(batch);
+                this.state.lfsUploaded(batch);
+                this.state.save();
+            }
+        }
+        final Repository local = this.repo.getJGit().getRepository();
+        final ObjectId chunkId = insertChunkCommit(local, chunk);
+        final String localRefName = getLocalRefPrefix() + chunkId.name();
+        final String refName = RESUME_REFS + chunkId.name();
+        final RefUpdate ru = local.updateRef(localRefName);
+        ru.setNewObjectId(chunkId);
+        ru.forceUpdate();
+        final PushResult result = this.session.push(List.of(new RefSpec(localRefName + ":" + refName)), NullProgressMonitor.INSTANCE);
+        final RemoteRefUpdate update = result.getRemoteUpdate(refName);
+        if (update == null || (update.getStatus() != OK && update.getStatus() != UP_TO_DATE)) {
+            throw new IOException("Remote did not accept " + refName + ": " + (update == null ? "no result" : update.getStatus()));
+        }
+        this.state.chunkPushed(chunkId);
+        this.state.save();
+    }
+
+    private void uploadLfsObjects(final List<String> oids) throws IOException, ProcessException {
+        final List<String> cmd = new ArrayList<>();
+        Collections.addAll(cmd, "git", "-C", this.repo.getWorkTree().getAbsolutePath(), "lfs", "push", "--object-id", this.remoteName);
+        cmd.addAll(oids);
+        doExec(cmd.toArray(new String[0]), this.session.getNativeEnv(this.repo), s -> syslog().debug(s), s -> syslog().debug(s));
+    }
+
+    /**
+     * Delete this push's chunk refs, here and on the remote, and the push state.  The chunks' objects are still needed by
+     * the snapshots, only the chunk commits and trees become garbage.
+     */
+    private void cleanup() throws IOException {
+        final Repository local = this.repo.getJGit().getRepository();
+        final List<RefSpec> deletes = new ArrayList<>();
+        for (final ObjectId chunkId : this.state.getChunks()) {
+            deletes.add(new RefSpec().setSource(null).setDestination(RESUME_REFS + chunkId.name()));
+        }
+        try {
+            if (!deletes.isEmpty()) this.session.push(deletes, NullProgressMonitor.INSTANCE);
+        } catch (IOException e) {
+            syslog().error("Failed to remove resumable push refs from " + this.remoteName, e);
+        }
+        for (final Ref ref : local.getRefDatabase().getRefsByPrefix(getLocalRefPrefix())) {
+            final RefUpdate ru = local.updateRef(ref.getName());
+            ru.setForceUpdate(true);
+            ru.delete();
+        }
+        this.state.delete();
+    }
+
+    private String getLocalRefPrefix() {
+        return RESUME_REFS + this.remoteName + "/";
+    }
+
+    /**
+     * @return a new commit of a tree that holds the chunk's blobs, named by their ids.
+     */
+    private static ObjectId insertChunkCommit(final Repository local, final Chunk chunk) throws IOException {
+        final List<ObjectId> blobIds = new ArrayList<>(chunk.blobIds);
+        Collections.sort(blobIds); // tree entries have to be in name order
+        try (final ObjectInserter inserter = local.newObjectInserter()) {
+            final TreeFormatter tree = new TreeFormatter();
+            for (final ObjectId blobId : blobIds) tree.append(blobId.name(), FileMode.REGULAR_FILE, blobId);
+            final PersonIdent ident = new PersonIdent(local);
+            final CommitBuilder commit = new CommitBuilder();
+            commit.setTreeId(inserter.insert(tree));
+            commit.setAuthor(ident);
+            commit.setCommitter(ident);
+            commit.setMessage("Part of a resumable push");
+            final ObjectId out = inserter.insert(commit);
+            inserter.flush();
+            return out;
+        }
+    }
+
+    /**
+     * @return the chunks the remote has refs for.
+     */
+    private static Set<ObjectId> getRemoteChunks(final RemoteSession session) throws IOException {
+        final Set<ObjectId> out = new HashSet<>();
+        try (final FetchConnection fc = session.getTransport().openFetch(
+                List.of(new RefSpec(RESUME_REFS + "*:" + RESUME_REFS + "*")), RESUME_REFS)) {
+            for (final Ref ref : fc.getRefs()) {
+                if (ref.getName().startsWith(RESUME_REFS)) out.add(ref.getObjectId());
+            }
+        }
+        return out;
+    }
+
+    private static long getLfsObjectSize(final Repository local, final String oid) throws IOException {
+        final Path file = local.getDirectory().toPath().resolve("lfs").resolve("objects").
+                resolve(oid.substring(0, 2)).resolve(oid.substring(2, 4)).resolve(oid);
+        return Files.exists(file) ? Files.size(file) : 0;
+    }
+
+    private static class Chunk {
+
+        private final List<ObjectId> blobIds = new ArrayList<>();
+        private final List<String> lfsOids = new ArrayList<>();
+        private long bytes = 0;
+
+        void add(final ObjectId blobId, final String lfsOid, final long size) {
+            this.blobIds.add(blobId.copy());
+            if (lfsOid != null) this.lfsOids.add(lfsOid);
+            this.bytes += size;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.repo.IndexUtils.StatChanges;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.mod.Mod.mod;
+import static net.pcal.fastback.repo.RepoImpl.FASTBACK_DIR;
+import static net.pcal.fastback.utils.FileUtils.mkdirs;
+import static net.pcal.fastback.utils.FileUtils.rmdir;
+
+/**
+ * Utilities for copying changed world files into a staging directory so that world saves only have to be
+ * disabled for as long as it takes to copy them.  Git then adds the files from the staging directory after
+ * saving has been turned back on.
+ * <p>
+ * Only files whose stat info differs from the index get copied; everything else is already in the index
+ * from the previous snapshot and doesn't need to be touched.  We don't hardlink anything because minecraft
+ * rewrites region files in place, which would change the staged copy out from under us.  Files.copy does
+ * the copy in the kernel where it can, but it doesn't reflink, even on filesystems that could; forking a
+ * 'cp --reflink' for every file would cost more than it saves while saving is off.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+abstract class StagingUtils {
+
+    static final String STAGING_DIR = FASTBACK_DIR + "/staging";
+    private static final String GITATTRIBUTES = ".gitattributes";
+
+    /**
+     * The files that were copied to the staging directory and the tracked files that have been deleted.
+     */
+    record StagedChanges(Path stagingDir, List<String> changed, List<String> removed) {
+
+        boolean isEmpty() {
+            return changed.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    /**
+     * Disables world saving, copies the changed files into .fastback/staging and re-enables saving.
+     *
+     * @param dirtyFiles files written since the last snapshot, or null if unknown.
+     */
+    static StagedChanges stageChanges(final Repository repo, final Set<String> dirtyFiles) throws IOException {
+        return stageChanges(repo, dirtyFiles, null);
+    }
+
+    /**
+     * @param chunkedRegions stat info for region files that are stored chunked, or null if nothing is chunked.
+     */
+    static StagedChanges stageChanges(final Repository repo, final Set<String> dirtyFiles, final ChunkedRegionTable chunkedRegions) throws IOException {
+        final Path worktree = repo.getWorkTree().toPath();
+        final Path stagingDir = worktree.resolve(STAGING_DIR);
+        clearStagingDir(repo);
+        mkdirs(stagingDir);
+        final List<String> changed = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+        syslog().debug("Disabling world save for staging");
+        mod().setWorldSaveEnabled(false);
+        try {
+            final StatChanges changes = IndexUtils.findStatChanges(repo, dirtyFiles, chunkedRegions);
+            removed.addAll(changes.removed());
+            for (final String path : changes.changed()) {
+                if (path.startsWith(STAGING_DIR + "/")) continue;
+                try {
+                    copy(worktree, stagingDir, path);
+                    changed.add(path);
+                } catch (NoSuchFileException gone) {
+                    if (changes.tracked().contains(path)) removed.add(path);
+                }
+            }
+        } finally {
+            mod().setWorldSaveEnabled(true);
+            syslog().debug("World save re-enabled.");
+        }
+        // git needs to see the attributes when it adds from the staging directory
+        if (!changed.contains(GITATTRIBUTES) && Files.exists(worktree.resolve(GITATTRIBUTES))) {
+            copy(worktree, stagingDir, GITATTRIBUTES);
+        }
+        syslog().debug("Staged " + changed.size() + " changed files, " + removed.size() + " removed");
+        return new StagedChanges(stagingDir, changed, removed);
+    }
+
+    static void clearStagingDir(final Repository repo) throws IOException {
+        final Path stagingDir = repo.getWorkTree().toPath().resolve(STAGING_DIR);
+        if (Files.exists(stagingDir)) rmdir(stagingDir);
+    }
+
+    private static void copy(final Path fromRoot, final Path toRoot, final String path) throws IOException {
+        final Path target = toRoot.resolve(path);
+        Files.createDirectories(target.getParent());
+        Files.copy(fromRoot.resolve(path), target, REPLACE_EXISTING, COPY_ATTRIBUTES);
+    }
+}
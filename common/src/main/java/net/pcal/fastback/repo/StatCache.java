@@ -0,0 +1,192 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.repo.RepoImpl.FASTBACK_DIR;
+
+/**
+ * Remembers the blob id of each file we've hashed, keyed by its size, mtime and file key (device and inode,
+ * where the platform has them), so that files which haven't changed don't have to be read again.
+ * <p>
+ * The index already does this, but on filesystems with coarse mtimes most of the region files a save touches
+ * end up 'racily clean' in the index, so jgit has to read them all again next time to be sure.  This cache
+ * applies the same rule in a way that eventually settles: each entry records when it was verified (a time
+ * just before the file was hashed), and is only trusted if the file's mtime is comfortably older than that.
+ * The verified time is read off a file we create, so both times come from the filesystem's clock and it doesn't
+ * matter if that's different from ours; an mtime in the future is never trusted.  Entries that are racy are still
+ * saved, but they stay untrusted until the file is hashed again in a later commit.
+ * <pre>
+ * fastback-statcache 2
+ * [blob id] [size] [mtime] [verified] [file key] [path]
+ * </pre>
+ * If the first line isn't the current version, the whole cache is ignored.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class StatCache {
+
+    // ======================================================================
+    // Constants
+
+    static final String CACHE_FILE = "statcache";
+    static final String VERSION = "fastback-statcache 2";
+    // comfortably bigger than the mtime resolution of any filesystem we're likely to see (FAT is 2s)
+    static final Duration RACY_WINDOW = Duration.ofSeconds(3);
+    private static final String NO_FILE_KEY = "-";
+
+    // ======================================================================
+    // Fields
+
+    private final Map<String, Entry> entries;
+    private final Instant verifiedTime;
+
+    // ======================================================================
+    // Factory
+
+    static StatCache load(final Repository repo) {
+        final Path file = getCacheFile(repo);
+        final Map<String, Entry> entries = new HashMap<>();
+        try {
+            if (Files.exists(file)) {
+                final List<String> lines = Files.readAllLines(file, UTF_8);
+                if (lines.isEmpty() || !lines.get(0).equals(VERSION)) {
+                    syslog().debug("Ignoring stat cache with unknown version");
+                } else {
+                    for (final String line : lines.subList(1, lines.size())) {
+                        final String[] fields = line.split(" ", 6);
+                        if (fields.length != 6) continue;
+                        try {
+                            entries.put(fields[5], new Entry(new Stat(Long.parseLong(fields[1]), Instant.parse(fields[2]),
+                                    NO_FILE_KEY.equals(fields[4]) ? null : fields[4]), ObjectId.fromString(fields[0]),
+                                    Instant.parse(fields[3])));
+                        } catch (IllegalArgumentException | DateTimeParseException e) {
+                            syslog().debug("Ignoring bad stat cache line " + line);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            syslog().error("Failed to read stat cache, ignoring it", e);
+            entries.clear();
+        }
+        return new StatCache(entries, getFilesystemTime(file.getParent()));
+    }
+
+    private StatCache(final Map<String, Entry> entries, final Instant verifiedTime) {
+        this.entries = requireNonNull(entries);
+        this.verifiedTime = verifiedTime;
+    }
+
+    // ======================================================================
+    // Package private
+
+    record Stat(long size, Instant lastModified, String fileKey) {
+
+        static Stat of(final Path file) throws IOException {
+            final BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            final Object key = attrs.fileKey();
+            return new Stat(attrs.size(), attrs.lastModifiedTime().toInstant(),
+                    key == null ? null : key.toString().replace(' ', '_'));
+        }
+    }
+
+    /**
+     * @return the blob id the file had when it was last hashed, or null if we can't be sure it hasn't changed.
+     */
+    ObjectId lookup(final String path, final Stat stat) {
+        final Entry entry = this.entries.get(path);
+        if (entry == null || !entry.stat().equals(stat)) return null;
+        if (!stat.lastModified().plus(RACY_WINDOW).isBefore(entry.verified())) return null;
+        return entry.id();
+    }
+
+    /**
+     * Remember the blob id of a file whose content was read after this cache was loaded.
+     */
+    void put(final String path, final Stat stat, final ObjectId id) {
+        // if we couldn't read the filesystem's clock, the entry is saved but never trusted
+        this.entries.put(path, new Entry(stat, id.copy(), this.verifiedTime == null ? Instant.EPOCH : this.verifiedTime));
+    }
+
+    /**
+     * Forget the given paths, e.g. because the files are gone.
+     */
+    void remove(final Collection<String> paths) {
+        for (final String path : paths) this.entries.remove(path);
+    }
+
+    void save(final Repository repo) throws IOException {
+        final Path file = getCacheFile(repo);
+        if (!Files.isDirectory(file.getParent())) return;
+        final List<String> lines = new ArrayList<>(this.entries.size() + 1);
+        lines.add(VERSION);
+        this.entries.forEach((path, e) -> lines.add(e.id().name() + " " + e.stat().size() + " " + e.stat().lastModified() +
+                " " + e.verified() + " " + (e.stat().fileKey() == null ? NO_FILE_KEY : e.stat().fileKey()) + " " + path));
+        Files.write(file, lines, UTF_8);
+    }
+
+    /**
+     * @return the current time by the clock of the filesystem the given directory is on, or null if we can't
+     * tell.
+     */
+    static Instant getFilesystemTime(final Path dir) {
+        if (!Files.isDirectory(dir)) return null;
+        try {
+            final Path probe = Files.createTempFile(dir, CACHE_FILE, ".clock");
+            try {
+                return Files.getLastModifiedTime(probe).toInstant();
+            } finally {
+                Files.delete(probe);
+            }
+        } catch (IOException e) {
+            syslog().error("Failed to read the filesystem clock", e);
+            return null;
+        }
+    }
+
+    // ======================================================================
+    // Private
+
+    private record Entry(Stat stat, ObjectId id, Instant verified) {
+    }
+
+    private static Path getCacheFile(final Repository repo) {
+        return repo.getWorkTree().toPath().resolve(FASTBACK_DIR).resolve(CACHE_FILE);
+    }
+}
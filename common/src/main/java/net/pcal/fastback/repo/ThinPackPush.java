@@ -0,0 +1,340 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdSubclassMap;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.PacketLineIn;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.SshSessionFactory;
+import org.eclipse.jgit.transport.SshTransport;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.QuotedString;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static org.eclipse.jgit.lib.Constants.R_HEADS;
+
+/**
+ * Pushes snapshot branches with a pack that leaves out every tree and blob the remote already has in its recent
+ * snapshots.
+ * <p>
+ * A normal push only leaves out objects reachable from the remote's refs through commit history.  Snapshots are
+ * all orphan commits, so as far as git is concerned they have nothing in common, and every push sends the whole
+ * world again.  Here we instead walk the trees of the remote's latest snapshots (the ones we also have locally),
+ * and tell the PackWriter to exclude everything we find.  The remote doesn't mind being sent a pack that refers to
+ * objects it already has; its connectivity check only cares that they're there.
+ * <p>
+ * We can't change what pack jgit's own push connections write, so this speaks the receive-pack protocol itself:
+ * read the ref advertisement, send the ref updates, send the pack, read the status report.  That's only done
+ * over ssh (using the transport's own session factory, so throttling still applies) and to local repos.  Callers
+ * should fall back to a normal push for anything else.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class ThinPackPush {
+
+    // ======================================================================
+    // Constants
+
+    private static final String CAPABILITY_REPORT_STATUS = "report-status";
+    private static final String CAPABILITY_OFS_DELTA = "ofs-delta";
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    // ======================================================================
+    // Factory
+
+    /**
+     * @return true if we can do a thin pack push over the given transport.
+     */
+    static boolean isSupported(final Transport transport) {
+        return transport instanceof SshTransport || getLocalGitDir(transport.getURI()) != null;
+    }
+
+    /**
+     * Push the given branches, sending only the objects that aren't in the trees of the given remote snapshots.
+     *
+     * @param remoteSnapshotIds commits that the remote has and that we also have locally.
+     * @return the ids the remote's branches now point to.
+     */
+    static Map<String, ObjectId> push(final Transport transport,
+                                      final Repository local,
+                                      final List<String> branchesToPush,
+                                      final Collection<ObjectId> remoteSnapshotIds,
+                                      final ProgressMonitor pm) throws IOException {
+        final Map<String, ObjectId> branchIds = new LinkedHashMap<>();
+        for (final String branchName : branchesToPush) {
+            final ObjectId id = local.resolve(R_HEADS + branchName);
+            if (id == null) throw new IOException("No such branch " + branchName);
+            branchIds.put(branchName, id);
+        }
+        final ObjectIdSubclassMap<ObjectId> remoteObjects = getTreeObjects(local, remoteSnapshotIds);
+        syslog().debug("Excluding " + remoteObjects.size() + " objects found in " + remoteSnapshotIds.size() + " remote snapshots");
+        try (final Connection conn = openReceivePack(transport)) {
+            final PacketLineIn pckIn = new PacketLineIn(conn.in);
+            final PacketLineOut pckOut = new PacketLineOut(conn.out);
+            final Set<String> capabilities = new HashSet<>();
+            final Map<String, ObjectId> advertised = readAdvertisement(pckIn, capabilities);
+            if (!capabilities.contains(CAPABILITY_REPORT_STATUS)) {
+                throw new IOException("Remote doesn't support " + CAPABILITY_REPORT_STATUS);
+            }
+            final Map<String, ObjectId> updates = new LinkedHashMap<>();
+            for (final Map.Entry<String, ObjectId> e : branchIds.entrySet()) {
+                if (!e.getValue().equals(advertised.get(R_HEADS + e.getKey()))) updates.put(e.getKey(), e.getValue());
+            }
+            if (updates.isEmpty()) {
+                pckOut.end();
+                return branchIds;
+            }
+            boolean first = true;
+            for (final Map.Entry<String, ObjectId> e : updates.entrySet()) {
+                final ObjectId oldId = advertised.getOrDefault(R_HEADS + e.getKey(), ObjectId.zeroId());
+                final StringBuilder line = new StringBuilder();
+                line.append(oldId.name()).append(' ').append(e.getValue().name()).append(' ').append(R_HEADS).append(e.getKey());
+                if (first) {
+                    line.append('\0').append(CAPABILITY_REPORT_STATUS);
+                    if (capabilities.contains(CAPABILITY_OFS_DELTA)) line.append(' ').append(CAPABILITY_OFS_DELTA);
+                    first = false;
+                }
+                pckOut.writeString(line.toString());
+            }
+            pckOut.end();
+            writePack(transport, local, updates.values(), advertised.values(), remoteObjects,
+                    capabilities.contains(CAPABILITY_OFS_DELTA), conn.out, pm);
+            readStatusReport(pckIn, updates.keySet());
+            return branchIds;
+        }
+    }
+
+    /**
+     * @return every tree and blob in the given commits.  Trees that are shared between them are only walked once.
+     */
+    static ObjectIdSubclassMap<ObjectId> getTreeObjects(final Repository local, final Collection<ObjectId> commitIds) throws IOException {
+        final ObjectIdSubclassMap<ObjectId> out = new ObjectIdSubclassMap<>();
+        final Deque<ObjectId> trees = new ArrayDeque<>();
+        try (final ObjectReader reader = local.newObjectReader();
+             final RevWalk rw = new RevWalk(reader)) {
+            for (final ObjectId commitId : commitIds) trees.add(rw.parseCommit(commitId).getTree().getId());
+            while (!trees.isEmpty()) {
+                final ObjectId treeId = trees.pop();
+                if (out.contains(treeId)) continue;
+                out.add(treeId.copy());
+                try (final TreeWalk tw = new TreeWalk(reader)) {
+                    tw.addTree(treeId);
+                    while (tw.next()) {
+                        if (tw.getFileMode(0) == FileMode.TREE) {
+                            trees.add(tw.getObjectId(0));
+                        } else if (tw.getFileMode(0) != FileMode.GITLINK) {
+                            out.addIfAbsent(tw.getObjectId(0));
+                        }
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    // ======================================================================
+    // Private
+
+    private static Map<String, ObjectId> readAdvertisement(final PacketLineIn pckIn, final Set<String> capabilities) throws IOException {
+        final Map<String, ObjectId> out = new HashMap<>();
+        boolean first = true;
+        for (String line = pckIn.readString(); !PacketLineIn.isEnd(line); line = pckIn.readString()) {
+            if (first) {
+                final int nul = line.indexOf('\0');
+                if (nul >= 0) {
+                    for (final String cap : line.substring(nul + 1).trim().split(" ")) capabilities.add(cap);
+                    line = line.substring(0, nul);
+                }
+                first = false;
+            }
+            if (line.length() < 42 || line.charAt(40) != ' ') throw new IOException("Bad ref advertisement: " + line);
+            final String refName = line.substring(41).trim();
+            if (refName.startsWith(R_HEADS)) out.put(refName, ObjectId.fromString(line.substring(0, 40)));
+        }
+        return out;
+    }
+
+    private static void writePack(final Transport transport,
+                                  final Repository local,
+                                  final Collection<ObjectId> wants,
+                                  final Collection<ObjectId> advertised,
+                                  final ObjectIdSubclassMap<ObjectId> remoteObjects,
+                                  final boolean ofsDelta,
+                                  final OutputStream out,
+                                  final ProgressMonitor pm) throws IOException {
+        try (final ObjectReader reader = local.newObjectReader();
+             final PackWriter writer = new PackWriter(transport.getPackConfig(), reader)) {
+            final Set<ObjectId> haves = new HashSet<>();
+            for (final ObjectId id : advertised) {
+                if (reader.has(id)) haves.add(id); // still worth it in case there is some history in common
+            }
+            writer.setDeltaBaseAsOffset(ofsDelta);
+            writer.setThin(false);
+            writer.setReuseValidatingObjects(false);
+            writer.excludeObjects(remoteObjects);
+            writer.preparePack(pm, new HashSet<>(wants), haves);
+            syslog().debug("Sending " + writer.getObjectCount() + " objects");
+            final OutputStream packOut = new BufferedOutputStream(out);
+            writer.writePack(pm, pm, packOut);
+            packOut.flush();
+        }
+    }
+
+    private static void readStatusReport(final PacketLineIn pckIn, final Set<String> branchNames) throws IOException {
+        final String unpack = pckIn.readString();
+        if (!unpack.startsWith("unpack ")) throw new IOException("Unexpected status from remote: " + unpack);
+        if (!unpack.equals("unpack ok")) throw new IOException("Remote failed to unpack: " + unpack.substring(7));
+        final List<String> failures = new ArrayList<>();
+        final Set<String> reported = new HashSet<>();
+        for (String line = pckIn.readString(); !PacketLineIn.isEnd(line); line = pckIn.readString()) {
+            if (line.startsWith("ok ")) {
+                reported.add(line.substring(3));
+            } else if (line.startsWith("ng ")) {
+                reported.add(line.substring(3).split(" ", 2)[0]);
+                failures.add(line.substring(3));
+            }
+        }
+        for (final String branchName : branchNames) {
+            if (!reported.contains(R_HEADS + branchName)) failures.add(R_HEADS + branchName + " not reported");
+        }
+        if (!failures.isEmpty()) throw new IOException("Remote did not update " + failures);
+    }
+
+    private static Connection openReceivePack(final Transport transport) throws IOException {
+        final URIish uri = transport.getURI();
+        if (transport instanceof SshTransport sshTransport) {
+            final SshSessionFactory factory = sshTransport.getSshSessionFactory();
+            final org.eclipse.jgit.transport.RemoteSession session =
+                    factory.getSession(uri, transport.getCredentialsProvider(), FS.DETECTED, transport.getTimeout() * 1000);
+            String path = uri.getPath();
+            if (uri.getScheme() != null && path.startsWith("/~")) path = path.substring(1);
+            final Process process;
+            try {
+                process = session.exec(transport.getOptionReceivePack() + " " + QuotedString.BOURNE.quote(path), transport.getTimeout());
+            } catch (IOException | RuntimeException e) {
+                factory.releaseSession(session);
+                throw e;
+            }
+            final Thread stderr = new Thread(() -> {
+                try (final BufferedReader err = new BufferedReader(new InputStreamReader(process.getErrorStream(), UTF_8))) {
+                    for (String line = err.readLine(); line != null; line = err.readLine()) syslog().debug(line);
+                } catch (IOException e) {
+                    syslog().debug("Failed reading receive-pack errors", e);
+                }
+            }, "fastback-receive-pack-stderr");
+            stderr.setDaemon(true);
+            stderr.start();
+            return new Connection(process.getInputStream(), process.getOutputStream(), () -> {
+                process.getOutputStream().close();
+                try {
+                    process.waitFor();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    factory.releaseSession(session);
+                }
+            });
+        }
+        final File gitDir = getLocalGitDir(uri);
+        if (gitDir == null) throw new IOException("Can't do a thin pack push to " + uri);
+        final Repository remote = new FileRepositoryBuilder().setGitDir(gitDir).setMustExist(true).build();
+        final PipedInputStream toRemote = new PipedInputStream(PIPE_SIZE);
+        final PipedInputStream fromRemote = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream toRemoteOut = new PipedOutputStream(toRemote);
+        final PipedOutputStream fromRemoteOut = new PipedOutputStream(fromRemote);
+        final Thread thread = new Thread(() -> {
+            try (fromRemoteOut; toRemote) {
+                new ReceivePack(remote).receive(toRemote, fromRemoteOut, null);
+            } catch (IOException e) {
+                syslog().debug("Local receive-pack failed", e);
+            }
+        }, "fastback-receive-pack");
+        thread.setDaemon(true);
+        thread.start();
+        return new Connection(fromRemote, toRemoteOut, () -> {
+            toRemoteOut.close();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                remote.close();
+            }
+        });
+    }
+
+    private static File getLocalGitDir(final URIish uri) {
+        if (uri.getHost() != null || !(uri.getScheme() == null || uri.getScheme().equals("file"))) return null;
+        return RepositoryCache.FileKey.resolve(new File(uri.getPath()), FS.DETECTED);
+    }
+
+    /**
+     * The streams to and from a running receive-pack.
+     */
+    private record Connection(InputStream in, OutputStream out, Closeable onClose) implements Closeable {
+
+        Connection {
+            requireNonNull(in);
+            requireNonNull(out);
+            requireNonNull(onClose);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.onClose.close();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.pcal.fastback.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+
+/**
+ * A minimal HTTP CONNECT proxy on the loopback interface that passes everything sent to the remote through a
+ * PushThrottle.  Native git and git-lfs don't have any way of limiting their own bandwidth, but they do know how
+ * to use a proxy: https traffic gets here via HTTPS_PROXY, and ssh traffic via a ProxyCommand that runs
+ * ProxyTunnel.  Since the tunnels are opaque, TLS and ssh work end-to-end as usual.
+ * <p>
+ * It can't only connect to the remote's host, because the lfs batch api sends uploads wherever the server keeps
+ * its objects (e.g., GitHub's go to an S3 bucket).  It only listens on loopback, though, and only connects to the
+ * ports it was started with, so it can't be used as a general-purpose proxy by anything else on the machine.  Only
+ * lives as long as the RemoteSession that started it.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+class ThrottlingProxy implements Closeable {
+
+    // ======================================================================
+    // Constants
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 30_000;
+    private static final int MAX_HEADER_BYTES = 8 * 1024;
+
+    // ======================================================================
+    // Fields
+
+    private final ServerSocket serverSocket;
+    private final PushThrottle throttle;
+    private final Set<Integer> allowedPorts;
+    private final Set<Socket> sockets = Collections.synchronizedSet(new HashSet<>());
+
+    // ======================================================================
+    // Factory
+
+    /**
+     * @param allowedPorts the ports that clients may connect to, on any host.
+     */
+    static ThrottlingProxy start(final PushThrottle throttle, final Set<Integer> allowedPorts) throws IOException {
+        final ThrottlingProxy out = new ThrottlingProxy(new ServerSocket(0, 50, InetAddress.getLoopbackAddress()), throttle, allowedPorts);
+        startDaemon(out::acceptLoop, "fastback-proxy");
+        syslog().debug("Throttling proxy listening on port " + out.getPort());
+        return out;
+    }
+
+    private ThrottlingProxy(final ServerSocket serverSocket, final PushThrottle throttle, final Set<Integer> allowedPorts) {
+        this.serverSocket = requireNonNull(serverSocket);
+        this.throttle = requireNonNull(throttle);
+        this.allowedPorts = Set.copyOf(allowedPorts);
+    }
+
+    // ======================================================================
+    // Package private
+
+    int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            syslog().debug(e);
+        }
+        synchronized (this.sockets) {
+            for (final Socket s : this.sockets) closeQuietly(s);
+            this.sockets.clear();
+        }
+    }
+
+    // ======================================================================
+    // Private
+
+    private void acceptLoop() {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                final Socket client = this.serverSocket.accept();
+                this.sockets.add(client);
+                startDaemon(() -> handle(client), "fastback-proxy-conn");
+            } catch (IOException e) {
+                if (!this.serverSocket.isClosed()) syslog().debug("Proxy accept failed", e);
+            }
+        }
+    }
+
+    private void handle(final Socket client) {
+        Socket upstream = null;
+        try {
+            final InputStream clientIn = client.getInputStream();
+            final OutputStream clientOut = client.getOutputStream();
+            final String requestLine = readHeaders(clientIn);
+            final String[] parts = requestLine == null ? new String[0] : requestLine.split(" ");
+            final int colon = parts.length == 3 ? parts[1].lastIndexOf(':') : -1;
+            if (colon < 1 || !parts[0].equals("CONNECT")) {
+                clientOut.write("HTTP/1.1 405 Method Not Allowed\r\nConnection: close\r\n\r\n".getBytes(ISO_8859_1));
+                clientOut.flush();
+                return;
+            }
+            final String host = parts[1].substring(0, colon);
+            final int port = Integer.parseInt(parts[1].substring(colon + 1));
+            if (!this.allowedPorts.contains(port)) {
+                syslog().warn("Proxy refused connection to " + parts[1]);
+                clientOut.write("HTTP/1.1 403 Forbidden\r\nConnection: close\r\n\r\n".getBytes(ISO_8859_1));
+                clientOut.flush();
+                return;
+            }
+            upstream = new Socket();
+            this.sockets.add(upstream);
+            try {
+                upstream.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                clientOut.write("HTTP/1.1 502 Bad Gateway\r\nConnection: close\r\n\r\n".getBytes(ISO_8859_1));
+                clientOut.flush();
+                return;
+            }
+            clientOut.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(ISO_8859_1));
+            clientOut.flush();
+            final Socket up = upstream;
+            final Thread down = startDaemon(() -> pump(up, client, up.getInputStream(), clientOut), "fastback-proxy-down");
+            pump(client, up, clientIn, this.throttle.wrap(up.getOutputStream()));
+            // the remote's still got to answer whatever we just sent it
+            down.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            syslog().debug("Proxy connection failed", e);
+        } finally {
+            if (upstream != null) {
+                closeQuietly(upstream);
+                this.sockets.remove(upstream);
+            }
+            closeQuietly(client);
+            this.sockets.remove(client);
+        }
+    }
+
+    /**
+     * @return the request line, having read (and ignored) the rest of the headers.
+     */
+    private static String readHeaders(final InputStream in) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        String requestLine = null;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (buf.size() > MAX_HEADER_BYTES) return null;
+            if (b != '\n') {
+                if (b != '\r') buf.write(b);
+                continue;
+            }
+            final String line = buf.toString(ISO_8859_1);
+            buf.reset();
+            if (line.isEmpty()) return requestLine;
+            if (requestLine == null) requestLine = line;
+        }
+        return null;
+    }
+
+    private static void pump(final Socket from, final Socket to, final InputStream in, final OutputStream out) {
+        final byte[] buf = new byte[16 * 1024];
+        try {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+                out.flush();
+            }
+            to.shutdownOutput();
+        } catch (IOException e) {
+            closeQuietly(from);
+            closeQuietly(to);
+        }
+    }
+
+    private interface IORunnable {
+        void run() throws IOException;
+    }
+
+    private static Thread startDaemon(final IORunnable r, final String name) {
+        final Thread t = new Thread(() -> {
+            try {
+                r.run();
+            } catch (IOException e) {
+                syslog().debug(e);
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static void closeQuietly(final Socket s) {
+        try {
+            s.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
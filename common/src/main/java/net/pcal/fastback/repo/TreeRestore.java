@@ -0,0 +1,399 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.utils.ProcessException;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+import static net.pcal.fastback.logging.SystemLogger.syslog;
+import static net.pcal.fastback.logging.UserMessage.localized;
+import static net.pcal.fastback.repo.RegionChunkUtils.CHUNKED_SUFFIX;
+import static net.pcal.fastback.utils.ProcessUtils.doExec;
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
+
+/**
+ * Writes files from a snapshot's tree straight out of a repository's object database, without a clone or a
+ * checkout.  Only the blobs (and lfs objects) of the files being written are ever read, and the files are written
+ * by a pool of workers, each with its own ObjectReader.  Chunked regions (see RegionChunkUtils) are put back
+ * together as they're written.
+ * <p>
+ * lfs objects are copied from the repository's lfs store.  On Linux, they're reflinked instead where the
+ * filesystem supports it (btrfs, xfs), which costs no time or space.  They're never hardlinked: Minecraft
+ * rewrites region files in place, so opening the restored world would corrupt the backup.
+ * <p>
+ * A full restore leaves a RestoreRecord behind, so that the directory can later be switched to another snapshot
+ * with update(), which only rewrites what's different.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+abstract class TreeRestore {
+
+    // ======================================================================
+    // Constants
+
+    private static final String SESSION_LOCK = "session.lock";
+
+    // ======================================================================
+    // Package private
+
+    /**
+     * Write the files in the given commit's tree that the filter matches into the target directory.  lfs pointer
+     * files are replaced by their objects from the repository's lfs store.
+     *
+     * @param filter      which files to write, or null for all of them.
+     * @param threadCount how many files to write at once, or 0 for one less than the number of cores.
+     * @return the number of files written.
+     * @throws MissingLfsObjectsException if some of the lfs objects aren't in the store.  Everything else has been
+     *                                    written by then.
+     */
+    static int restore(final Repository repo, final ObjectId commitId, final RestoreFilter filter,
+                       final Path targetDir, final int threadCount, final UserLogger ulog) throws IOException {
+        final List<Entry> entries = listEntries(repo, commitId, filter);
+        write(repo, entries, targetDir, threadCount, ulog);
+        if (filter == null) saveRecord(commitId, entries, targetDir);
+        syslog().debug("Restored " + entries.size() + " files from " + commitId.name() + " to " + targetDir);
+        return entries.size();
+    }
+
+    /**
+     * Turn a directory holding an earlier full restore into a restore of the given commit.  Files that are the
+     * same in both snapshots and haven't been touched since are left alone; everything else is rewritten, and
+     * files that aren't in the snapshot are deleted.  Without a RestoreRecord, every file is rewritten.
+     *
+     * @return the number of files written.
+     * @throws MissingLfsObjectsException if some of the lfs objects aren't in the store.  The RestoreRecord isn't
+     *                                    updated, so calling this again will finish the job.
+     */
+    static int update(final Repository repo, final ObjectId commitId, final Path targetDir,
+                      final int threadCount, final UserLogger ulog) throws IOException {
+        final RestoreRecord previous = RestoreRecord.load(targetDir);
+        final List<Entry> entries = listEntries(repo, commitId, null);
+        final List<Entry> changed = new ArrayList<>();
+        final Set<String> paths = new HashSet<>();
+        for (final Entry entry : entries) {
+            paths.add(entry.path);
+            if (previous == null || !previous.isUnchanged(entry.path, entry.id, targetDir.resolve(entry.path))) {
+                changed.add(entry);
+            }
+        }
+        final int deleted = deleteOthers(targetDir, paths);
+        write(repo, changed, targetDir, threadCount, ulog);
+        saveRecord(commitId, entries, targetDir);
+        syslog().debug("Updated " + targetDir + " to " + commitId.name() + ": " + changed.size() + " of " +
+                entries.size() + " files written, " + deleted + " deleted");
+        return changed.size();
+    }
+
+    /**
+     * @return true if update() can be used on the directory without losing anything: it has a RestoreRecord, the
+     * world in it isn't open, and nothing in it has changed since it was restored.
+     */
+    static boolean isReusable(final Path restoreDir) throws IOException {
+        final RestoreRecord record = RestoreRecord.load(restoreDir);
+        if (record == null) return false;
+        if (isLocked(restoreDir.resolve(SESSION_LOCK))) {
+            syslog().info("Not reusing " + restoreDir + ", the world is open");
+            return false;
+        }
+        if (!record.isUntouched(restoreDir)) {
+            syslog().info("Not reusing " + restoreDir + ", it's been changed since it was restored");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the configured number of restore threads, or one less than the number of cores if it's 0.
+     */
+    static int getThreadCount(final int threadCount) {
+        return threadCount > 0 ? threadCount : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    // ======================================================================
+    // Private
+
+    /**
+     * @return true if something is holding a lock on the file, as Minecraft does on session.lock while the world is
+     * open.
+     */
+    private static boolean isLocked(final Path lockFile) throws IOException {
+        if (!Files.exists(lockFile)) return false;
+        try (final FileChannel channel = FileChannel.open(lockFile, WRITE)) {
+            final FileLock lock = channel.tryLock();
+            if (lock == null) return true;
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true; // it's open in this jvm
+        }
+    }
+
+    /**
+     * A file to restore: a blob, or the tree of a chunked region.
+     */
+    private record Entry(String path, ObjectId id, boolean executable, boolean chunked) {
+    }
+
+    private static List<Entry> listEntries(final Repository repo, final ObjectId commitId,
+                                           final RestoreFilter filter) throws IOException {
+        final List<Entry> out = new ArrayList<>();
+        try (final ObjectReader reader = repo.newObjectReader();
+             final RevWalk rw = new RevWalk(reader);
+             final TreeWalk tw = new TreeWalk(reader)) {
+            tw.reset(rw.parseCommit(commitId).getTree());
+            while (tw.next()) {
+                final String path = tw.getPathString();
+                final FileMode mode = tw.getFileMode(0);
+                if (tw.isSubtree()) {
+                    if (!path.endsWith(CHUNKED_SUFFIX)) {
+                        tw.enterSubtree();
+                        continue;
+                    }
+                    final String regionPath = path.substring(0, path.length() - CHUNKED_SUFFIX.length());
+                    if (filter == null || filter.matches(regionPath)) {
+                        out.add(new Entry(regionPath, tw.getObjectId(0), false, true));
+                    }
+                } else if (mode != FileMode.REGULAR_FILE && mode != FileMode.EXECUTABLE_FILE) {
+                    syslog().debug("Skipping " + path + " with mode " + mode);
+                } else if (filter == null || filter.matches(path)) {
+                    out.add(new Entry(path, tw.getObjectId(0), mode == FileMode.EXECUTABLE_FILE, false));
+                }
+            }
+        }
+        return out;
+    }
+
+    private static void write(final Repository repo, final List<Entry> entries, final Path targetDir,
+                              final int threadCount, final UserLogger ulog) throws IOException {
+        final Set<Path> dirs = new HashSet<>();
+        dirs.add(targetDir);
+        for (final Entry entry : entries) dirs.add(targetDir.resolve(entry.path).getParent());
+        for (final Path dir : dirs) Files.createDirectories(dir);
+        final Writer writer = new Writer(repo, targetDir, entries, ulog);
+        final int threads = Math.min(Math.max(1, entries.size()), getThreadCount(threadCount));
+        if (threads == 1) {
+            writer.call();
+        } else {
+            final ExecutorService pool = Executors.newFixedThreadPool(threads, TreeRestore::newRestoreThread);
+            try {
+                final List<Future<Void>> workers = new ArrayList<>(threads);
+                for (int i = 0; i < threads; i++) workers.add(pool.submit(writer));
+                for (final Future<Void> worker : workers) await(worker);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        if (!writer.missingLfsOids.isEmpty()) throw new MissingLfsObjectsException(writer.missingLfsOids);
+    }
+
+    /**
+     * Delete every file in the directory that isn't one of the given paths, and any directories that leaves
+     * empty.  The restore record is left alone.
+     *
+     * @return the number of files deleted.
+     */
+    private static int deleteOthers(final Path targetDir, final Set<String> paths) throws IOException {
+        if (!Files.isDirectory(targetDir)) return 0;
+        final Path recordFile = RestoreRecord.getFile(targetDir);
+        final List<Path> all;
+        try (final Stream<Path> s = Files.walk(targetDir)) {
+            all = s.filter(p -> !p.equals(targetDir)).sorted(Comparator.reverseOrder()).toList(); // children first
+        }
+        int deleted = 0;
+        for (final Path p : all) {
+            if (p.equals(recordFile) || p.equals(recordFile.getParent())) continue;
+            final String path = targetDir.relativize(p).toString().replace('\\', '/');
+            if (Files.isDirectory(p, NOFOLLOW_LINKS)) {
+                // children come first, so this is also what clears the way when the snapshot has a file here
+                try (final Stream<Path> s = Files.list(p)) {
+                    if (s.findAny().isEmpty()) Files.delete(p);
+                }
+            } else if (!paths.contains(path)) {
+                Files.delete(p);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private static void saveRecord(final ObjectId commitId, final List<Entry> entries, final Path targetDir) throws IOException {
+        final RestoreRecord record = RestoreRecord.create(commitId);
+        for (final Entry entry : entries) {
+            final Path file = targetDir.resolve(entry.path);
+            if (Files.isRegularFile(file)) record.put(entry.path, entry.id, file);
+        }
+        record.save(targetDir);
+    }
+
+    private static void await(final Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while restoring files");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioe) throw ioe;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Thread newRestoreThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "fastback-restore");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Writes entries until there are none left.  All of the workers share one Writer, each taking the next entry
+     * from its list.
+     */
+    private static class Writer implements Callable<Void> {
+
+        private final Repository repo;
+        private final Path targetDir;
+        private final Path lfsObjects;
+        private final List<Entry> entries;
+        private final UserLogger ulog;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger lastPercent = new AtomicInteger(-1);
+        private final Set<String> missingLfsOids = ConcurrentHashMap.newKeySet();
+        private volatile boolean reflink = System.getProperty("os.name").toLowerCase().contains("linux");
+
+        Writer(final Repository repo, final Path targetDir, final List<Entry> entries, final UserLogger ulog) {
+            this.repo = requireNonNull(repo);
+            this.targetDir = requireNonNull(targetDir);
+            this.lfsObjects = repo.getDirectory().toPath().resolve("lfs").resolve("objects");
+            this.entries = requireNonNull(entries);
+            this.ulog = requireNonNull(ulog);
+        }
+
+        @Override
+        public Void call() throws IOException {
+            try (final ObjectReader reader = this.repo.newObjectReader()) {
+                int i;
+                while ((i = this.next.getAndIncrement()) < this.entries.size()) {
+                    write(reader, this.entries.get(i));
+                    final int percent = 100 * this.done.incrementAndGet() / this.entries.size();
+                    final int last = this.lastPercent.get();
+                    if (percent > last && this.lastPercent.compareAndSet(last, percent)) {
+                        this.ulog.update(localized("fastback.hud.restore-percent", percent));
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void write(final ObjectReader reader, final Entry entry) throws IOException {
+            final Path target = this.targetDir.resolve(entry.path);
+            if (entry.chunked) {
+                final Map<String, byte[]> parts = new TreeMap<>();
+                try (final TreeWalk tw = new TreeWalk(reader)) {
+                    tw.reset(entry.id);
+                    while (tw.next()) parts.put(tw.getNameString(), reader.open(tw.getObjectId(0), OBJ_BLOB).getBytes());
+                }
+                Files.write(target, RegionChunkUtils.join(parts));
+                return;
+            }
+            final ObjectLoader loader = reader.open(entry.id, OBJ_BLOB);
+            final String lfsOid = FileRemoteTransfer.getLfsOid(loader);
+            final Path lfsObject = lfsOid == null ? null :
+                    this.lfsObjects.resolve(lfsOid.substring(0, 2)).resolve(lfsOid.substring(2, 4)).resolve(lfsOid);
+            if (lfsObject != null) {
+                if (!Files.exists(lfsObject)) {
+                    syslog().warn("lfs object " + lfsOid + " for " + entry.path + " is missing");
+                    this.missingLfsOids.add(lfsOid);
+                    return;
+                }
+                copyLfsObject(lfsObject, target);
+            } else {
+                try (final OutputStream out = Files.newOutputStream(target)) {
+                    loader.copyTo(out);
+                }
+            }
+            if (entry.executable) target.toFile().setExecutable(true);
+        }
+
+        private void copyLfsObject(final Path source, final Path target) throws IOException {
+            if (this.reflink) {
+                try {
+                    doExec(new String[]{"cp", "--reflink=always", source.toString(), target.toString()}, Map.of(), s -> {}, s -> {});
+                    return;
+                } catch (ProcessException e) {
+                    syslog().debug("Can't reflink lfs objects, copying them instead");
+                    this.reflink = false;
+                }
+            }
+            Files.copy(source, target, REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Thrown when files couldn't be restored because their lfs objects aren't in the repository's lfs store.
+     */
+    static class MissingLfsObjectsException extends IOException {
+
+        private final Set<String> oids;
+
+        MissingLfsObjectsException(final Set<String> oids) {
+            super(oids.size() + " lfs objects are missing");
+            this.oids = Set.copyOf(oids);
+        }
+
+        Set<String> getOids() {
+            return this.oids;
+        }
+    }
+}
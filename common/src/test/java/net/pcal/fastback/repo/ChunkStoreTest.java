@@ -0,0 +1,120 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class ChunkStoreTest {
+
+    @Test
+    public void testRoundTrip(@TempDir Path dir) throws Exception {
+        final ChunkStore store = new ChunkStore(dir.resolve("store"));
+        store.open();
+        final byte[] data = randomBytes(1, 3 * 1024 * 1024 + 17);
+        final String oid = writeObject(dir.resolve("a"), data);
+        assertEquals(data.length, store.putObject(oid, dir.resolve("a")));
+        assertTrue(store.hasObject(oid));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ChunkStore(dir.resolve("store")).getObject(oid, out);
+        assertArrayEquals(data, out.toByteArray());
+        assertThrows(Exception.class, () -> store.putObject("0".repeat(64), dir.resolve("a")));
+    }
+
+    /**
+     * Inserting a few bytes near the start of a file should only cost a chunk or two.
+     */
+    @Test
+    public void testDeduplication(@TempDir Path dir) throws Exception {
+        final ChunkStore store = new ChunkStore(dir.resolve("store"));
+        store.open();
+        final byte[] before = randomBytes(2, 4 * 1024 * 1024);
+        final byte[] after = new byte[before.length + 5];
+        System.arraycopy(before, 0, after, 0, 100_000);
+        System.arraycopy(before, 100_000, after, 100_005, before.length - 100_000);
+        store.putObject(writeObject(dir.resolve("before"), before), dir.resolve("before"));
+        final long written = store.putObject(writeObject(dir.resolve("after"), after), dir.resolve("after"));
+        assertTrue(written > 0 && written <= 2 * FastCdcChunker.MAX_SIZE, "wrote " + written);
+
+        // a fresh store instance should find everything in the chunk index
+        final ChunkStore reopened = new ChunkStore(dir.resolve("store"));
+        reopened.open();
+        assertEquals(0, reopened.putObject(writeObject(dir.resolve("copy"), after), dir.resolve("copy")));
+        try (final Stream<Path> s = Files.walk(dir.resolve("store").resolve("tmp"))) {
+            assertEquals(1, s.count());
+        }
+    }
+
+    @Test
+    public void testChunkSizes() throws Exception {
+        final byte[] data = randomBytes(3, 8 * 1024 * 1024);
+        final FastCdcChunker chunker = new FastCdcChunker(new ByteArrayInputStream(data));
+        int total = 0, count = 0;
+        byte[] chunk;
+        while ((chunk = chunker.next()) != null) {
+            total += chunk.length;
+            count++;
+            assertTrue(chunk.length <= FastCdcChunker.MAX_SIZE);
+            if (total < data.length) assertTrue(chunk.length >= FastCdcChunker.MIN_SIZE);
+        }
+        assertEquals(data.length, total);
+        final int avg = total / count;
+        assertTrue(avg > FastCdcChunker.AVG_SIZE / 2 && avg < FastCdcChunker.AVG_SIZE * 2, "average " + avg);
+    }
+
+    @Test
+    public void testAgentMessages() {
+        final String upload = "{\"event\":\"upload\",\"oid\":\"bf3e\",\"size\":346232,\"path\":\"C:\\\\world\\\\r.0.0.mca\",\"action\":null}";
+        assertEquals("upload", ChunkStoreAgent.getString(upload, "event"));
+        assertEquals("346232", ChunkStoreAgent.getString(upload, "size"));
+        assertEquals("C:\\world\\r.0.0.mca", ChunkStoreAgent.getString(upload, "path"));
+        assertEquals(null, ChunkStoreAgent.getString(upload, "action"));
+        assertEquals(null, ChunkStoreAgent.getString(upload, "remote"));
+        assertEquals("\"C:\\\\world\\\\r.0.0.mca\"", ChunkStoreAgent.quote("C:\\world\\r.0.0.mca"));
+    }
+
+    private static byte[] randomBytes(final long seed, final int length) {
+        final byte[] out = new byte[length];
+        new Random(seed).nextBytes(out);
+        return out;
+    }
+
+    private static String writeObject(final Path file, final byte[] data) throws Exception {
+        Files.write(file, data);
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+}
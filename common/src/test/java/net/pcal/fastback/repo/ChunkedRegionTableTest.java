@@ -0,0 +1,91 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class ChunkedRegionTableTest {
+
+    private static final String REGION = "region/r.0.0.mca";
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    /**
+     * A region that Minecraft saves again in the same mtime tick as the one we chunked, without changing its
+     * length (regions are sector-aligned, so that's usual), mustn't be taken as unchanged.
+     */
+    @Test
+    public void testRacyRewrite(@TempDir Path worktree) throws Exception {
+        try (final Git jgit = Git.init().setDirectory(worktree.toFile()).call()) {
+            final Repository repo = jgit.getRepository();
+            final Path fastbackDir = Files.createDirectories(worktree.resolve(".fastback"));
+            final Path probe = Files.createTempFile(fastbackDir, "probe", null);
+            final Instant now = Files.getLastModifiedTime(probe).toInstant();
+            Files.delete(probe);
+            final Path region = worktree.resolve(REGION);
+            Files.createDirectories(region.getParent());
+            Files.write(region, new byte[8192]);
+            Files.setLastModifiedTime(region, FileTime.from(now));
+
+            final ChunkedRegionTable table = ChunkedRegionTable.load(repo);
+            table.put(REGION, Files.size(region), now);
+            table.save(repo, repo.getBranch());
+
+            // the save after ours: same length, same mtime
+            final byte[] saved = new byte[8192];
+            saved[4096] = 42;
+            Files.write(region, saved);
+            Files.setLastModifiedTime(region, FileTime.from(now));
+            assertFalse(ChunkedRegionTable.load(repo).isUnchanged(REGION, Files.size(region), now));
+            assertFalse(ChunkedRegionTable.load(repo).isUnchanged(REGION, Files.size(region), now.plusSeconds(3600)));
+
+            // a region last written well before we read it can be trusted
+            final Instant old = now.minusSeconds(3600);
+            final ChunkedRegionTable reloaded = ChunkedRegionTable.load(repo);
+            reloaded.put(REGION, Files.size(region), old);
+            reloaded.save(repo, repo.getBranch());
+            final ChunkedRegionTable again = ChunkedRegionTable.load(repo);
+            assertTrue(again.isUnchanged(REGION, Files.size(region), old));
+            assertFalse(again.isUnchanged(REGION, Files.size(region) + 1, old));
+            assertFalse(again.isUnchanged(REGION, Files.size(region), old.plusMillis(1)));
+        }
+    }
+}
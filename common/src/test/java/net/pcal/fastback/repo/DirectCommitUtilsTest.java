@@ -0,0 +1,118 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import net.pcal.fastback.repo.IndexUtils.UpdateEntry;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class DirectCommitUtilsTest {
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    /**
+     * Rewriting a tree should give exactly the same tree id as building the changed tree from scratch.
+     */
+    @Test
+    public void testRewriteTree(@TempDir Path dir) throws Exception {
+        try (final Git jgit = Git.init().setDirectory(dir.toFile()).call()) {
+            final Repository repo = jgit.getRepository();
+            try (final ObjectInserter inserter = repo.newObjectInserter();
+                 final ObjectReader reader = inserter.newReader()) {
+                final ObjectId before = buildTree(inserter, new TreeMap<>(Map.of(
+                        "level.dat", "level",
+                        "region/r.0.0.mca", "r00",
+                        "region/r.0.1.mca", "r01",
+                        "entities/r.0.0.mca", "e00",
+                        "data/raids.dat", "raids",
+                        "region.txt", "sorts between region and region/")));
+                final NavigableMap<String, UpdateEntry> changes = new TreeMap<>();
+                changes.put("level.dat", update(inserter, "level.dat", "level2"));
+                changes.put("region/r.0.1.mca", update(inserter, "region/r.0.1.mca", "r01-changed"));
+                changes.put("region/r.1.1.mca", update(inserter, "region/r.1.1.mca", "r11"));
+                changes.put("data/raids.dat", null);
+                changes.put("DIM-1/region/r.0.0.mca", update(inserter, "DIM-1/region/r.0.0.mca", "nether"));
+                final ObjectId after = DirectCommitUtils.rewriteTree(reader, inserter, before, "", changes);
+                final ObjectId expected = buildTree(inserter, new TreeMap<>(Map.of(
+                        "level.dat", "level2",
+                        "region/r.0.0.mca", "r00",
+                        "region/r.0.1.mca", "r01-changed",
+                        "region/r.1.1.mca", "r11",
+                        "entities/r.0.0.mca", "e00",
+                        "region.txt", "sorts between region and region/",
+                        "DIM-1/region/r.0.0.mca", "nether")));
+                assertEquals(expected, after);
+
+                // removing everything leaves nothing
+                final NavigableMap<String, UpdateEntry> removeAll = new TreeMap<>();
+                removeAll.put("level.dat", null);
+                assertNull(DirectCommitUtils.rewriteTree(reader, inserter, buildTree(inserter, new TreeMap<>(Map.of("level.dat", "x"))), "", removeAll));
+            }
+        }
+    }
+
+    private static UpdateEntry update(ObjectInserter inserter, String path, String content) throws Exception {
+        final ObjectId id = inserter.insert(OBJ_BLOB, content.getBytes(UTF_8));
+        return new UpdateEntry(path, FileMode.REGULAR_FILE, content.length(), Instant.now(), id);
+    }
+
+    private static ObjectId buildTree(ObjectInserter inserter, TreeMap<String, String> files) throws Exception {
+        final DirCache dc = DirCache.newInCore();
+        final DirCacheBuilder builder = dc.builder();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            final DirCacheEntry entry = new DirCacheEntry(file.getKey());
+            entry.setFileMode(FileMode.REGULAR_FILE);
+            entry.setObjectId(inserter.insert(OBJ_BLOB, file.getValue().getBytes(UTF_8)));
+            builder.add(entry);
+        }
+        builder.finish();
+        return dc.writeTree(inserter);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.logging.UserMessage;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class FileRemoteTransferTest {
+
+    private static final String LFS_OID = "2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae";
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    /**
+     * The first snapshot goes over as copied packs, the second as loose objects on top of it.  Either way, the
+     * remote should end up with complete snapshots, their lfs objects and the right branches.
+     */
+    @Test
+    public void testPush(@TempDir Path temp) throws Exception {
+        final Path remoteDir = temp.resolve("remote");
+        final Path worktree = temp.resolve("world");
+        try (final Git remote = Git.init().setBare(true).setDirectory(remoteDir.toFile()).call();
+             final Git jgit = Git.init().setDirectory(worktree.toFile()).call()) {
+            Files.writeString(worktree.resolve("level.dat"), "level");
+            Files.createDirectories(worktree.resolve("region"));
+            Files.writeString(worktree.resolve("region/r.0.0.mca"), "version https://git-lfs.github.com/spec/v1\n" +
+                    "oid sha256:" + LFS_OID + "\nsize 3\n");
+            final Path lfsObject = worktree.resolve(".git/lfs/objects").resolve(LFS_OID.substring(0, 2)).
+                    resolve(LFS_OID.substring(2, 4)).resolve(LFS_OID);
+            Files.createDirectories(lfsObject.getParent());
+            Files.writeString(lfsObject, "foo");
+            jgit.add().addFilepattern(".").call();
+            final RevCommit a = jgit.commit().setMessage("a").setSign(false).call();
+            jgit.branchCreate().setName("snapshots/1234/a").call();
+            final StoredConfig config = jgit.getRepository().getConfig();
+            config.setBoolean("pack", null, "buildBitmaps", false);
+            config.save();
+            jgit.gc().call();
+
+            final Map<String, ObjectId> pushedA = FileRemoteTransfer.push(jgit.getRepository(),
+                    remote.getRepository().getDirectory(), List.of("snapshots/1234/a"), new TestLogger());
+            assertEquals(Map.of("snapshots/1234/a", a.getId()), pushedA);
+            try (final Stream<Path> packs = Files.list(remoteDir.resolve("objects/pack"))) {
+                assertTrue(packs.anyMatch(p -> p.toString().endsWith(".idx")));
+            }
+            assertEquals("foo", Files.readString(remoteDir.resolve("lfs/objects").resolve(LFS_OID.substring(0, 2)).
+                    resolve(LFS_OID.substring(2, 4)).resolve(LFS_OID)));
+
+            Files.writeString(worktree.resolve("level.dat"), "level2");
+            jgit.add().addFilepattern(".").call();
+            final RevCommit b = jgit.commit().setMessage("b").setSign(false).call();
+            jgit.branchCreate().setName("snapshots/1234/b").call();
+            FileRemoteTransfer.push(jgit.getRepository(), remote.getRepository().getDirectory(),
+                    List.of("snapshots/1234/a", "snapshots/1234/b"), new TestLogger());
+
+            try (final Repository check = Git.open(remoteDir.toFile()).getRepository()) {
+                assertEquals(a.getId(), check.resolve("refs/heads/snapshots/1234/a"));
+                assertEquals(b.getId(), check.resolve("refs/heads/snapshots/1234/b"));
+                assertEquals(Map.of("level.dat", "level", "region/r.0.0.mca", "version https://git-lfs.github.com/spec/v1\n" +
+                        "oid sha256:" + LFS_OID + "\nsize 3\n"), readTree(check, a.getId()));
+                assertEquals("level2", readTree(check, b.getId()).get("level.dat"));
+            }
+        }
+    }
+
+    /**
+     * Copying into a non-bare remote should work the same way.
+     */
+    @Test
+    public void testPushToNonBare(@TempDir Path temp) throws Exception {
+        final Path remoteDir = temp.resolve("remote");
+        final Path worktree = temp.resolve("world");
+        try (final Git remote = Git.init().setDirectory(remoteDir.toFile()).call();
+             final Git jgit = Git.init().setDirectory(worktree.toFile()).call()) {
+            Files.writeString(worktree.resolve("level.dat"), "level");
+            jgit.add().addFilepattern(".").call();
+            final RevCommit a = jgit.commit().setMessage("a").setSign(false).call();
+            jgit.branchCreate().setName("snapshots/1234/a").call();
+            FileRemoteTransfer.push(jgit.getRepository(), remote.getRepository().getDirectory(),
+                    List.of("snapshots/1234/a"), new TestLogger());
+            try (final Repository check = Git.open(remoteDir.toFile()).getRepository()) {
+                assertEquals(a.getId(), check.resolve("refs/heads/snapshots/1234/a"));
+                assertArrayEquals("level".getBytes(UTF_8), check.open(check.resolve("snapshots/1234/a:level.dat")).getBytes());
+            }
+            assertTrue(Files.isDirectory(remoteDir.resolve(".git/objects")));
+        }
+    }
+
+    /**
+     * A transfer that was interrupted after writing a snapshot's commit and trees, but not its blobs or branch,
+     * shouldn't fool the next one into thinking the snapshot is already there.
+     */
+    @Test
+    public void testPushAfterInterruptedCopy(@TempDir Path temp) throws Exception {
+        final Path remoteDir = temp.resolve("remote");
+        final Path worktree = temp.resolve("world");
+        try (final Git remote = Git.init().setBare(true).setDirectory(remoteDir.toFile()).call();
+             final Git jgit = Git.init().setDirectory(worktree.toFile()).call()) {
+            Files.writeString(worktree.resolve("level.dat"), "level");
+            jgit.add().addFilepattern(".").call();
+            jgit.commit().setMessage("a").setSign(false).call();
+            jgit.branchCreate().setName("snapshots/1234/a").call();
+            FileRemoteTransfer.push(jgit.getRepository(), remote.getRepository().getDirectory(),
+                    List.of("snapshots/1234/a"), new TestLogger());
+
+            Files.writeString(worktree.resolve("level.dat"), "level2");
+            Files.createDirectories(worktree.resolve("region"));
+            Files.writeString(worktree.resolve("region/r.0.0.mca"), "region");
+            jgit.add().addFilepattern(".").call();
+            final RevCommit b = jgit.commit().setMessage("b").setSign(false).call();
+            jgit.branchCreate().setName("snapshots/1234/b").call();
+            final Repository local = jgit.getRepository();
+            try (final RevWalk rw = new RevWalk(local);
+                 final TreeWalk tw = new TreeWalk(local);
+                 final ObjectInserter inserter = remote.getRepository().newObjectInserter()) {
+                tw.addTree(rw.parseCommit(b).getTree());
+                tw.setRecursive(false);
+                while (tw.next()) {
+                    if (tw.isSubtree()) {
+                        insert(local, inserter, tw.getObjectId(0));
+                        tw.enterSubtree();
+                    }
+                }
+                insert(local, inserter, b.getTree());
+                insert(local, inserter, b);
+                inserter.flush();
+            }
+            assertTrue(remote.getRepository().getObjectDatabase().has(b));
+
+            FileRemoteTransfer.push(local, remote.getRepository().getDirectory(),
+                    List.of("snapshots/1234/b"), new TestLogger());
+            try (final Repository check = Git.open(remoteDir.toFile()).getRepository()) {
+                assertEquals(b.getId(), check.resolve("refs/heads/snapshots/1234/b"));
+                assertEquals(Map.of("level.dat", "level2", "region/r.0.0.mca", "region"), readTree(check, b.getId()));
+            }
+        }
+    }
+
+    private static void insert(final Repository from, final ObjectInserter to, final ObjectId id) throws Exception {
+        final ObjectLoader loader = from.open(id);
+        to.insert(loader.getType(), loader.getBytes());
+    }
+
+    private static Map<String, String> readTree(final Repository repo, final ObjectId commitId) throws Exception {
+        final Map<String, String> out = new HashMap<>();
+        try (final RevWalk rw = new RevWalk(repo);
+             final TreeWalk tw = new TreeWalk(repo)) {
+            tw.addTree(rw.parseCommit(commitId).getTree());
+            tw.setRecursive(true);
+            while (tw.next()) out.put(tw.getPathString(), new String(repo.open(tw.getObjectId(0)).getBytes(), UTF_8));
+        }
+        return out;
+    }
+
+    private static class TestLogger implements UserLogger {
+
+        @Override
+        public void message(UserMessage message) {
+        }
+
+        @Override
+        public void update(UserMessage message) {
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.logging.UserMessage;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class IncrementalRestoreTest {
+
+    private static final FileTime LONG_AGO = FileTime.fromMillis(1_000_000_000_000L);
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    /**
+     * Switching a restore to another snapshot should only write what's different, delete what's gone, and
+     * notice files that were changed after the restore.
+     */
+    @Test
+    public void testUpdate(@TempDir Path temp) throws Exception {
+        final Path worktree = temp.resolve("world");
+        final Path target = temp.resolve("restored");
+        try (final Git git = Git.init().setDirectory(worktree.toFile()).call()) {
+            write(worktree, "level.dat", "level 1");
+            write(worktree, "region/r.0.0.mca", "region");
+            write(worktree, "playerdata/1234.dat", "player");
+            write(worktree, "data/raids.dat", "raids");
+            git.add().addFilepattern(".").call();
+            final RevCommit first = git.commit().setMessage("first").setSign(false).call();
+
+            write(worktree, "level.dat", "level 2");
+            write(worktree, "data/villages.dat", "villages");
+            git.rm().addFilepattern("playerdata/1234.dat").call();
+            git.add().addFilepattern(".").call();
+            final RevCommit second = git.commit().setMessage("second").setSign(false).call();
+
+            assertEquals(4, TreeRestore.restore(git.getRepository(), first.getId(), null, target, 2, new TestLogger()));
+            assertEquals(first.getId(), RestoreRecord.load(target).getCommitId());
+            Files.setLastModifiedTime(target.resolve("region/r.0.0.mca"), LONG_AGO); // so we can tell if it's rewritten
+            updateRecordedTimes(git, first, target, "level.dat", "region/r.0.0.mca", "playerdata/1234.dat", "data/raids.dat");
+
+            assertEquals(2, TreeRestore.update(git.getRepository(), second.getId(), target, 2, new TestLogger()));
+            assertEquals("level 2", Files.readString(target.resolve("level.dat")));
+            assertEquals("villages", Files.readString(target.resolve("data/villages.dat")));
+            assertFalse(Files.exists(target.resolve("playerdata")));
+            assertEquals(LONG_AGO, Files.getLastModifiedTime(target.resolve("region/r.0.0.mca")));
+            assertEquals(second.getId(), RestoreRecord.load(target).getCommitId());
+            assertTrue(TreeRestore.isReusable(target));
+
+            // someone opened the restored world and played in it.  restore won't reuse it now, but update() would
+            // still put it right
+            Files.writeString(target.resolve("region/r.0.0.mca"), "griefed");
+            Files.writeString(target.resolve("session.lock"), "lock");
+            assertFalse(TreeRestore.isReusable(target));
+            assertEquals(3, TreeRestore.update(git.getRepository(), first.getId(), target, 2, new TestLogger()));
+            assertEquals("region", Files.readString(target.resolve("region/r.0.0.mca")));
+            assertEquals("player", Files.readString(target.resolve("playerdata/1234.dat")));
+            assertEquals("level 1", Files.readString(target.resolve("level.dat")));
+            assertFalse(Files.exists(target.resolve("data/villages.dat")));
+            assertFalse(Files.exists(target.resolve("session.lock")));
+            assertNotNull(RestoreRecord.load(target));
+        }
+    }
+
+    /**
+     * A restore shouldn't be reused while the world in it is open, even if nothing in it has changed yet.
+     */
+    @Test
+    public void testOpenWorld(@TempDir Path temp) throws Exception {
+        final Path worktree = temp.resolve("world");
+        final Path target = temp.resolve("restored");
+        try (final Git git = Git.init().setDirectory(worktree.toFile()).call()) {
+            write(worktree, "level.dat", "level");
+            git.add().addFilepattern(".").call();
+            final RevCommit commit = git.commit().setMessage("first").setSign(false).call();
+            TreeRestore.restore(git.getRepository(), commit.getId(), null, target, 1, new TestLogger());
+            assertTrue(TreeRestore.isReusable(target));
+            Files.setLastModifiedTime(target.resolve("level.dat"), LONG_AGO);
+            assertFalse(TreeRestore.isReusable(target));
+            updateRecordedTimes(git, commit, target, "level.dat");
+            assertTrue(TreeRestore.isReusable(target));
+
+            write(target, "session.lock", "");
+            try (final FileChannel channel = FileChannel.open(target.resolve("session.lock"), WRITE);
+                 final FileLock ignored = channel.lock()) {
+                assertFalse(TreeRestore.isReusable(target));
+            }
+        }
+    }
+
+    @Test
+    public void testNoRecord(@TempDir Path temp) throws Exception {
+        final Path worktree = temp.resolve("world");
+        final Path target = temp.resolve("restored");
+        try (final Git git = Git.init().setDirectory(worktree.toFile()).call()) {
+            write(worktree, "level.dat", "level");
+            git.add().addFilepattern(".").call();
+            final RevCommit commit = git.commit().setMessage("first").setSign(false).call();
+            write(target, "level.dat", "level");
+            write(target, "stray.txt", "stray");
+            assertNull(RestoreRecord.load(target));
+            assertEquals(1, TreeRestore.update(git.getRepository(), commit.getId(), target, 1, new TestLogger()));
+            assertFalse(Files.exists(target.resolve("stray.txt")));
+            assertEquals(commit.getId(), RestoreRecord.load(target).getCommitId());
+            assertTrue(TreeRestore.isReusable(target));
+        }
+    }
+
+    /**
+     * Re-record the restored files after their times were changed by the test.
+     */
+    private static void updateRecordedTimes(final Git git, final RevCommit commit, final Path target, final String... paths) throws Exception {
+        final RestoreRecord record = RestoreRecord.create(commit.getId());
+        for (final String path : paths) {
+            record.put(path, git.getRepository().resolve(commit.name() + ":" + path), target.resolve(path));
+        }
+        record.save(target);
+    }
+
+    private static void write(final Path dir, final String path, final String content) throws Exception {
+        final Path file = dir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+
+    private static class TestLogger implements UserLogger {
+
+        @Override
+        public void message(UserMessage message) {
+        }
+
+        @Override
+        public void update(UserMessage message) {
+        }
+    }
+}
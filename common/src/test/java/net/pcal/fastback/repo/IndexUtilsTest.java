@@ -0,0 +1,111 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class IndexUtilsTest {
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    @Test
+    public void testStageFiles(@TempDir Path worktree) throws Exception {
+        doTestStageFiles(worktree, 1);
+    }
+
+    @Test
+    public void testStageFilesParallel(@TempDir Path worktree) throws Exception {
+        doTestStageFiles(worktree, 4);
+    }
+
+    private static void doTestStageFiles(Path worktree, int threads) throws Exception {
+        try (final Git jgit = Git.init().setDirectory(worktree.toFile()).call()) {
+            write(worktree, ".gitignore", "session.lock\n.fastback/statcache\n");
+            write(worktree, "level.dat", "level");
+            write(worktree, "session.lock", "lock");
+            write(worktree, "region/r.0.0.mca", "region 0");
+            write(worktree, "region/r.0.1.mca", "region 1");
+            write(worktree, ".fastback/world-id", "1234");
+            final List<String> staged = new ArrayList<>();
+            IndexUtils.stageFiles(jgit.getRepository(),
+                    List.of(".fastback", ".gitignore", "level.dat", "region/r.0.0.mca", "region/r.0.1.mca", "session.lock"),
+                    List.of(), threads, staged::add);
+            assertEquals(List.of(".fastback/world-id", ".gitignore", "level.dat", "region/r.0.0.mca", "region/r.0.1.mca"), staged);
+            assertBlob(jgit, "region/r.0.1.mca", "region 1");
+            assertNull(jgit.getRepository().readDirCache().getEntry("session.lock"));
+
+            // unchanged files shouldn't get re-hashed, removed ones should go away
+            write(worktree, "region/r.0.0.mca", "region 0 changed");
+            Files.delete(worktree.resolve("region/r.0.1.mca"));
+            staged.clear();
+            IndexUtils.stageFiles(jgit.getRepository(), List.of(".fastback", "level.dat", "region/r.0.0.mca"),
+                    List.of("region/r.0.1.mca"), threads, staged::add);
+            assertEquals(List.of("region/r.0.0.mca", "region/r.0.1.mca"), staged);
+            assertBlob(jgit, "region/r.0.0.mca", "region 0 changed");
+            assertNull(jgit.getRepository().readDirCache().getEntry("region/r.0.1.mca"));
+            final Status status = jgit.status().call();
+            assertEquals(Set.of(), status.getModified());
+            assertEquals(Set.of(), status.getMissing());
+            assertEquals(Set.of(), status.getUntracked());
+        }
+    }
+
+    private static void assertBlob(Git jgit, String path, String expectedContent) throws Exception {
+        final DirCache dc = jgit.getRepository().readDirCache();
+        final DirCacheEntry entry = dc.getEntry(path);
+        try (final ObjectInserter.Formatter f = new ObjectInserter.Formatter()) {
+            assertEquals(f.idFor(OBJ_BLOB, expectedContent.getBytes(UTF_8)), entry.getObjectId());
+        }
+        assertEquals(expectedContent, new String(jgit.getRepository().open(entry.getObjectId()).getBytes(), UTF_8));
+    }
+
+    private static void write(Path worktree, String path, String content) throws Exception {
+        final Path file = worktree.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.logging.UserMessage;
+import org.apache.logging.log4j.LogManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class LfsPrefetchTest {
+
+    private static final String OID_1 = "2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae";
+    private static final String OID_2 = "fcde2b2edba56bf408601fb721fe9b5c338d10ee429ea04fae5511b68fbf8fb9";
+    private static final String OID_3 = "baa5a0964d3320fbc0c6a922140453c8513ea24ab8fd0577034804a967248096";
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    /**
+     * Objects should be found once no matter how many files point at them, and batched by size.
+     */
+    @Test
+    public void testBatches(@TempDir Path temp) throws Exception {
+        write(temp, "region/r.0.0.mca", pointer(OID_1, 100));
+        write(temp, "region/r.1.0.mca", pointer(OID_2, 300));
+        write(temp, "DIM-1/region/r.0.0.mca", pointer(OID_1, 100));
+        write(temp, "entities/r.0.0.mca", pointer(OID_3, 50));
+        write(temp, "level.dat", "not a pointer");
+        write(temp, ".git/lfs/tmp/junk", pointer(OID_3, 50));
+
+        final LfsPrefetch prefetch = LfsPrefetch.create(temp, new TestLogger());
+        assertEquals(3, prefetch.getObjectCount());
+        assertEquals(450, prefetch.getTotalBytes());
+
+        final List<List<LfsPrefetch.LfsObject>> batches = prefetch.getBatches(200);
+        final Set<String> paths = batches.stream().flatMap(List::stream).flatMap(o -> o.paths().stream()).collect(Collectors.toSet());
+        assertEquals(Set.of("region/r.0.0.mca", "DIM-1/region/r.0.0.mca", "region/r.1.0.mca", "entities/r.0.0.mca"), paths);
+        for (final List<LfsPrefetch.LfsObject> batch : batches) {
+            // the 300 byte object is too big for the window, so it goes by itself
+            assertTrue(batch.size() == 1 || batch.stream().mapToLong(LfsPrefetch.LfsObject::size).sum() <= 200);
+        }
+        assertEquals(1, prefetch.getBatches(1000).size());
+    }
+
+    @Test
+    public void testParsePointer() {
+        final LfsPrefetch.LfsObject object = LfsPrefetch.parsePointer(pointer(OID_1, 1234).getBytes(UTF_8));
+        assertEquals(OID_1, object.oid());
+        assertEquals(1234, object.size());
+        assertNull(LfsPrefetch.parsePointer("version https://git-lfs.github.com/spec/v1\noid sha256:abc\nsize 1\n".getBytes(UTF_8)));
+        assertNull(LfsPrefetch.parsePointer(("version https://git-lfs.github.com/spec/v1\noid sha256:" + OID_1 + "\n").getBytes(UTF_8)));
+        assertNull(LfsPrefetch.parsePointer("hello".getBytes(UTF_8)));
+    }
+
+    @Test
+    public void testEta() {
+        assertEquals("--:--", LfsPrefetch.formatEta(0, 100, 5000));
+        assertEquals("0:15", LfsPrefetch.formatEta(25, 100, 5000));
+        assertEquals("1:40", LfsPrefetch.formatEta(50, 100, 100_000));
+        assertEquals("2:00:00", LfsPrefetch.formatEta(1, 3, 3_600_000));
+    }
+
+    private static String pointer(final String oid, final long size) {
+        return "version https://git-lfs.github.com/spec/v1\noid sha256:" + oid + "\nsize " + size + "\n";
+    }
+
+    private static void write(final Path dir, final String path, final String content) throws Exception {
+        final Path file = dir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+
+    private static class TestLogger implements UserLogger {
+
+        @Override
+        public void message(UserMessage message) {
+        }
+
+        @Override
+        public void update(UserMessage message) {
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.config.RemoteConfigKey;
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.logging.UserMessage;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static net.pcal.fastback.config.FastbackConfigKey.IS_NATIVE_GIT_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.MIRROR_REMOTES;
+import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_RETENTION_POLICY;
+import static net.pcal.fastback.config.FastbackConfigKey.UPDATE_GITATTRIBUTES_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.UPDATE_GITIGNORE_ENABLED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class MirrorUtilsTest {
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    /**
+     * A snapshot should go to the main remote and every mirror, and a mirror that can't be reached should just
+     * have it queued for later.
+     */
+    @Test
+    public void testPushToMirrors(@TempDir Path temp) throws Exception {
+        final Path originDir = temp.resolve("origin");
+        final Path nasDir = temp.resolve("nas");
+        final Path worktree = temp.resolve("world");
+        try (final Git origin = Git.init().setBare(true).setDirectory(originDir.toFile()).call();
+             final Git nas = Git.init().setBare(true).setDirectory(nasDir.toFile()).call();
+             final RepoImpl repo = createRepo(worktree)) {
+            final StoredConfig config = repo.getJGit().getRepository().getConfig();
+            config.setString("remote", "origin", "url", originDir.toUri().toString());
+            config.setString("remote", "nas", "url", nasDir.toUri().toString());
+            config.setString("remote", "offsite", "url", temp.resolve("missing").toUri().toString());
+            config.save();
+            repo.getConfig().updater().set(MIRROR_REMOTES, "nas offsite unknown").save();
+            assertEquals(List.of("nas", "offsite"), MirrorUtils.getMirrorNames(repo));
+
+            final SnapshotId sid = repo.createSnapshotId("2024-01-01_12-00-00");
+            repo.getJGit().branchCreate().setName(sid.getBranchName()).call();
+            final TestLogger ulog = new TestLogger();
+            PushUtils.doPush(sid, repo, ulog);
+
+            assertNotNull(origin.getRepository().exactRef("refs/heads/" + sid.getBranchName()));
+            assertNotNull(nas.getRepository().exactRef("refs/heads/" + sid.getBranchName()));
+            assertTrue(PushQueue.load(repo.getDotFasbackDir()).isEmpty());
+            assertTrue(PushQueue.load(repo.getDotFasbackDir(), "nas").isEmpty());
+            final PushQueue offsiteQueue = PushQueue.load(repo.getDotFasbackDir(), "offsite");
+            assertEquals(List.of(sid.getBranchName()), offsiteQueue.getBranches());
+            assertEquals(1, offsiteQueue.getFailures());
+            assertTrue(ulog.keys.contains("fastback.chat.mirror-push-done"));
+            assertTrue(ulog.keys.contains("fastback.chat.mirror-push-failed"));
+        }
+    }
+
+    @Test
+    public void testRetentionPolicy(@TempDir Path temp) throws Exception {
+        try (final RepoImpl repo = createRepo(temp.resolve("world"))) {
+            assertNull(MirrorUtils.getRetentionPolicy(repo, "nas"));
+            repo.getConfig().updater().set(REMOTE_RETENTION_POLICY, "daily 7").save();
+            assertEquals("daily 7", MirrorUtils.getRetentionPolicy(repo, "nas"));
+            repo.getConfig().updater().set(new RemoteConfigKey(REMOTE_RETENTION_POLICY, "nas"), "daily 30").save();
+            assertEquals("daily 30", MirrorUtils.getRetentionPolicy(repo, "nas"));
+            assertEquals("daily 7", MirrorUtils.getRetentionPolicy(repo, "offsite"));
+        }
+    }
+
+    private static RepoImpl createRepo(Path worktree) throws Exception {
+        final Git jgit = Git.init().setDirectory(worktree.toFile()).call();
+        WorldIdUtils.createWorldId(worktree);
+        Files.writeString(worktree.resolve("level.dat"), "level");
+        jgit.add().addFilepattern("level.dat").call();
+        jgit.commit().setMessage("snapshot").setSign(false).call();
+        final RepoImpl repo = new RepoImpl(jgit);
+        repo.getConfig().updater().set(IS_NATIVE_GIT_ENABLED, false).
+                set(UPDATE_GITIGNORE_ENABLED, false).
+                set(UPDATE_GITATTRIBUTES_ENABLED, false).save();
+        return repo;
+    }
+
+    private static class TestLogger implements UserLogger {
+
+        private final List<String> keys = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void message(UserMessage message) {
+            if (message.localized() != null) this.keys.add(message.localized().key());
+        }
+
+        @Override
+        public void update(UserMessage message) {
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.logging.UserMessage;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class PartialRestoreTest {
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    @Test
+    public void testFilter() {
+        final RestoreFilter players = RestoreFilter.parse(List.of("playerdata/*.dat"));
+        assertTrue(players.matches("playerdata/1234.dat"));
+        assertFalse(players.matches("playerdata/1234.dat_old"));
+        assertFalse(players.matches("playerdata/old/1234.dat"));
+
+        final RestoreFilter dirs = RestoreFilter.parse(List.of("/data/", "**/level.dat"));
+        assertTrue(dirs.matches("data/raids.dat"));
+        assertTrue(dirs.matches("data/sub/x.dat"));
+        assertFalse(dirs.matches("database"));
+        assertTrue(dirs.matches("level.dat"));
+        assertTrue(dirs.matches("DIM-1/level.dat"));
+
+        final RestoreFilter region = RestoreFilter.parse(List.of("r.3.-2"));
+        assertTrue(region.matches("region/r.3.-2.mca"));
+        assertTrue(region.matches("entities/r.3.-2.mca"));
+        assertTrue(region.matches("DIM-1/poi/r.3.-2.mca"));
+        assertTrue(region.matches("region/r.3.-2.mca.chunked/c.12"));
+        assertFalse(region.matches("region/r.3.-20.mca"));
+        assertFalse(region.matches("data/r.3.-2.mca"));
+
+        final RestoreFilter nether = RestoreFilter.parse(List.of("DIM-1/r.0.0"));
+        assertTrue(nether.matches("DIM-1/region/r.0.0.mca"));
+        assertFalse(nether.matches("region/r.0.0.mca"));
+
+        assertThrows(IllegalArgumentException.class, () -> RestoreFilter.parse(List.of(" ", "/")));
+    }
+
+    /**
+     * Only the matching files should be written, with lfs pointers swapped for their objects.
+     */
+    @Test
+    public void testTreeRestore(@TempDir Path temp) throws Exception {
+        final Path worktree = temp.resolve("world");
+        final Path target = temp.resolve("restored");
+        try (final Git git = Git.init().setDirectory(worktree.toFile()).call()) {
+            final String oid = "2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae";
+            write(worktree, "level.dat", "level");
+            write(worktree, "playerdata/1234.dat", "player");
+            write(worktree, "region/r.0.0.mca", "version https://git-lfs.github.com/spec/v1\noid sha256:" + oid + "\nsize 6\n");
+            write(worktree, "region/r.1.0.mca", "other region");
+            final byte[] entities = new byte[3 * 4096];
+            entities[2] = 2; // chunk 0 is the sector after the header
+            entities[3] = 1;
+            entities[8192] = 42;
+            for (final Map.Entry<String, byte[]> part : RegionChunkUtils.split(entities).entrySet()) {
+                write(worktree.resolve("entities/r.0.0.mca.chunked"), part.getKey(), part.getValue());
+            }
+            write(worktree.resolve(".git/lfs/objects/2c/26"), oid, "region");
+            git.add().addFilepattern(".").call();
+            final RevCommit commit = git.commit().setMessage("snapshot").setSign(false).call();
+
+            final RestoreFilter filter = RestoreFilter.parse(List.of("playerdata", "r.0.0"));
+            final int count = TreeRestore.restore(git.getRepository(), commit.getId(), filter, target, 1, new TestLogger());
+            assertEquals(3, count);
+            final Set<String> restored;
+            try (final Stream<Path> s = Files.walk(target)) {
+                restored = s.filter(Files::isRegularFile).map(p -> target.relativize(p).toString().replace('\\', '/')).
+                        collect(Collectors.toSet());
+            }
+            assertEquals(Set.of("playerdata/1234.dat", "region/r.0.0.mca", "entities/r.0.0.mca"), restored);
+            assertEquals("region", Files.readString(target.resolve("region/r.0.0.mca")));
+            assertEquals("player", Files.readString(target.resolve("playerdata/1234.dat")));
+            assertArrayEquals(entities, Files.readAllBytes(target.resolve("entities/r.0.0.mca")));
+        }
+    }
+
+    /**
+     * A file whose lfs object is missing mustn't be restored as its pointer, and the restore should say so.
+     */
+    @Test
+    public void testMissingLfsObject(@TempDir Path temp) throws Exception {
+        final Path worktree = temp.resolve("world");
+        final Path target = temp.resolve("restored");
+        try (final Git git = Git.init().setDirectory(worktree.toFile()).call()) {
+            final String oid = "2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae";
+            write(worktree, "level.dat", "level");
+            write(worktree, "region/r.0.0.mca", "version https://git-lfs.github.com/spec/v1\noid sha256:" + oid + "\nsize 6\n");
+            git.add().addFilepattern(".").call();
+            final RevCommit commit = git.commit().setMessage("snapshot").setSign(false).call();
+
+            final TreeRestore.MissingLfsObjectsException e = assertThrows(TreeRestore.MissingLfsObjectsException.class,
+                    () -> TreeRestore.restore(git.getRepository(), commit.getId(), null, target, 1, new TestLogger()));
+            assertEquals(Set.of(oid), e.getOids());
+            assertFalse(Files.exists(target.resolve("region/r.0.0.mca")));
+            assertFalse(Files.exists(RestoreRecord.getFile(target)));
+
+            write(worktree.resolve(".git/lfs/objects/2c/26"), oid, "region");
+            assertEquals(2, TreeRestore.restore(git.getRepository(), commit.getId(), null, target, 1, new TestLogger()));
+            assertEquals("region", Files.readString(target.resolve("region/r.0.0.mca")));
+        }
+    }
+
+    /**
+     * A whole snapshot written by several workers should come out the same as it went in.
+     */
+    @Test
+    public void testParallelRestore(@TempDir Path temp) throws Exception {
+        final Path worktree = temp.resolve("world");
+        final Path target = temp.resolve("restored");
+        try (final Git git = Git.init().setDirectory(worktree.toFile()).call()) {
+            for (int i = 0; i < 200; i++) write(worktree, "region/r." + i + ".0.mca", "region " + i);
+            git.add().addFilepattern(".").call();
+            final RevCommit commit = git.commit().setMessage("snapshot").setSign(false).call();
+            assertEquals(200, TreeRestore.restore(git.getRepository(), commit.getId(), null, target, 4, new TestLogger()));
+            for (int i = 0; i < 200; i++) {
+                assertEquals("region " + i, Files.readString(target.resolve("region/r." + i + ".0.mca")));
+            }
+            assertFalse(Files.exists(target.resolve(".git")));
+        }
+    }
+
+    private static void write(final Path dir, final String path, final String content) throws Exception {
+        write(dir, path, content.getBytes(UTF_8));
+    }
+
+    private static void write(final Path dir, final String path, final byte[] content) throws Exception {
+        final Path file = dir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+    }
+
+    private static class TestLogger implements UserLogger {
+
+        @Override
+        public void message(UserMessage message) {
+        }
+
+        @Override
+        public void update(UserMessage message) {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.RefSpec;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static net.pcal.fastback.config.FastbackConfigKey.REMOTE_PRUNE_BATCH_SIZE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class PruneUtilsTest {
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    @Test
+    public void testDeleteRemoteBranches(@TempDir Path temp) throws Exception {
+        final Path remoteDir = temp.resolve("remote");
+        final Path worktree = temp.resolve("world");
+        try (final Git remote = Git.init().setBare(true).setDirectory(remoteDir.toFile()).call();
+             final RepoImpl repo = createRepo(worktree, remoteDir)) {
+            final List<SnapshotId> sids = createSnapshots(repo, "2024-01-01_12-00-00", "2024-01-01_12-05-00",
+                    "2024-01-01_12-10-00", "2024-01-01_12-15-00", "2024-01-01_12-20-00");
+            final List<SnapshotId> toPrune = sids.subList(0, 3);
+            repo.getConfig().updater().set(REMOTE_PRUNE_BATCH_SIZE, 2).save();
+            assertEquals(toPrune, PruneUtils.deleteRemoteBranches(repo, toPrune));
+            assertEquals(Set.copyOf(sids.subList(3, 5)), repo.getRemoteSnapshots());
+            // already gone counts as deleted
+            assertEquals(List.of(sids.get(0)), PruneUtils.deleteRemoteBranches(repo, List.of(sids.get(0))));
+
+            // rejected deletions are reported but don't stop the rest of the prune
+            final StoredConfig remoteConfig = remote.getRepository().getConfig();
+            remoteConfig.setBoolean("receive", null, "denyDeletes", true);
+            remoteConfig.save();
+            assertEquals(List.of(), PruneUtils.deleteRemoteBranches(repo, sids.subList(3, 5)));
+        }
+        try (final RepoImpl repo = new RepoImpl(Git.open(worktree.toFile()))) {
+            assertEquals(2, repo.getRemoteSnapshots().size());
+        }
+    }
+
+    private static RepoImpl createRepo(Path worktree, Path remoteDir) throws Exception {
+        final Git jgit = Git.init().setDirectory(worktree.toFile()).call();
+        WorldIdUtils.createWorldId(worktree);
+        final StoredConfig config = jgit.getRepository().getConfig();
+        config.setString("remote", "origin", "url", remoteDir.toUri().toString());
+        config.save();
+        Files.writeString(worktree.resolve("level.dat"), "level");
+        jgit.add().addFilepattern("level.dat").call();
+        jgit.commit().setMessage("snapshot").setSign(false).call();
+        return new RepoImpl(jgit);
+    }
+
+    private static List<SnapshotId> createSnapshots(RepoImpl repo, String... shortNames) throws Exception {
+        final List<SnapshotId> out = new ArrayList<>();
+        final List<RefSpec> refSpecs = new ArrayList<>();
+        for (final String shortName : shortNames) {
+            final SnapshotId sid = repo.createSnapshotId(shortName);
+            repo.getJGit().branchCreate().setName(sid.getBranchName()).call();
+            refSpecs.add(new RefSpec(sid.getBranchName() + ":" + sid.getBranchName()));
+            out.add(sid);
+        }
+        repo.getRemoteSession().push(refSpecs, NullProgressMonitor.INSTANCE);
+        return out;
+    }
+}
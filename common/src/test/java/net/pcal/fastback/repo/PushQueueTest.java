@@ -0,0 +1,99 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import org.apache.logging.log4j.LogManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class PushQueueTest {
+
+    private static final String SNAP_1 = "snapshots/1234/2024-01-01_12-00-00";
+    private static final String SNAP_2 = "snapshots/1234/2024-01-01_12-05-00";
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    @Test
+    public void testFailAndRetry(@TempDir Path dotFastback) throws Exception {
+        final Instant now = Instant.parse("2024-01-01T12:00:00Z");
+        PushQueue queue = PushQueue.load(dotFastback);
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.isRetryDue(now));
+
+        queue.add(SNAP_1);
+        queue.pushFailed(now);
+        queue.save();
+        queue = PushQueue.load(dotFastback);
+        assertEquals(List.of(SNAP_1), queue.getBranches());
+        assertEquals(1, queue.getFailures());
+        assertEquals(now.plus(PushQueue.MIN_BACKOFF), queue.getRetryAfter());
+        assertFalse(queue.isRetryDue(now.plusSeconds(1)));
+        assertTrue(queue.isRetryDue(now.plus(PushQueue.MIN_BACKOFF)));
+
+        queue.add(SNAP_2);
+        queue.add(SNAP_1);
+        queue.pushFailed(now);
+        queue.save();
+        queue = PushQueue.load(dotFastback);
+        assertEquals(List.of(SNAP_1, SNAP_2), queue.getBranches());
+        assertEquals(2, queue.getFailures());
+        assertEquals(now.plus(PushQueue.MIN_BACKOFF.multipliedBy(2)), queue.getRetryAfter());
+
+        queue.retainAll(Set.of(SNAP_2));
+        queue.pushSucceeded();
+        queue.save();
+        assertFalse(Files.exists(dotFastback.resolve(PushQueue.QUEUE_FILE)));
+        queue = PushQueue.load(dotFastback);
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getFailures());
+        assertNull(queue.getRetryAfter());
+    }
+
+    @Test
+    public void testBackoff() {
+        assertEquals(Duration.ZERO, PushQueue.getBackoff(0));
+        assertEquals(Duration.ofMinutes(5), PushQueue.getBackoff(1));
+        assertEquals(Duration.ofMinutes(40), PushQueue.getBackoff(4));
+        assertEquals(PushQueue.MAX_BACKOFF, PushQueue.getBackoff(7));
+        assertEquals(PushQueue.MAX_BACKOFF, PushQueue.getBackoff(1000));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import org.apache.logging.log4j.LogManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class PushThrottleTest {
+
+    private static final int LIMIT = 256 * 1024;
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        final PushThrottle throttle = new PushThrottle(LIMIT, false, () -> 1);
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final long start = System.nanoTime();
+        try (final OutputStream out = throttle.wrap(sink)) {
+            // the first second's worth goes out right away, the second has to wait for it
+            out.write(new byte[LIMIT * 2]);
+        }
+        final long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertEquals(LIMIT * 2, sink.size());
+        assertTrue(elapsedMillis >= 900, "too fast: " + elapsedMillis);
+        assertTrue(elapsedMillis < 3000, "too slow: " + elapsedMillis);
+    }
+
+    @Test
+    public void testAdaptive() throws Exception {
+        final AtomicInteger players = new AtomicInteger(0);
+        final PushThrottle throttle = new PushThrottle(LIMIT, true, players::get);
+        assertEquals(0, throttle.getCurrentLimit());
+        final long start = System.nanoTime();
+        try (final OutputStream out = throttle.wrap(OutputStream.nullOutputStream())) {
+            out.write(new byte[LIMIT * 8]);
+        }
+        assertTrue((System.nanoTime() - start) / 1_000_000 < 900, "empty server shouldn't be throttled");
+        players.set(3);
+        assertEquals(LIMIT, throttle.getCurrentLimit());
+    }
+
+    @Test
+    public void testProxy() throws Exception {
+        final byte[] payload = new byte[100_000];
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) i;
+        final PushThrottle throttle = new PushThrottle(LIMIT, false, () -> 1);
+        try (final ServerSocket upstream = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             final ThrottlingProxy proxy = ThrottlingProxy.start(throttle, Set.of(upstream.getLocalPort()))) {
+            final Thread echo = new Thread(() -> {
+                try (final Socket s = upstream.accept()) {
+                    s.getInputStream().transferTo(s.getOutputStream());
+                } catch (Exception ignored) {
+                }
+            });
+            echo.start();
+            try (final Socket client = new Socket(InetAddress.getLoopbackAddress(), proxy.getPort())) {
+                final OutputStream out = client.getOutputStream();
+                final InputStream in = client.getInputStream();
+                out.write(("CONNECT 127.0.0.1:" + upstream.getLocalPort() + " HTTP/1.1\r\n\r\n").getBytes(ISO_8859_1));
+                final String status = readLine(in);
+                assertTrue(status.startsWith("HTTP/1.1 200"), status);
+                assertEquals("", readLine(in));
+                out.write(payload);
+                client.shutdownOutput();
+                assertArrayEquals(payload, in.readAllBytes());
+            }
+            echo.join(5000);
+        }
+    }
+
+    /**
+     * git-lfs uploads go wherever the lfs server says, which often isn't the remote's host, so any host is fine;
+     * but only on the ports the proxy was started with.
+     */
+    @Test
+    public void testProxyTargets() throws Exception {
+        final PushThrottle throttle = new PushThrottle(LIMIT, false, () -> 1);
+        try (final ServerSocket storage = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             final ServerSocket other = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             final ThrottlingProxy proxy = ThrottlingProxy.start(throttle, Set.of(443, storage.getLocalPort()))) {
+            // the remote would be on some other host; this one is just somewhere the lfs server sent us
+            try (final Socket client = new Socket(InetAddress.getLoopbackAddress(), proxy.getPort())) {
+                client.getOutputStream().write(("CONNECT " + InetAddress.getLoopbackAddress().getHostName() + ":" + storage.getLocalPort() + " HTTP/1.1\r\n\r\n").getBytes(ISO_8859_1));
+                final String status = readLine(client.getInputStream());
+                assertTrue(status.startsWith("HTTP/1.1 200"), status);
+            }
+            try (final Socket client = new Socket(InetAddress.getLoopbackAddress(), proxy.getPort())) {
+                client.getOutputStream().write(("CONNECT 127.0.0.1:" + other.getLocalPort() + " HTTP/1.1\r\n\r\n").getBytes(ISO_8859_1));
+                final String status = readLine(client.getInputStream());
+                assertTrue(status.startsWith("HTTP/1.1 403"), status);
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws Exception {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) break;
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import org.apache.logging.log4j.LogManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static net.pcal.fastback.repo.RegionChunkUtils.HEADER;
+import static net.pcal.fastback.repo.RegionChunkUtils.RESIDUE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class RegionChunkUtilsTest {
+
+    private static final int SECTOR = 4096;
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    /**
+     * Splitting and joining must give back exactly the same bytes, including free sectors and a partial
+     * trailing sector.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        final byte[] region = makeRegion(new Random(42));
+        final Map<String, byte[]> parts = RegionChunkUtils.split(region);
+        assertTrue(parts.containsKey(HEADER));
+        assertTrue(parts.containsKey("c.0"));
+        assertTrue(parts.containsKey("c.5"));
+        assertTrue(parts.containsKey("c.33"));
+        assertEquals(SECTOR + 100, parts.get(RESIDUE).length); // one free sector plus the tail
+        assertArrayEquals(region, RegionChunkUtils.join(parts));
+    }
+
+    /**
+     * Rewriting one chunk should only change that chunk's blob and the header.
+     */
+    @Test
+    public void testUnchangedChunksAreIdentical() throws Exception {
+        final byte[] before = makeRegion(new Random(42));
+        final byte[] after = before.clone();
+        after[2 * SECTOR + SECTOR + 10] ^= 1; // in chunk 5
+        after[4096 + 5 * 4] ^= 1; // its timestamp
+        final Map<String, byte[]> p1 = RegionChunkUtils.split(before);
+        final Map<String, byte[]> p2 = RegionChunkUtils.split(after);
+        assertEquals(p1.keySet(), p2.keySet());
+        for (final String name : p1.keySet()) {
+            final boolean same = Arrays.equals(p1.get(name), p2.get(name));
+            assertEquals(!name.equals("c.5") && !name.equals(HEADER), same, name);
+        }
+        assertArrayEquals(after, RegionChunkUtils.join(p2));
+    }
+
+    /**
+     * Files that don't look like valid regions are stored whole.
+     */
+    @Test
+    public void testFallback() throws Exception {
+        final byte[] overlapping = makeRegion(new Random(7));
+        overlapping[33 * 4 + 2] = 2; // chunk 33 now starts on chunk 0's sector
+        final Map<String, byte[]> parts = RegionChunkUtils.split(overlapping);
+        assertFalse(parts.containsKey(HEADER));
+        assertArrayEquals(overlapping, parts.get(RESIDUE));
+        assertArrayEquals(overlapping, RegionChunkUtils.join(parts));
+
+        final byte[] tiny = {1, 2, 3};
+        assertArrayEquals(tiny, RegionChunkUtils.join(RegionChunkUtils.split(tiny)));
+        assertArrayEquals(new byte[0], RegionChunkUtils.join(RegionChunkUtils.split(new byte[0])));
+    }
+
+    /**
+     * Header, then chunk 0 in sector 2, chunk 5 in sector 3, a free sector, chunk 33 in sectors 5-6 and a
+     * partial sector of trailing garbage.
+     */
+    private static byte[] makeRegion(final Random random) {
+        final byte[] out = new byte[7 * SECTOR + 100];
+        random.nextBytes(out);
+        Arrays.fill(out, 0, SECTOR, (byte) 0);
+        setLocation(out, 0, 2, 1);
+        setLocation(out, 5, 3, 1);
+        setLocation(out, 33, 5, 2);
+        return out;
+    }
+
+    private static void setLocation(final byte[] region, final int index, final int sector, final int count) {
+        region[index * 4] = (byte) (sector >> 16);
+        region[index * 4 + 1] = (byte) (sector >> 8);
+        region[index * 4 + 2] = (byte) sector;
+        region[index * 4 + 3] = (byte) count;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.RefSpec;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class RemoteSessionTest {
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    @Test
+    public void testPushAndDelete(@TempDir Path temp) throws Exception {
+        final Path remoteDir = temp.resolve("remote");
+        final Path worktree = temp.resolve("world");
+        try (final Git remote = Git.init().setBare(true).setDirectory(remoteDir.toFile()).call();
+             final Git jgit = Git.init().setDirectory(worktree.toFile()).call()) {
+            final StoredConfig config = jgit.getRepository().getConfig();
+            config.setString("remote", "origin", "url", remoteDir.toUri().toString());
+            config.save();
+            Files.writeString(worktree.resolve("level.dat"), "level");
+            jgit.add().addFilepattern("level.dat").call();
+            final ObjectId head = jgit.commit().setMessage("snapshot").setSign(false).call().getId();
+            jgit.branchCreate().setName("snapshots/1234/a").call();
+            jgit.branchCreate().setName("snapshots/1234/b").call();
+
+            try (final RemoteSession session = RemoteSession.open(jgit.getRepository(), "origin", Duration.ZERO)) {
+                assertEquals(Set.of(), names(session));
+                session.push(List.of(new RefSpec("snapshots/1234/a:snapshots/1234/a"),
+                        new RefSpec("snapshots/1234/b:snapshots/1234/b")), NullProgressMonitor.INSTANCE);
+                // the branches we pushed show up without listing the remote again
+                assertEquals(Set.of("refs/heads/snapshots/1234/a", "refs/heads/snapshots/1234/b"), names(session));
+                assertEquals(Map.of("refs/heads/snapshots/1234/a", head, "refs/heads/snapshots/1234/b", head),
+                        session.getRemoteBranchRefs().stream().collect(Collectors.toMap(Ref::getName, Ref::getObjectId)));
+
+                session.push(List.of(new RefSpec().setSource(null).setDestination("refs/heads/snapshots/1234/a")),
+                        NullProgressMonitor.INSTANCE);
+                assertEquals(Set.of("refs/heads/snapshots/1234/b"), names(session));
+                session.forgetRemoteBranches();
+                assertEquals(Set.of("refs/heads/snapshots/1234/b"), names(session));
+            }
+            assertEquals(head, remote.getRepository().resolve("refs/heads/snapshots/1234/b"));
+        }
+    }
+
+    /**
+     * Later sessions should see what earlier ones listed and pushed, without asking the remote, until the ttl
+     * runs out or something goes wrong.
+     */
+    @Test
+    public void testRefCache(@TempDir Path temp) throws Exception {
+        final Path remoteDir = temp.resolve("remote");
+        final Path worktree = temp.resolve("world");
+        try (final Git remote = Git.init().setBare(true).setDirectory(remoteDir.toFile()).call();
+             final Git jgit = Git.init().setDirectory(worktree.toFile()).call()) {
+            final StoredConfig config = jgit.getRepository().getConfig();
+            config.setString("remote", "origin", "url", remoteDir.toUri().toString());
+            config.save();
+            Files.writeString(worktree.resolve("level.dat"), "level");
+            jgit.add().addFilepattern("level.dat").call();
+            final ObjectId head = jgit.commit().setMessage("snapshot").setSign(false).call().getId();
+            jgit.branchCreate().setName("snapshots/1234/a").call();
+            final Duration ttl = Duration.ofMinutes(1);
+
+            try (final RemoteSession session = RemoteSession.open(jgit.getRepository(), "origin", ttl)) {
+                assertEquals(Set.of(), names(session));
+                session.push(List.of(new RefSpec("snapshots/1234/a:snapshots/1234/a")), NullProgressMonitor.INSTANCE);
+            }
+            // someone else changes the remote behind our back
+            final RefUpdate create = remote.getRepository().updateRef("refs/heads/snapshots/1234/b");
+            create.setNewObjectId(head);
+            create.update();
+            try (final RemoteSession session = RemoteSession.open(jgit.getRepository(), "origin", ttl)) {
+                assertEquals(Set.of("refs/heads/snapshots/1234/a"), names(session));
+                session.branchPushed("snapshots/1234/c", head);
+            }
+            try (final RemoteSession session = RemoteSession.open(jgit.getRepository(), "origin", ttl)) {
+                assertEquals(Set.of("refs/heads/snapshots/1234/a", "refs/heads/snapshots/1234/c"), names(session));
+                session.forgetRemoteBranches();
+            }
+            try (final RemoteSession session = RemoteSession.open(jgit.getRepository(), "origin", ttl)) {
+                assertEquals(Set.of("refs/heads/snapshots/1234/a", "refs/heads/snapshots/1234/b"), names(session));
+            }
+            try (final RemoteSession session = RemoteSession.open(jgit.getRepository(), "origin", Duration.ZERO)) {
+                final RefUpdate delete = remote.getRepository().updateRef("refs/heads/snapshots/1234/b");
+                delete.setForceUpdate(true);
+                delete.delete();
+                assertEquals(Set.of("refs/heads/snapshots/1234/a"), names(session));
+            }
+        }
+    }
+
+    private static Set<String> names(RemoteSession session) throws Exception {
+        return session.getRemoteBranchRefs().stream().map(Ref::getName).collect(Collectors.toSet());
+    }
+}
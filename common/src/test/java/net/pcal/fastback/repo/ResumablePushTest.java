@@ -0,0 +1,176 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import net.pcal.fastback.logging.UserLogger;
+import net.pcal.fastback.logging.UserMessage;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static net.pcal.fastback.config.FastbackConfigKey.IS_NATIVE_GIT_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.IS_RESUMABLE_PUSH_ENABLED;
+import static net.pcal.fastback.config.FastbackConfigKey.RESUMABLE_PUSH_CHUNK_SIZE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class ResumablePushTest {
+
+    private static final String BRANCH = "snapshots/1234/2024-01-01_12-00-00";
+    private static final int FILE_SIZE = 600 * 1024;
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    /**
+     * If the push is cut off after the chunks are sent, the next attempt should only need to send the branch.
+     */
+    @Test
+    public void testResume(@TempDir Path temp) throws Exception {
+        final Path remoteDir = temp.resolve("remote");
+        final Path worktree = temp.resolve("world");
+        try (final Git remote = Git.init().setBare(true).setDirectory(remoteDir.toFile()).call();
+             final RepoImpl repo = createRepo(worktree, remoteDir)) {
+            final byte[] region = Files.readAllBytes(worktree.resolve("r.0.0.mca"));
+            final RevCommit snapshot = repo.getJGit().commit().setMessage("snapshot").setSign(false).call();
+            repo.getJGit().branchCreate().setName(BRANCH).call();
+
+            // something already on the remote's branch stops the final step from going through
+            final Repository remoteRepo = remote.getRepository();
+            try (final Git other = Git.init().setDirectory(temp.resolve("other").toFile()).call()) {
+                Files.writeString(temp.resolve("other/x"), "x");
+                other.add().addFilepattern("x").call();
+                final RevCommit blocker = other.commit().setMessage("x").setSign(false).call();
+                other.push().setRemote(remoteDir.toUri().toString()).add("master:" + BRANCH).call();
+                assertEquals(blocker.getId(), remoteRepo.resolve(BRANCH));
+            }
+            final StoredConfig remoteConfig = remoteRepo.getConfig();
+            remoteConfig.setBoolean("receive", null, "denyNonFastForwards", true);
+            remoteConfig.save();
+
+            final ResumablePush first = plan(repo);
+            assertNotNull(first);
+            assertThrows(IOException.class, () -> first.push(new TestLogger(), NullProgressMonitor.INSTANCE));
+            assertEquals(3, PushState.load(repo.getDotFasbackDir(), "origin").getChunks().size());
+            assertEquals(3, remoteRepo.getRefDatabase().getRefsByPrefix(ResumablePush.RESUME_REFS).size());
+
+            // a push to another remote that's still going shouldn't lose its chunks when this one finishes
+            final Repository local = repo.getJGit().getRepository();
+            final RefUpdate otherChunk = local.updateRef(ResumablePush.RESUME_REFS + "nas/" + snapshot.getId().name());
+            otherChunk.setNewObjectId(snapshot);
+            otherChunk.forceUpdate();
+
+            remoteConfig.setBoolean("receive", null, "denyNonFastForwards", false);
+            remoteConfig.save();
+            final ResumablePush second = plan(repo);
+            assertNotNull(second);
+            final Map<String, ObjectId> pushed = second.push(new TestLogger(), NullProgressMonitor.INSTANCE);
+            assertEquals(Map.of(BRANCH, snapshot.getId()), pushed);
+
+            assertEquals(snapshot.getId(), remoteRepo.resolve(BRANCH));
+            assertArrayEquals(region, remoteRepo.open(remoteRepo.resolve(BRANCH + ":r.0.0.mca")).getBytes());
+            assertTrue(remoteRepo.getRefDatabase().getRefsByPrefix(ResumablePush.RESUME_REFS).isEmpty());
+            assertTrue(local.getRefDatabase().getRefsByPrefix(ResumablePush.RESUME_REFS + "origin/").isEmpty());
+            assertEquals(1, local.getRefDatabase().getRefsByPrefix(ResumablePush.RESUME_REFS + "nas/").size());
+            assertTrue(PushState.load(repo.getDotFasbackDir(), "origin").isEmpty());
+
+            // nothing left over, and nothing to send once the remote has the snapshot
+            assertNull(ResumablePush.plan(repo, "origin", repo.getRemoteSession(), List.of(BRANCH), List.of(snapshot.getId())));
+        }
+    }
+
+    @Test
+    public void testPushState(@TempDir Path dotFastback) throws Exception {
+        final ObjectId chunk = ObjectId.fromString("2e65efe2a145dda7ee51d1741299f848e5bf752e");
+        PushState state = PushState.load(dotFastback, "origin");
+        assertTrue(state.isEmpty());
+        state.chunkPushed(chunk);
+        state.lfsUploaded(List.of("2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae"));
+        state.save();
+        state = PushState.load(dotFastback, "origin");
+        assertEquals(List.of(chunk), state.getChunks());
+        assertTrue(state.isLfsUploaded("2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae"));
+        assertTrue(PushState.load(dotFastback, "nas").isEmpty());
+        state.delete();
+        assertTrue(PushState.load(dotFastback, "origin").isEmpty());
+    }
+
+    private static ResumablePush plan(final RepoImpl repo) throws IOException {
+        final RemoteSession session = repo.getRemoteSession();
+        return ResumablePush.plan(repo, "origin", session, List.of(BRANCH), List.of());
+    }
+
+    private static RepoImpl createRepo(Path worktree, Path remoteDir) throws Exception {
+        final Git jgit = Git.init().setDirectory(worktree.toFile()).call();
+        Files.createDirectories(worktree.resolve(".fastback"));
+        final StoredConfig config = jgit.getRepository().getConfig();
+        config.setString("remote", "origin", "url", remoteDir.toUri().toString());
+        config.save();
+        final Random random = new Random(0);
+        for (int i = 0; i < 5; i++) {
+            final byte[] data = new byte[FILE_SIZE];
+            random.nextBytes(data);
+            Files.write(worktree.resolve("r." + i + ".0.mca"), data);
+        }
+        jgit.add().addFilepattern(".").call();
+        final RepoImpl repo = new RepoImpl(jgit);
+        repo.getConfig().updater().set(IS_NATIVE_GIT_ENABLED, false).
+                set(IS_RESUMABLE_PUSH_ENABLED, true).
+                set(RESUMABLE_PUSH_CHUNK_SIZE, 1).save();
+        return repo;
+    }
+
+    private static class TestLogger implements UserLogger {
+
+        @Override
+        public void message(UserMessage message) {
+        }
+
+        @Override
+        public void update(UserMessage message) {
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import net.pcal.fastback.repo.StatCache.Stat;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class StatCacheTest {
+
+    private static final ObjectId ID = ObjectId.fromString("0123456789abcdef0123456789abcdef01234567");
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    @Test
+    public void testLookup(@TempDir Path worktree) throws Exception {
+        try (final Git jgit = Git.init().setDirectory(worktree.toFile()).call()) {
+            final Repository repo = jgit.getRepository();
+            final Path file = write(worktree, "region/r.0.0.mca", "region", Instant.now().minusSeconds(60));
+            final Stat stat = Stat.of(file);
+            final StatCache cache = StatCache.load(repo);
+            assertNull(cache.lookup("region/r.0.0.mca", stat));
+            cache.put("region/r.0.0.mca", stat, ID);
+            cache.save(repo);
+
+            assertEquals(ID, StatCache.load(repo).lookup("region/r.0.0.mca", stat));
+            assertNull(StatCache.load(repo).lookup("region/r.0.1.mca", stat));
+
+            // any change to the stat info is a miss
+            write(worktree, "region/r.0.0.mca", "region!", Instant.now().minusSeconds(60));
+            assertNull(StatCache.load(repo).lookup("region/r.0.0.mca", Stat.of(file)));
+            assertNull(StatCache.load(repo).lookup("region/r.0.0.mca",
+                    new Stat(stat.size(), stat.lastModified(), "(dev=1,ino=2)")));
+        }
+    }
+
+    /**
+     * Files modified too close to when they were hashed (by the filesystem's clock) can't be trusted, and stay
+     * that way when the cache is rewritten by a later commit that doesn't hash them again.
+     */
+    @Test
+    public void testRacyEntries(@TempDir Path worktree) throws Exception {
+        try (final Git jgit = Git.init().setDirectory(worktree.toFile()).call()) {
+            final Repository repo = jgit.getRepository();
+            final Path fastbackDir = Files.createDirectories(worktree.resolve(".fastback"));
+            final Path probe = Files.createTempFile(fastbackDir, "probe", null);
+            final Instant now = Files.getLastModifiedTime(probe).toInstant();
+            Files.delete(probe);
+            final Stat old = Stat.of(write(worktree, "level.dat", "level", now.minusSeconds(3600)));
+            final Stat racy = Stat.of(write(worktree, "region/r.0.0.mca", "region", now));
+            final Stat future = Stat.of(write(worktree, "region/r.1.0.mca", "region", now.plusSeconds(3600)));
+            final StatCache cache = StatCache.load(repo);
+            cache.put("level.dat", old, ID);
+            cache.put("region/r.0.0.mca", racy, ID);
+            cache.put("region/r.1.0.mca", future, ID);
+            cache.save(repo);
+
+            final StatCache reloaded = StatCache.load(repo);
+            assertEquals(ID, reloaded.lookup("level.dat", old));
+            assertNull(reloaded.lookup("region/r.0.0.mca", racy));
+            assertNull(reloaded.lookup("region/r.1.0.mca", future));
+
+            // a later commit saves the cache without hashing them again
+            final Path cacheFile = fastbackDir.resolve(StatCache.CACHE_FILE);
+            Files.setLastModifiedTime(cacheFile, FileTime.from(now.plusSeconds(7200)));
+            reloaded.save(repo);
+            final StatCache again = StatCache.load(repo);
+            assertEquals(ID, again.lookup("level.dat", old));
+            assertNull(again.lookup("region/r.0.0.mca", racy));
+            assertNull(again.lookup("region/r.1.0.mca", future));
+        }
+    }
+
+    /**
+     * Entries for files that are gone shouldn't pile up in the cache.
+     */
+    @Test
+    public void testRemove(@TempDir Path worktree) throws Exception {
+        try (final Git jgit = Git.init().setDirectory(worktree.toFile()).call()) {
+            final Repository repo = jgit.getRepository();
+            final Stat level = Stat.of(write(worktree, "level.dat", "level", Instant.now().minusSeconds(60)));
+            final Stat region = Stat.of(write(worktree, "region/r.0.0.mca", "region", Instant.now().minusSeconds(60)));
+            final StatCache cache = StatCache.load(repo);
+            cache.put("level.dat", level, ID);
+            cache.put("region/r.0.0.mca", region, ID);
+            cache.save(repo);
+
+            final StatCache reloaded = StatCache.load(repo);
+            reloaded.remove(List.of("region/r.0.0.mca", "region/r.9.9.mca"));
+            reloaded.save(repo);
+            final StatCache again = StatCache.load(repo);
+            assertEquals(ID, again.lookup("level.dat", level));
+            assertNull(again.lookup("region/r.0.0.mca", region));
+            final Path cacheFile = worktree.resolve(".fastback").resolve(StatCache.CACHE_FILE);
+            assertFalse(Files.readString(cacheFile, UTF_8).contains("r.0.0.mca"));
+        }
+    }
+
+    @Test
+    public void testVersionMismatch(@TempDir Path worktree) throws Exception {
+        try (final Git jgit = Git.init().setDirectory(worktree.toFile()).call()) {
+            final Repository repo = jgit.getRepository();
+            final Stat stat = Stat.of(write(worktree, "level.dat", "level", Instant.now().minusSeconds(60)));
+            final StatCache cache = StatCache.load(repo);
+            cache.put("level.dat", stat, ID);
+            cache.save(repo);
+            final Path cacheFile = worktree.resolve(".fastback").resolve(StatCache.CACHE_FILE);
+            final List<String> lines = Files.readAllLines(cacheFile, UTF_8);
+            lines.set(0, "fastback-statcache 0");
+            Files.write(cacheFile, lines, UTF_8);
+            assertNull(StatCache.load(repo).lookup("level.dat", stat));
+        }
+    }
+
+    private static Path write(Path worktree, String path, String content, Instant mtime) throws Exception {
+        final Path file = worktree.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.createDirectories(worktree.resolve(".fastback"));
+        Files.writeString(file, content);
+        Files.setLastModifiedTime(file, FileTime.from(mtime));
+        return file;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.repo;
+
+import net.pcal.fastback.logging.Log4jLogger;
+import net.pcal.fastback.logging.SystemLogger;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.Pack;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.Transport;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author pcal
+ * @since 0.20.0
+ */
+public class ThinPackPushTest {
+
+    private static final int FILE_COUNT = 50;
+
+    @BeforeAll
+    public static void setup() {
+        SystemLogger.Singleton.register(new Log4jLogger(LogManager.getLogger("mocklogger")));
+    }
+
+    /**
+     * Pushing a second orphan snapshot should only send what changed since the first.
+     */
+    @Test
+    public void testPushExcludesRemoteSnapshotObjects(@TempDir Path temp) throws Exception {
+        final Path remoteDir = temp.resolve("remote");
+        final Path worktree = temp.resolve("world");
+        try (final Git remote = Git.init().setBare(true).setDirectory(remoteDir.toFile()).call();
+             final Git jgit = Git.init().setDirectory(worktree.toFile()).call()) {
+            final StoredConfig config = jgit.getRepository().getConfig();
+            config.setString("remote", "origin", "url", remoteDir.toUri().toString());
+            config.save();
+            for (int i = 0; i < FILE_COUNT; i++) Files.writeString(worktree.resolve("r." + i + ".mca"), "region " + i);
+            jgit.add().addFilepattern(".").call();
+            final RevCommit a = jgit.commit().setMessage("a").setSign(false).call();
+            jgit.branchCreate().setName("snapshots/1234/a").call();
+            jgit.checkout().setOrphan(true).setName("snapshots/1234/b").call();
+            Files.writeString(worktree.resolve("r.0.mca"), "changed");
+            jgit.add().addFilepattern(".").call();
+            final RevCommit b = jgit.commit().setMessage("b").setSign(false).call();
+
+            try (final Transport transport = Transport.open(jgit.getRepository(), "origin")) {
+                assertTrue(ThinPackPush.isSupported(transport));
+                ThinPackPush.push(transport, jgit.getRepository(), List.of("snapshots/1234/a"), List.of(), NullProgressMonitor.INSTANCE);
+                assertEquals(FILE_COUNT + 2, countPackedObjects(remote.getRepository()));
+
+                final Map<String, ObjectId> pushed = ThinPackPush.push(transport, jgit.getRepository(),
+                        List.of("snapshots/1234/a", "snapshots/1234/b"), List.of(a.getId()), NullProgressMonitor.INSTANCE);
+                assertEquals(Map.of("snapshots/1234/a", a.getId(), "snapshots/1234/b", b.getId()), pushed);
+                // just the new commit, its tree and the changed file
+                assertEquals(FILE_COUNT + 2 + 3, countPackedObjects(remote.getRepository()));
+            }
+            try (final Repository check = Git.open(remoteDir.toFile()).getRepository()) {
+                assertEquals(a.getId(), check.resolve("refs/heads/snapshots/1234/a"));
+                assertEquals(b.getId(), check.resolve("refs/heads/snapshots/1234/b"));
+                assertEquals("changed", new String(check.open(check.resolve("snapshots/1234/b:r.0.mca")).getBytes(), UTF_8));
+                assertEquals("region 1", new String(check.open(check.resolve("snapshots/1234/b:r.1.mca")).getBytes(), UTF_8));
+            }
+        }
+    }
+
+    private static long countPackedObjects(final Repository repo) throws Exception {
+        final ObjectDirectory od = (ObjectDirectory) repo.getObjectDatabase();
+        long count = 0;
+        for (final Pack pack : od.getPacks()) count += pack.getIndex().getObjectCount();
+        return count;
+    }
+}
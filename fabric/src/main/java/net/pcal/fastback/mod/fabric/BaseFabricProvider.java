@@ -44,6 +44,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import static java.util.Objects.requireNonNull;
 import static net.pcal.fastback.commands.Commands.createBackupCommand;
@@ -61,6 +62,7 @@ abstract class BaseFabricProvider implements MinecraftProvider, MixinGateway {
 
     private MinecraftServer minecraftServer;
     private Runnable autoSaveListener;
+    private Consumer<Path> fileWriteListener;
 
     private boolean isWorldSaveEnabled = true;
 
@@ -101,6 +103,12 @@ abstract class BaseFabricProvider implements MinecraftProvider, MixinGateway {
         this.autoSaveListener = requireNonNull(runnable);
     }
 
+    @Override
+    public void setFileWriteListener(Consumer<Path> listener) {
+        if (this.fileWriteListener != null) throw new IllegalStateException();
+        this.fileWriteListener = requireNonNull(listener);
+    }
+
     @Override
     public Path getWorldDirectory() {
         if (this.minecraftServer == null) throw new IllegalStateException();
@@ -114,6 +122,11 @@ abstract class BaseFabricProvider implements MinecraftProvider, MixinGateway {
         return this.minecraftServer.getWorldData().getLevelName();
     }
 
+    @Override
+    public int getPlayerCount() {
+        return this.minecraftServer == null ? 0 : this.minecraftServer.getPlayerCount();
+    }
+
     /**
      * Add extra properties that will be stored in .fastback/backup.properties.
      */
@@ -171,6 +184,11 @@ abstract class BaseFabricProvider implements MinecraftProvider, MixinGateway {
         }
     }
 
+    @Override
+    public void regionFileWritten(Path regionFile) {
+        if (this.fileWriteListener != null) this.fileWriteListener.accept(regionFile);
+    }
+
     // ======================================================================
     // Package private
 
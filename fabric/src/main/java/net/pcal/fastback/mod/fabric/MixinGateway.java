@@ -20,6 +20,8 @@ package net.pcal.fastback.mod.fabric;
 
 import net.minecraft.client.gui.GuiGraphics;
 
+import java.nio.file.Path;
+
 /**
  * Singleton 'gateway' that mixin code goes through to call back into the mod.
  *
@@ -36,6 +38,8 @@ public interface MixinGateway {
 
     void autoSaveCompleted();
 
+    void regionFileWritten(Path regionFile);
+
     void renderMessageScreen(GuiGraphics drawContext);
 
     class Singleton {
@@ -0,0 +1,58 @@
+/*
+ * FastBack - Fast, incremental Minecraft backups powered by Git.
+ * Copyright (C) 2022 pcal.net
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.pcal.fastback.mod.fabric.mixins;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.storage.RegionFileStorage;
+import net.pcal.fastback.mod.fabric.MixinGateway;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import java.nio.file.Path;
+
+/**
+ * Tells the dirty file journal about every region file that the server writes to, so that backups only need
+ * to look at the regions that actually changed.
+ *
+ * @author pcal
+ * @since 0.20.0
+ */
+@Mixin(RegionFileStorage.class)
+public class RegionFileStorageMixin {
+
+    @Shadow
+    @Final
+    private Path folder;
+
+    /**
+     * Record the write before it happens.  If the write then fails, the region just gets looked at needlessly.
+     */
+    @Inject(at = @At("HEAD"), method = "write(Lnet/minecraft/world/level/ChunkPos;Lnet/minecraft/nbt/CompoundTag;)V")
+    public void fastback_write(ChunkPos pos, CompoundTag tag, CallbackInfo ci) {
+        final MixinGateway gateway = MixinGateway.get();
+        if (gateway != null) {
+            gateway.regionFileWritten(this.folder.resolve("r." + pos.getRegionX() + "." + pos.getRegionZ() + RegionFileStorage.ANVIL_EXTENSION));
+        }
+    }
+}
@@ -25,11 +25,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import static java.util.Objects.requireNonNull;
 import static net.pcal.fastback.commands.Commands.createBackupCommand;
 import static net.pcal.fastback.logging.SystemLogger.syslog;
 import static net.pcal.fastback.mod.MinecraftProvider.messageToText;
+import static net.pcal.fastback.repo.DirtyFileJournal.journal;
 
 /**
  * @author pcal
@@ -175,6 +177,12 @@ class ForgeCommonProvider implements MinecraftProvider {
         this.autoSaveListener = requireNonNull(runnable);
     }
 
+    @Override
+    public void setFileWriteListener(Consumer<Path> listener) {
+        // we don't hook region writes on forge, so the dirty file journal can't know what changed
+        journal().disable();
+    }
+
     @Override
     public Path getSavesDir() {
         if (this.isClient()) {
@@ -189,6 +197,11 @@ class ForgeCommonProvider implements MinecraftProvider {
         return this.logicalServer.getWorldData().getLevelName();
     }
 
+    @Override
+    public int getPlayerCount() {
+        return this.logicalServer == null ? 0 : this.logicalServer.getPlayerCount();
+    }
+
     /**
      * Add extra properties that will be stored in .fastback/backup.properties.
      */